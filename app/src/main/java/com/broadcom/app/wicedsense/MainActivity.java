@@ -17,7 +17,6 @@
 package com.broadcom.app.wicedsense;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import com.broadcom.app.ledevicepicker.DevicePicker;
 import com.broadcom.app.ledevicepicker.DevicePickerActivity;
 import com.broadcom.app.wicedsense.Settings.SettingChangeListener;
@@ -138,7 +137,7 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
                 updateBatteryLevelWidget(msg.arg1);
                 break;
             case PROCESS_SENSOR_DATA_ON_UI:
-                processSensorData((byte[]) msg.obj);
+                processSensorData();
                 break;
             }
             return true;
@@ -164,6 +163,8 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
     private int mInitState;
     private Handler mSensorDataEventHandler;
     private HandlerThread mSensorDataEventThread;
+    private SensorSampleRing.Reader mSensorDataReader;
+    private final SensorSample mSensorSample = new SensorSample();
     private final AnimationManager mAnimation = new AnimationManager(
             Settings.ANIMATION_FRAME_DELAY_MS, Settings.ANIMATE_TIME_INTERVAL_MS);
     private final AnimationManager mAnimationSlower = new AnimationManager(
@@ -200,6 +201,10 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
             checkDevicePicked();
         }
         mSenseManager.registerEventCallbackHandler(mSensorDataEventHandler);
+        if (mSensorDataReader == null) {
+            mSensorDataReader = mSenseManager.registerSensorDataReader(mUiHandler,
+                    PROCESS_SENSOR_DATA_ON_UI);
+        }
 
         if (mSenseManager.isConnectedAndAvailable()) {
             mSenseManager.enableNotifications(true);
@@ -407,6 +412,10 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
                 mSenseManager.enableNotifications(false);
             }
             mSenseManager.unregisterEventCallbackHandler(mSensorDataEventHandler);
+            if (mSensorDataReader != null) {
+                mSenseManager.unregisterSensorDataReader(mSensorDataReader);
+                mSensorDataReader = null;
+            }
         }
         super.onPause();
     }
@@ -601,9 +610,6 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
             mUiHandler.sendMessage(mUiHandler.obtainMessage(PROCESS_BATTERY_STATUS_UI, msg.arg1,
                     msg.arg1));
             break;
-        case SenseManager.EVENT_SENSOR_DATA:
-            mUiHandler.sendMessage(mUiHandler.obtainMessage(PROCESS_SENSOR_DATA_ON_UI, msg.obj));
-            break;
         case SenseManager.EVENT_APP_INFO:
             boolean success = msg.arg1 == 1;
             OtaAppInfo appInfo = (OtaAppInfo) msg.obj;
@@ -633,12 +639,27 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
     private long mLastRefreshSlowerTimeMs;
 
     /**
-     * Parses the sensor data bytes and updates the corresponding sensor(s) UI
-     * component
+     * Reads all sensor samples published since the last wakeup and updates
+     * the UI. Runs on the main UI thread
+     */
+    private void processSensorData() {
+        SensorSampleRing.Reader reader = mSensorDataReader;
+        if (reader == null) {
+            return;
+        }
+        reader.clearWakeup();
+        while (reader.read(mSensorSample)) {
+            processSensorData(mSensorSample);
+        }
+    }
+
+    /**
+     * Updates the corresponding sensor(s) UI component from a decoded sensor
+     * sample
      *
-     * @param sensorData
+     * @param sample
      */
-    private void processSensorData(byte[] sensorData) {
+    private void processSensorData(SensorSample sample) {
         if (mAnimation != null && mAnimation.useAnimation()) {
             mAnimation.init();
         }
@@ -647,12 +668,10 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
             mAnimationSlower.init();
         }
 
-        int maskField = sensorData[0];
-        int offset = 0;
-        int[] values = new int[3];
+        int maskField = sample.mMask;
         boolean updateView = false;
         long currentTimeMs = System.currentTimeMillis();
-        switch (sensorData.length) {
+        switch (sample.mPacketLength) {
         case 19:
             if (currentTimeMs - mLastRefreshTimeMs < Settings.REFRESH_INTERVAL_MS) {
                 return;
@@ -660,8 +679,6 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
                 mLastRefreshTimeMs = currentTimeMs;
             }
 
-            offset = 1;
-
             if (updateView && mAnimation != null) {
                 mAnimation.animate();
             }
@@ -675,28 +692,20 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
             }
 
             // packet type specifying temp, humid, press
-            offset = 1;
-            float value = 0;
             if (mHumidityFrag.isVisible() && SensorDataParser.humidityHasChanged(maskField)) {
-                value = SensorDataParser.getHumidityPercent(sensorData, offset);
-                offset += SensorDataParser.SENSOR_HUMD_DATA_SIZE;
-                mHumidityFrag.setValue(mAnimationSlower, value);
+                mHumidityFrag.setValue(mAnimationSlower, sample.mHumidity);
                 updateView = true;
             }
             if (mPressureFrag.isVisible() && SensorDataParser.pressureHasChanged(maskField)) {
-                value = SensorDataParser.getPressureMBar(sensorData, offset);
-                offset += SensorDataParser.SENSOR_PRES_DATA_SIZE;
-                mPressureFrag.setValue(mAnimationSlower, value);
+                mPressureFrag.setValue(mAnimationSlower, sample.mPressure);
                 updateView = true;
             }
 
             if (mTemperatureFrag.isVisible() && SensorDataParser.temperatureHasChanged(maskField)) {
+                float value = sample.mTemperatureC;
                 if (mIsTempScaleF) {
-                    value = SensorDataParser.getTemperatureF(sensorData, offset);
-                } else {
-                    value = SensorDataParser.getTemperatureC(sensorData, offset);
+                    value = SensorDataParser.tempCtoF(value);
                 }
-                offset += SensorDataParser.SENSOR_TEMP_DATA_SIZE;
                 mTemperatureFrag.setValue(mAnimationSlower, value);
                 updateView = true;
             }
@@ -840,6 +849,9 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
             return false;
         }
         mFirmwareUpdateCheckPending = true;
+        // Pick up images copied since the last check, while the app info is
+        // read
+        Settings.getFirmwareCatalog().refreshAsync();
         if (!mSenseManager.getAppInfo()) {
             mFirmwareUpdateCheckPending = false;
             if (DBG) {
@@ -895,18 +907,13 @@ public class MainActivity extends Activity implements DevicePicker.Callback, and
             mMandatoryUpdateRequired = defaultResource.isMandatory();
             otaResources.add(defaultResource);
         }
-        if (!mMandatoryUpdateRequired) {
-            OtaUiHelper.createOtaResources(Settings.getOtaDirectory(), Settings.getOtaFileFilter(),
-                    otaResources);
-            Iterator<OtaResource> i = otaResources.iterator();
-            while (i.hasNext()) {
-                OtaResource otaResource = i.next();
-                if (!canUpdateToFirmware(appInfo, otaResource)) {
-                    if (DBG) {
-                        Log.d(TAG, "Skipping OTA firmware " + otaResource.getName());
-                    }
-                    i.remove();
+        if (!mMandatoryUpdateRequired && appInfo != null) {
+            OtaResource otaResource = Settings.getFirmwareCatalog().findUpdate(appInfo);
+            if (otaResource != null) {
+                if (DBG) {
+                    Log.d(TAG, "Found OTA firmware " + otaResource.getName());
                 }
+                otaResources.add(otaResource);
             }
         }
         if (otaResources.size() > 0) {
@@ -0,0 +1,363 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Streams the sample history of a {@link SampleStore} as CSV or JSON. Samples
+ * are read one at a time and formatted into a fixed-size byte buffer, so the
+ * memory used does not depend on the length of the history. Temperatures are
+ * written in the scale selected in the settings. Exports can be long; do not
+ * run them on the UI thread
+ *
+ */
+public class SampleExporter {
+    private static final String TAG = Settings.TAG_PREFIX + "SampleExporter";
+    private static final boolean DBG = Settings.DBG;
+
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_JSON = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Longest formatted record, with room to spare. The buffer is flushed
+    // before it has less room than this, so appends never check for space
+    private static final int MAX_RECORD_SIZE = 512;
+
+    private static final byte[] CSV_HEADER = ascii("time_ms,humidity,pressure,temperature_");
+    private static final byte[] CSV_HEADER_MOTION = ascii(
+            ",accel_x,accel_y,accel_z,gyro_x,gyro_y,gyro_z,magno_x,magno_y,magno_z\n");
+    private static final byte[] JSON_HEADER = ascii("{\"temperatureScale\":\"");
+    private static final byte[] JSON_SAMPLES = ascii("\",\"samples\":[");
+    private static final byte[] JSON_FOOTER = ascii("\n]}\n");
+    private static final byte[] JSON_TIME = ascii("\n{\"t\":");
+    private static final byte[] JSON_HUMIDITY = ascii(",\"humidity\":");
+    private static final byte[] JSON_PRESSURE = ascii(",\"pressure\":");
+    private static final byte[] JSON_TEMPERATURE = ascii(",\"temperature\":");
+    private static final byte[] JSON_ACCEL = ascii(",\"accel\":[");
+    private static final byte[] JSON_GYRO = ascii(",\"gyro\":[");
+    private static final byte[] JSON_MAGNO = ascii(",\"magno\":[");
+
+    /**
+     * Result of an export
+     */
+    public static class Stats {
+        public long mRecords;
+        public long mBytes;
+        public long mElapsedMs;
+
+        public long getRecordsPerSecond() {
+            return mElapsedMs > 0 ? mRecords * 1000 / mElapsedMs : mRecords;
+        }
+
+        public long getBytesPerSecond() {
+            return mElapsedMs > 0 ? mBytes * 1000 / mElapsedMs : mBytes;
+        }
+
+        @Override
+        public String toString() {
+            return mRecords + " records, " + mBytes + " bytes in " + mElapsedMs + "ms ("
+                    + getRecordsPerSecond() + " records/s)";
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    private final SampleStore mStore;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final SensorSample mSample = new SensorSample();
+    private int mLength;
+    private long mBytesWritten;
+    private OutputStream mOut;
+    private volatile boolean mCancelled;
+
+    public SampleExporter(SampleStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Stop an export in progress. The export returns after writing the
+     * current buffer
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Export the samples between two times (inclusive) to a file
+     *
+     * @param file
+     * @param format
+     *            FORMAT_CSV or FORMAT_JSON
+     * @param fromMs
+     * @param toMs
+     * @return the export statistics
+     * @throws IOException
+     */
+    public Stats export(File file, int format, long fromMs, long toMs) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            return export(out, format, fromMs, toMs);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Export the samples between two times (inclusive) to a stream. The
+     * stream is not closed
+     *
+     * @param out
+     * @param format
+     *            FORMAT_CSV or FORMAT_JSON
+     * @param fromMs
+     * @param toMs
+     * @return the export statistics
+     * @throws IOException
+     */
+    public synchronized Stats export(OutputStream out, int format, long fromMs, long toMs)
+            throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        boolean fahrenheit = Settings.TEMPERATURE_SCALE_TYPE_F.equals(Settings
+                .getTemperatureeScaleType());
+        String scale = fahrenheit ? Settings.TEMPERATURE_SCALE_TYPE_F
+                : Settings.TEMPERATURE_SCALE_TYPE_C;
+        Stats stats = new Stats();
+        mOut = out;
+        mLength = 0;
+        mBytesWritten = 0;
+        mCancelled = false;
+        try {
+            if (format == FORMAT_JSON) {
+                append(JSON_HEADER);
+                appendAscii(scale);
+                append(JSON_SAMPLES);
+            } else {
+                append(CSV_HEADER);
+                appendAscii(scale);
+                append(CSV_HEADER_MOTION);
+            }
+
+            SampleStore.Reader reader = mStore.newReader(fromMs, toMs);
+            SensorSample s = mSample;
+            while (!mCancelled && reader.next(s)) {
+                if (mLength > BUFFER_SIZE - MAX_RECORD_SIZE) {
+                    flush();
+                }
+                if (format == FORMAT_JSON) {
+                    if (stats.mRecords > 0) {
+                        append((byte) ',');
+                    }
+                    appendJson(s, fahrenheit);
+                } else {
+                    appendCsv(s, fahrenheit);
+                }
+                stats.mRecords++;
+            }
+            reader.close();
+
+            if (format == FORMAT_JSON) {
+                append(JSON_FOOTER);
+            }
+            flush();
+            out.flush();
+        } finally {
+            mOut = null;
+        }
+        stats.mBytes = mBytesWritten;
+        stats.mElapsedMs = SystemClock.elapsedRealtime() - startTime;
+        if (DBG) {
+            Log.d(TAG, "export: " + stats + (mCancelled ? " (cancelled)" : ""));
+        }
+        return stats;
+    }
+
+    private void appendCsv(SensorSample s, boolean fahrenheit) {
+        int mask = s.mMask;
+        appendLong(s.mTimestampMs);
+        append((byte) ',');
+        boolean isEnv = s.mPacketLength == SensorDataParser.SENSOR_ENV_PACKET_LENGTH;
+        if (isEnv && SensorDataParser.humidityHasChanged(mask)) {
+            appendDecimal(s.mHumidity, 1);
+        }
+        append((byte) ',');
+        if (isEnv && SensorDataParser.pressureHasChanged(mask)) {
+            appendDecimal(s.mPressure, 1);
+        }
+        append((byte) ',');
+        if (isEnv && SensorDataParser.temperatureHasChanged(mask)) {
+            appendTemperature(s.mTemperatureC, fahrenheit);
+        }
+        boolean isMotion = s.mPacketLength == SensorDataParser.SENSOR_MOTION_PACKET_LENGTH;
+        if (isMotion && SensorDataParser.accelerometerHasChanged(mask)) {
+            appendCsvVector(s.mAccelX, s.mAccelY, s.mAccelZ);
+        } else {
+            appendCsvEmpty();
+        }
+        if (isMotion && SensorDataParser.gyroHasChanged(mask)) {
+            appendCsvVector(s.mGyroX, s.mGyroY, s.mGyroZ);
+        } else {
+            appendCsvEmpty();
+        }
+        if (isMotion && SensorDataParser.magnetometerHasChanged(mask)) {
+            appendCsvVector(s.mMagnoX, s.mMagnoY, s.mMagnoZ);
+        } else {
+            appendCsvEmpty();
+        }
+        append((byte) '\n');
+    }
+
+    private void appendCsvVector(int x, int y, int z) {
+        append((byte) ',');
+        appendLong(x);
+        append((byte) ',');
+        appendLong(y);
+        append((byte) ',');
+        appendLong(z);
+    }
+
+    private void appendCsvEmpty() {
+        append((byte) ',');
+        append((byte) ',');
+        append((byte) ',');
+    }
+
+    private void appendJson(SensorSample s, boolean fahrenheit) {
+        int mask = s.mMask;
+        append(JSON_TIME);
+        appendLong(s.mTimestampMs);
+        if (s.mPacketLength == SensorDataParser.SENSOR_ENV_PACKET_LENGTH) {
+            if (SensorDataParser.humidityHasChanged(mask)) {
+                append(JSON_HUMIDITY);
+                appendDecimal(s.mHumidity, 1);
+            }
+            if (SensorDataParser.pressureHasChanged(mask)) {
+                append(JSON_PRESSURE);
+                appendDecimal(s.mPressure, 1);
+            }
+            if (SensorDataParser.temperatureHasChanged(mask)) {
+                append(JSON_TEMPERATURE);
+                appendTemperature(s.mTemperatureC, fahrenheit);
+            }
+        } else if (s.mPacketLength == SensorDataParser.SENSOR_MOTION_PACKET_LENGTH) {
+            if (SensorDataParser.accelerometerHasChanged(mask)) {
+                append(JSON_ACCEL);
+                appendJsonVector(s.mAccelX, s.mAccelY, s.mAccelZ);
+            }
+            if (SensorDataParser.gyroHasChanged(mask)) {
+                append(JSON_GYRO);
+                appendJsonVector(s.mGyroX, s.mGyroY, s.mGyroZ);
+            }
+            if (SensorDataParser.magnetometerHasChanged(mask)) {
+                append(JSON_MAGNO);
+                appendJsonVector(s.mMagnoX, s.mMagnoY, s.mMagnoZ);
+            }
+        }
+        append((byte) '}');
+    }
+
+    private void appendJsonVector(int x, int y, int z) {
+        appendLong(x);
+        append((byte) ',');
+        appendLong(y);
+        append((byte) ',');
+        appendLong(z);
+        append((byte) ']');
+    }
+
+    private void appendTemperature(float c, boolean fahrenheit) {
+        if (fahrenheit) {
+            appendDecimal(SensorDataParser.tempCtoF(c), 2);
+        } else {
+            appendDecimal(c, 1);
+        }
+    }
+
+    private void append(byte b) {
+        mBuffer[mLength++] = b;
+    }
+
+    private void append(byte[] b) {
+        System.arraycopy(b, 0, mBuffer, mLength, b.length);
+        mLength += b.length;
+    }
+
+    private void appendAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            mBuffer[mLength++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void appendLong(long v) {
+        if (v < 0) {
+            append((byte) '-');
+            v = -v;
+        }
+        int start = mLength;
+        do {
+            mBuffer[mLength++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        // Digits were written least significant first
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte b = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = b;
+        }
+    }
+
+    /**
+     * Append a value rounded to the given number of decimals (1 or 2)
+     */
+    private void appendDecimal(float v, int decimals) {
+        int scale = decimals == 1 ? 10 : 100;
+        long scaled = Math.round((double) v * scale);
+        if (scaled < 0) {
+            append((byte) '-');
+            scaled = -scaled;
+        }
+        appendLong(scaled / scale);
+        append((byte) '.');
+        long fraction = scaled % scale;
+        if (decimals == 2 && fraction < 10) {
+            append((byte) '0');
+        }
+        appendLong(fraction);
+    }
+
+    private void flush() throws IOException {
+        if (mLength > 0) {
+            mOut.write(mBuffer, 0, mLength);
+            mBytesWritten += mLength;
+            mLength = 0;
+        }
+    }
+}
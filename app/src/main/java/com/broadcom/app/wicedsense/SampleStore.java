@@ -0,0 +1,269 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Append-only history of decoded sensor samples, stored in a directory of
+ * {@link SampleSegment} files named by the time of their first sample. Samples
+ * are appended on the SenseManager ingest thread; {@link Reader}s can be used
+ * from any thread. When a new segment is created, the oldest segments beyond
+ * the configured maximum are deleted
+ *
+ */
+public class SampleStore implements SensorSampleSink {
+    private static final String TAG = Settings.TAG_PREFIX + "SampleStore";
+    private static final boolean DBG = Settings.DBG;
+
+    private static final String SEGMENT_PREFIX = "samples-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Reads the samples of a time range in time order
+     */
+    public class Reader {
+        private final File[] mFiles;
+        private final long mFromMs;
+        private final long mToMs;
+        private int mFileIndex = -1;
+        private SampleSegment mSegment;
+        private int mIndex;
+
+        private Reader(File[] files, long fromMs, long toMs) {
+            mFiles = files;
+            mFromMs = fromMs;
+            mToMs = toMs;
+        }
+
+        /**
+         * Copy the next sample of the time range into the given sample
+         *
+         * @param out
+         * @return false if there are no more samples
+         */
+        public boolean next(SensorSample out) {
+            while (true) {
+                if (mSegment == null && !openNextSegment()) {
+                    return false;
+                }
+                if (mIndex < mSegment.getCount()) {
+                    if (mSegment.getTimeMs(mIndex) > mToMs) {
+                        close();
+                        return false;
+                    }
+                    mSegment.read(mIndex++, out);
+                    return true;
+                }
+                mSegment = null;
+            }
+        }
+
+        /**
+         * Stop reading. Further calls to {@link #next(SensorSample)} return
+         * false
+         */
+        public void close() {
+            mSegment = null;
+            mFileIndex = mFiles.length;
+        }
+
+        private boolean openNextSegment() {
+            while (++mFileIndex < mFiles.length) {
+                SampleSegment segment;
+                try {
+                    segment = SampleSegment.open(mFiles[mFileIndex], false);
+                } catch (IOException e) {
+                    // Deleted by the retention policy, or damaged
+                    Log.w(TAG, "Unable to read " + mFiles[mFileIndex], e);
+                    continue;
+                }
+                if (segment.getBaseTimeMs() > mToMs) {
+                    close();
+                    return false;
+                }
+                if (segment.getCount() == 0 || segment.getLastTimeMs() < mFromMs) {
+                    continue;
+                }
+                mSegment = segment;
+                mIndex = segment.findFirst(mFromMs);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final ArrayList<File> mSegmentFiles = new ArrayList<File>();
+    private SampleSegment mActiveSegment;
+    private boolean mActiveSegmentOpened;
+    private boolean mFailed;
+
+    /**
+     * @param dir
+     *            directory of the segment files. Created if needed
+     * @param segmentSize
+     *            size of each segment file (in bytes)
+     * @param maxSegments
+     *            number of segment files to keep
+     */
+    public SampleStore(File dir, int segmentSize, int maxSegments) {
+        mDir = dir;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + dir);
+            mFailed = true;
+            return;
+        }
+        String[] names = dir.list();
+        if (names != null) {
+            Arrays.sort(names);
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].startsWith(SEGMENT_PREFIX) && names[i].endsWith(SEGMENT_SUFFIX)) {
+                    mSegmentFiles.add(new File(dir, names[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of segment files needed to keep the given time of history
+     *
+     * @param segmentSize
+     *            size of each segment file (in bytes)
+     * @param retentionMs
+     *            time of history to keep (in ms)
+     * @param sampleRateHz
+     *            number of samples recorded per second
+     */
+    public static int getSegmentsForRetention(int segmentSize, long retentionMs,
+            int sampleRateHz) {
+        long records = (segmentSize - SampleSegment.HEADER_SIZE) / SampleSegment.RECORD_SIZE;
+        long samples = retentionMs * sampleRateHz / 1000;
+        // One more segment so that the oldest full segment is still kept while
+        // the newest one fills up
+        return (int) ((samples + records - 1) / records) + 1;
+    }
+
+    /**
+     * Append a sample. Must only be called from the ingest thread
+     */
+    @Override
+    public void onSensorSample(SensorSample sample) {
+        if (mFailed) {
+            return;
+        }
+        if (!mActiveSegmentOpened) {
+            mActiveSegmentOpened = true;
+            openLastSegment();
+        }
+        if (mActiveSegment != null && mActiveSegment.append(sample)) {
+            return;
+        }
+        try {
+            newSegment(sample.mTimestampMs);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create segment, history disabled", e);
+            mActiveSegment = null;
+            mFailed = true;
+            return;
+        }
+        mActiveSegment.append(sample);
+    }
+
+    /**
+     * Write the active segment to storage and stop appending to it. Must only
+     * be called from the ingest thread
+     */
+    public void close() {
+        if (mActiveSegment != null) {
+            mActiveSegment.force();
+            mActiveSegment = null;
+        }
+        mActiveSegmentOpened = false;
+    }
+
+    /**
+     * Create a reader of the samples between the given times (inclusive)
+     */
+    public Reader newReader(long fromMs, long toMs) {
+        File[] files;
+        synchronized (mSegmentFiles) {
+            files = mSegmentFiles.toArray(new File[mSegmentFiles.size()]);
+        }
+        return new Reader(files, fromMs, toMs);
+    }
+
+    public int getSegmentCount() {
+        synchronized (mSegmentFiles) {
+            return mSegmentFiles.size();
+        }
+    }
+
+    private void openLastSegment() {
+        File last;
+        synchronized (mSegmentFiles) {
+            if (mSegmentFiles.isEmpty()) {
+                return;
+            }
+            last = mSegmentFiles.get(mSegmentFiles.size() - 1);
+        }
+        try {
+            SampleSegment segment = SampleSegment.open(last, true);
+            if (!segment.isFull()) {
+                mActiveSegment = segment;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to reopen " + last, e);
+        }
+    }
+
+    private void newSegment(long baseTimeMs) throws IOException {
+        if (mActiveSegment != null) {
+            mActiveSegment.force();
+            mActiveSegment = null;
+        }
+        File file = new File(mDir, String.format("%s%013d%s", SEGMENT_PREFIX, baseTimeMs,
+                SEGMENT_SUFFIX));
+        if (DBG) {
+            Log.d(TAG, "newSegment: " + file);
+        }
+        synchronized (mSegmentFiles) {
+            while (mSegmentFiles.size() >= mMaxSegments) {
+                File oldest = mSegmentFiles.remove(0);
+                if (!oldest.delete()) {
+                    Log.w(TAG, "Unable to delete " + oldest);
+                }
+            }
+        }
+        mActiveSegment = SampleSegment.create(file, mSegmentSize, baseTimeMs);
+        synchronized (mSegmentFiles) {
+            if (!mSegmentFiles.contains(file)) {
+                mSegmentFiles.add(file);
+            }
+        }
+    }
+}
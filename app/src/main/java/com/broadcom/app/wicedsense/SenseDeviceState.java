@@ -17,6 +17,7 @@
  ******************************************************************************/
 package com.broadcom.app.wicedsense;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
 
@@ -35,8 +36,13 @@ import android.util.Log;
 import com.broadcom.app.wicedsmart.ota.OtaAppInfo;
 import com.broadcom.app.wicedsmart.ota.OtaAppInfoReader;
 import com.broadcom.app.wicedsmart.ota.OtaAppInfoReader.Callback;
+import com.broadcom.util.BluetoothGattTransport;
+import com.broadcom.util.GattAttributeCache;
+import com.broadcom.util.GattOperation;
 import com.broadcom.util.GattRequestManager;
 import com.broadcom.util.GattRequestManager.LePairingCallback;
+import com.broadcom.util.GattRequestManager.ReconnectCallback;
+import com.broadcom.util.GattTransport;
 
 /**
  * Manages the connection and service/characteristics to a WICED Sense Device
@@ -44,7 +50,7 @@ import com.broadcom.util.GattRequestManager.LePairingCallback;
  *
  */
 public class SenseDeviceState extends BluetoothGattCallback implements Handler.Callback, Callback,
-        LePairingCallback {
+        LePairingCallback, ReconnectCallback, PacketSink {
     private static final String TAG = Settings.TAG_PREFIX + "DeviceState";
     private static final boolean DBG = Settings.DBG;
 
@@ -112,20 +118,37 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
     private boolean mMonitorBattery;
     private boolean mConnectAfterBonding;
     private final OtaAppInfoReader mOtaAppReader;
+    private final PacketStats mPacketStats = new PacketStats();
+    private final ConnectStopwatch mConnectStopwatch = new ConnectStopwatch();
+    private final GattAttributeCache mAttributeCache;
+    private GattOperation mClientConfigWrite;
+    private volatile PacketCapture.Writer mPacketCapture;
+    private volatile boolean mSensorNotificationsSuspended;
 
     public SenseDeviceState(Context ctx, BluetoothDevice device, Looper l, EventCallback cb) {
+        this(ctx, device, new BluetoothGattTransport(ctx, device), l, cb);
+    }
+
+    /**
+     * Manage a device reached through the given transport, such as a
+     * {@link SimulatedGattTransport}
+     */
+    public SenseDeviceState(Context ctx, BluetoothDevice device, GattTransport transport,
+            Looper l, EventCallback cb) {
         mEventCallback = cb;
         mHandler = new Handler(l, this);
         mDevice = device;
-        mGattManager = new GattRequestManager(ctx, device);
+        mAttributeCache = new GattAttributeCache(ctx);
+        mGattManager = new GattRequestManager(ctx, device, transport);
         mGattManager.setAutoConnect(false);
         mGattManager.setDiscoverServices(true);
-        mGattManager.setRetryFailedConnection(false, -1);
+        mGattManager.setRetryFailedConnection(true, Settings.RECONNECT_MAX_ATTEMPTS);
         if (Settings.PAIRNG_REQUIRED) {
             mGattManager.setPairingTimeout(Settings.PAIRING_TIMEOUT_MS);
         }
         mGattManager.addCallback(this);
         mGattManager.addPairingCallback(this);
+        mGattManager.setReconnectCallback(this);
 
         mOtaAppReader = new OtaAppInfoReader(this, l);
     }
@@ -142,18 +165,77 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
         return mOtaAppReader;
     }
 
+    /**
+     * Sensor notification statistics of the current connection
+     */
+    public PacketStats getPacketStats() {
+        return mPacketStats;
+    }
+
+    /**
+     * Record all sensor notifications to the given capture, or stop recording
+     * if null
+     */
+    public void setPacketCapture(PacketCapture.Writer capture) {
+        mPacketCapture = capture;
+    }
+
+    /**
+     * Drop sensor notifications from the tag while a capture is replayed
+     * through {@link #onSensorPacket(byte[])}, so that packets are only
+     * processed by one thread at a time
+     */
+    public void setSensorNotificationsSuspended(boolean suspended) {
+        mSensorNotificationsSuspended = suspended;
+    }
+
+    /**
+     * Phase times of the current or last connection
+     */
+    public ConnectStopwatch getConnectStopwatch() {
+        return mConnectStopwatch;
+    }
+
     public boolean isConnectedAndAvailable() {
         return mIsConnectedAndAvailable;
     }
 
+    /**
+     * Connect to the device, without the connect and discovery delays if its
+     * layout is cached
+     */
+    public boolean connect() {
+        startConnectAttempt();
+        return mGattManager.connect();
+    }
+
+    /**
+     * Automatic reconnects after a disconnect take the fast path again only
+     * if the layout is still cached, and are timed like user connects
+     */
+    @Override
+    public void onReconnect(int attempt) {
+        if (DBG) {
+            Log.d(TAG, "onReconnect: attempt=" + attempt);
+        }
+        startConnectAttempt();
+    }
+
+    private void startConnectAttempt() {
+        boolean fast = Settings.FAST_RECONNECT && mDevice != null
+                && mAttributeCache.contains(mDevice.getAddress());
+        mGattManager.setFastConnect(fast);
+        mConnectStopwatch.start(System.nanoTime(), fast);
+    }
+
     private void cancelBatteryStatus() {
         mHandler.removeMessages(GET_BATTERY_STATUS);
         mGattManager.removeRequest(GattRequestManager.REQUEST_READ_CHAR, mBatteryLevel);
     }
 
-    private boolean loadServicesAndCharacteristics(BluetoothGatt gatt) {
+    private boolean loadServicesAndCharacteristics() {
         // Get sensor service
-        mSensorService = gatt.getService(SENSOR_SERVICE_UUID);
+        mSensorService = mGattManager.findService(SENSOR_SERVICE_UUID);
         if (mSensorService == null) {
             Log.w(TAG,
                     "onServicesDiscovered: Sensor Service not found. This device is not supported");
@@ -176,7 +258,7 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
         }
 
         // Get battery service and characteristic
-        mBatteryService = gatt.getService(BATTERY_SERVICE_UUID);
+        mBatteryService = mGattManager.findService(BATTERY_SERVICE_UUID);
         if (mBatteryService != null) {
             mBatteryLevel = mBatteryService.getCharacteristic(BATTERY_LEVEL_UUID);
         }
@@ -205,7 +287,7 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
             }
             break;
         case GET_BATTERY_STATUS:
-            mGattManager.read(mBatteryLevel);
+            readBatteryLevel(GattRequestManager.PRIORITY_BACKGROUND);
             break;
         }
         return true;
@@ -219,7 +301,19 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
                     + newState);
         }
 
-        if (BluetoothGatt.STATE_DISCONNECTED == newState) {
+        if (BluetoothGatt.STATE_CONNECTED == newState) {
+            mConnectStopwatch.mark(ConnectStopwatch.PHASE_CONNECTED, System.nanoTime());
+        } else if (BluetoothGatt.STATE_DISCONNECTED == newState) {
+            if (DBG) {
+                Log.d(TAG, "onConnectionStateChange: packet stats " + mPacketStats);
+            }
+            if (mConnectStopwatch.isRunning() && !mIsConnectedAndAvailable
+                    && mConnectStopwatch.isFastPath()) {
+                // Do not skip the delays again if the fast path failed
+                mAttributeCache.remove(mDevice.getAddress());
+                mGattManager.setFastConnect(false);
+            }
+            mConnectStopwatch.stop();
             mIsConnectedAndAvailable = false;
             mSensorNotificationsEnabled = false;
             cancelBatteryStatus();
@@ -245,7 +339,7 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
 
         if (DBG) {
             Log.d(TAG, "onServicesDiscovered: status=" + status);
-            List<BluetoothGattService> services = gatt.getServices();
+            List<BluetoothGattService> services = mGattManager.getServices();
             if (services != null && services.size() > 0) {
                 for (int i = 0; i < services.size(); i++) {
                     BluetoothGattService s = services.get(i);
@@ -255,7 +349,7 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
         }
 
         // Load the services and characteristics
-        if (!loadServicesAndCharacteristics(gatt)) {
+        if (!loadServicesAndCharacteristics()) {
             if (mEventCallback != null) {
                 mEventCallback.onUnsupportedDevice(this);
             }
@@ -263,53 +357,68 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
             return;
         }
         mIsConnectedAndAvailable = true;
+        mPacketStats.reset(System.nanoTime());
+        mConnectStopwatch.mark(ConnectStopwatch.PHASE_SERVICES_READY, System.nanoTime());
+        if (mAttributeCache.validate(mDevice.getAddress(), mGattManager.getServices())
+                && Settings.FAST_RECONNECT) {
+            // Start the sensor data without waiting for the application
+            if (DBG) {
+                Log.d(TAG, "onServicesDiscovered: cached layout valid, enabling notifications");
+            }
+            enableSensorNotifications(true);
+        }
         mGattManager.startConnectCompleteTimer(CONNECT_COMPLETE_TIMER);
         if (mEventCallback != null) {
             mEventCallback.onConnected(this);
         }
     }
 
-    @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        if (DBG) {
-            Log.d(TAG, "onDescriptorWrite  " + descriptor.getUuid());
-        }
-
-        if (mSensorNotification == null) {
-            Log.w(TAG, "onDescriptorWrite: mSensorNotification not found...");
-            return;
-        }
-        boolean success = mGattManager.setCharacteristicNotification(mSensorNotification,
-                mEnableSensorNotifications);
-        if (success) {
-            mSensorNotificationsEnabled = mEnableSensorNotifications;
+    private final GattOperation.Listener mClientConfigWriteListener = new GattOperation.Listener() {
+        @Override
+        public void onComplete(GattOperation op) {
+            if (DBG) {
+                Log.d(TAG, "onClientConfigWrite: status=" + op.getStatus());
+            }
+            if (op.getStatus() == GattOperation.STATUS_TIMEOUT
+                    || op.getStatus() == GattOperation.STATUS_CANCELLED) {
+                return;
+            }
+            if (mSensorNotification == null) {
+                Log.w(TAG, "onClientConfigWrite: mSensorNotification not found...");
+                return;
+            }
+            boolean success = mGattManager.setCharacteristicNotification(mSensorNotification,
+                    mEnableSensorNotifications);
+            if (success) {
+                mSensorNotificationsEnabled = mEnableSensorNotifications;
+                if (mSensorNotificationsEnabled) {
+                    mConnectStopwatch.mark(ConnectStopwatch.PHASE_NOTIFICATIONS_ENABLED,
+                            System.nanoTime());
+                }
+            }
+            Log.d(TAG, "onClientConfigWrite(): set char notification status success= " + success);
+            Log.d(TAG, "onClientConfigWrite(): mSensorNotificationsEnabled = "
+                    + mSensorNotificationsEnabled);
         }
-        Log.d(TAG,"onDescriptorWrite(): set char notification status success= " + success );
-        Log.d(TAG,"onDescriptorWrite(): mSensorNotificationsEnabled = " + mSensorNotificationsEnabled);
-    }
+    };
 
-    @Override
-    public void onCharacteristicRead(BluetoothGatt gatt,
-            BluetoothGattCharacteristic characteristic, int status) {
-        if (DBG) {
-            Log.d(TAG, "onCharacteristicRead  " + characteristic.getUuid());
-        }
-
-        if (BATTERY_LEVEL_UUID.equals(characteristic.getUuid())) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                try {
-                    int batteryLevel = characteristic.getIntValue(
-                            BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                    if (mEventCallback != null) {
-                        mEventCallback.onBatteryStatus(this, batteryLevel);
-                    }
-                } catch (Throwable t) {
-                    Log.e(TAG, "Unable to read battery level", t);
-                    return;
+    private final GattOperation.Listener mBatteryLevelReadListener = new GattOperation.Listener() {
+        @Override
+        public void onComplete(GattOperation op) {
+            if (DBG) {
+                Log.d(TAG, "onBatteryLevelRead: status=" + op.getStatus());
+            }
+            if (op.getStatus() == GattOperation.STATUS_CANCELLED) {
+                return;
+            }
+            byte[] value = op.getValue();
+            if (op.isSuccess() && value != null && value.length > 0) {
+                if (mEventCallback != null) {
+                    mEventCallback.onBatteryStatus(SenseDeviceState.this, value[0] & 0xFF);
                 }
-            } else {
+            } else if (op.getStatus() != GattOperation.STATUS_TIMEOUT) {
                 // Read right away for error case
-                mGattManager.read(mBatteryLevel);
+                readBatteryLevel(GattRequestManager.PRIORITY_BACKGROUND);
                 return;
             }
 
@@ -317,21 +426,52 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
                 getBatteryStatus(true);
             }
         }
+    };
+
+    private void readBatteryLevel(int priority) {
+        if (mBatteryLevel != null) {
+            mGattManager.read(mBatteryLevel, priority).then(mBatteryLevelReadListener);
+        }
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt,
             BluetoothGattCharacteristic characteristic) {
-        if (SENSOR_NOTIFICATION_UUID.equals(characteristic.getUuid())) {
-            byte[] value = characteristic.getValue();
-            if (mEventCallback != null) {
-                mEventCallback.onSensorData(this, value);
+        if (SENSOR_NOTIFICATION_UUID.equals(characteristic.getUuid())
+                && !mSensorNotificationsSuspended) {
+            onSensorPacket(characteristic.getValue());
+        }
+    }
+
+    /**
+     * Process a sensor notification payload, received from the tag or
+     * replayed from a {@link PacketCapture}
+     */
+    @Override
+    public void onSensorPacket(byte[] value) {
+        long nowNs = System.nanoTime();
+        mPacketStats.record(value == null ? 0 : value.length, nowNs);
+        if (mConnectStopwatch.mark(ConnectStopwatch.PHASE_FIRST_SAMPLE, nowNs)) {
+            Log.i(TAG, "Time to first sample " + mConnectStopwatch.getTimeToFirstSampleMs()
+                    + "ms (" + mConnectStopwatch + ")");
+        }
+        PacketCapture.Writer capture = mPacketCapture;
+        if (capture != null && value != null) {
+            try {
+                capture.write(value, nowNs);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write packet capture", e);
+                mPacketCapture = null;
             }
         }
+        if (mEventCallback != null) {
+            mEventCallback.onSensorData(this, value);
+        }
     }
 
     public boolean pairIfNeeded() {
         if (Settings.PAIRNG_REQUIRED && mDevice != null
+                && mGattManager.getTransport().supportsPairing()
                 && mDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
             try {
                 mConnectAfterBonding = true;
@@ -352,7 +492,7 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
         if (mConnectAfterBonding) {
             mConnectAfterBonding = false;
             if (paired) {
-                mGattManager.connect();
+                connect();
             } else {
                 if (mEventCallback != null) {
                     mEventCallback.onDisconnected(this);
@@ -386,11 +526,18 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
                     + mSensorNotificationsEnabled);
         }
 
+        GattOperation pending = mClientConfigWrite;
+        if (pending != null && !pending.isDone() && enable == mEnableSensorNotifications) {
+            // Already enabled ahead of the application on a fast reconnect
+            return true;
+        }
+
         mEnableSensorNotifications = enable; // Set flag used in callback
         try {
-            mGattManager.write(mSensorNotificationClientConfig,
+            mClientConfigWrite = mGattManager.write(mSensorNotificationClientConfig,
                     mEnableSensorNotifications ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
-                            : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                            : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE).then(
+                    mClientConfigWriteListener);
         } catch (Throwable t) {
             Log.e(TAG, "enableSensorNotifications: error", t);
             return false;
@@ -421,13 +568,13 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
         if (!mIsConnectedAndAvailable) {
             return;
         }
-        cancelBatteryStatus();
-        mGattManager.removeRequest(GattRequestManager.REQUEST_READ_CHAR, mBatteryLevel);
+        // A read already queued or in flight is merged with the new one
+        mHandler.removeMessages(GET_BATTERY_STATUS);
         if (delayed) {
             mHandler.sendEmptyMessageDelayed(GET_BATTERY_STATUS,
                     Settings.BATTERY_STATUS_INTERVAL_MS);
         } else {
-            mGattManager.read(mBatteryLevel, true);
+            readBatteryLevel(GattRequestManager.PRIORITY_INTERACTIVE);
         }
     }
 
@@ -436,12 +583,11 @@ public class SenseDeviceState extends BluetoothGattCallback implements Handler.C
         if (DBG) {
             Log.d(TAG, "onAppInfoRead");
         }
-
-        OtaAppInfoReader reader = mOtaAppReader;
-        GattRequestManager gattManager = mGattManager;
-        if (gattManager != null && reader != null) {
-            gattManager.removeCallback(reader);
+        if (success && info != null) {
+            mAttributeCache.setFirmwareVersion(mDevice.getAddress(), info.mAppId + "."
+                    + info.mMajorVersion + "." + info.mMinorVersion);
         }
+
         if (mEventCallback != null) {
             mEventCallback.onAppInfoRead(this, success, info);
         }
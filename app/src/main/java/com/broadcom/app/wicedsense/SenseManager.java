@@ -17,10 +17,13 @@
  ******************************************************************************/
 package com.broadcom.app.wicedsense;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import com.broadcom.app.wicedsmart.ota.OtaAppInfo;
 import com.broadcom.app.wicedsmart.ota.OtaAppInfoReader;
 import com.broadcom.util.GattRequestManager;
+import com.broadcom.util.OrientationFilter;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -48,10 +51,63 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
     public static final int EVENT_CONNECTED = 10;
     public static final int EVENT_DISCONNECTED = 11;
     public static final int EVENT_DEVICE_UNSUPPORTED = 12;
-    public static final int EVENT_SENSOR_DATA = 50;
     public static final int EVENT_BATTERY_STATUS = 60;
     public static final int EVENT_APP_INFO = 70;
 
+    /**
+     * Sent when an alert becomes active (arg2 = 1) or clears (arg2 = 0). arg1
+     * is the id of the {@link AlertRule}
+     */
+    public static final int EVENT_ALERT = 80;
+
+    /**
+     * Number of decoded samples buffered between the GATT callback and the
+     * sensor data readers. A reader that falls further behind loses the oldest
+     * samples
+     */
+    private static final int SENSOR_SAMPLE_RING_SIZE = 256;
+
+    /**
+     * Message sent to the ingest handler when new samples are available for
+     * the sample sinks
+     */
+    private static final int INGEST_SENSOR_SAMPLES = 1;
+
+    /**
+     * Directory of the sample history, relative to the application files
+     * directory
+     */
+    private static final String HISTORY_DIR = "history";
+
+    /**
+     * Longest gap between motion samples integrated by the orientation
+     * filter. After a longer gap the filter is reset
+     */
+    private static final long ORIENTATION_MAX_GAP_MS = 1000;
+
+    /**
+     * Address reported for the simulated WICED Sense tag
+     */
+    private static final String SIMULATED_DEVICE_ADDRESS = "00:00:00:00:00:00";
+
+    private static final float GYRO_RADIANS_PER_LSB = (float) Math
+            .toRadians(SensorDataParser.SENSOR_GYRO_DPS_PER_LSB);
+
+    /**
+     * A sensor data reader and the handler used to wake it up
+     */
+    private static class SensorDataConsumer {
+        final SensorSampleRing.Reader mReader;
+        final Handler mHandler;
+        final int mWakeupWhat;
+
+        SensorDataConsumer(SensorSampleRing.Reader reader, Handler handler, int wakeupWhat) {
+            mReader = reader;
+            mHandler = handler;
+            mWakeupWhat = wakeupWhat;
+        }
+    }
+
     private static SenseManager sService;
 
     public static synchronized SenseManager getInstance() {
@@ -78,9 +134,59 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
     private BluetoothManager mBluetoothManager;
     private SenseDeviceState mDeviceState;
     private final ArrayList<Handler> mEventCallbackHandlers = new ArrayList<Handler>();
+    private volatile Handler[] mEventCallbackHandlerArray = new Handler[0];
+    private final SensorSampleRing mSensorSampleRing = new SensorSampleRing(
+            SENSOR_SAMPLE_RING_SIZE);
+    private final ArrayList<SensorDataConsumer> mSensorDataConsumers = new ArrayList<SensorDataConsumer>();
+    private volatile SensorDataConsumer[] mSensorDataConsumerArray = new SensorDataConsumer[0];
+    private final ArrayList<SensorSampleSink> mSampleSinks = new ArrayList<SensorSampleSink>();
+    private volatile SensorSampleSink[] mSampleSinkArray = new SensorSampleSink[0];
+    private final SensorSample mIngestSample = new SensorSample();
+    private SensorSampleRing.Reader mIngestReader;
+    private Handler mIngestHandler;
+    private SampleStore mSampleStore;
+    private final RollingAggregator mRollingAggregator = new RollingAggregator();
+    private AlertEngine mAlertEngine;
+    private PacketCapture.Writer mPacketCapture;
+    private PacketReplayer mPacketReplayer;
+    private Thread mReplayThread;
+    private final OrientationFilter mOrientationFilter = new OrientationFilter();
+    private long mLastMotionTimeMs;
     private boolean mIsOtaUpdateMode;
     private HandlerThread mHandlerThread;
 
+    private final AlertEngine.Listener mAlertListener = new AlertEngine.Listener() {
+        @Override
+        public void onAlert(int ruleId, boolean active, float value, long timeMs) {
+            if (DBG) {
+                Log.d(TAG, "onAlert: rule " + ruleId + (active ? " active " : " cleared ")
+                        + value);
+            }
+            Handler[] eventCallbacks = mEventCallbackHandlerArray;
+            for (int i = 0; i < eventCallbacks.length; i++) {
+                Handler cb = eventCallbacks[i];
+                if (cb != null) {
+                    try {
+                        cb.sendMessage(cb.obtainMessage(EVENT_ALERT, ruleId, active ? 1 : 0));
+                    } catch (Throwable t) {
+                        Log.w(TAG, "onAlert error, callback #" + i, t);
+                    }
+                }
+            }
+        }
+    };
+
+    private final Handler.Callback mIngestCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (msg.what == INGEST_SENSOR_SAMPLES) {
+                ingestSensorSamples();
+                return true;
+            }
+            return false;
+        }
+    };
+
     @Override
     public void onCreate() {
         if (DBG) {
@@ -97,6 +203,15 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
         }
         mHandlerThread = new HandlerThread("SenseManagerHandlerThread");
         mHandlerThread.start();
+        mIngestHandler = new Handler(mHandlerThread.getLooper(), mIngestCallback);
+        addSampleSink(mRollingAggregator);
+        if (Settings.HISTORY_ENABLED) {
+            mSampleStore = new SampleStore(new File(getFilesDir(), HISTORY_DIR),
+                    Settings.HISTORY_SEGMENT_SIZE, SampleStore.getSegmentsForRetention(
+                            Settings.HISTORY_SEGMENT_SIZE, Settings.HISTORY_RETENTION_MS,
+                            Settings.HISTORY_SAMPLE_RATE_HZ));
+            addSampleSink(mSampleStore);
+        }
     }
 
     @Override
@@ -104,8 +219,22 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
         if (DBG) {
             Log.d(TAG, "onDestroy()");
         }
+        if (mIngestReader != null) {
+            unregisterSensorDataReader(mIngestReader);
+            mIngestReader = null;
+        }
+        if (mSampleStore != null) {
+            final SampleStore store = mSampleStore;
+            mIngestHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    store.close();
+                }
+            });
+        }
         if (mHandlerThread != null) {
-            mHandlerThread.quit();
+            // Let the ingest handler finish writing the sample history
+            mHandlerThread.quitSafely();
         }
         super.onDestroy();
     }
@@ -134,37 +263,332 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
             Log.d(TAG, "stop()");
         }
         mIsStarted = false;
+        stopReplay();
+        stopPacketCapture();
         GattRequestManager gattManager = mDeviceState == null ? null : mDeviceState
                 .getGattManager();
         if (gattManager != null) {
             gattManager.disconnect(true);
         }
-        mEventCallbackHandlers.clear();
+        synchronized (mEventCallbackHandlers) {
+            mEventCallbackHandlers.clear();
+            updateEventCallbackHandlerArray();
+        }
+        synchronized (mSensorDataConsumers) {
+            mSensorDataConsumers.clear();
+            mSensorDataConsumerArray = new SensorDataConsumer[0];
+        }
+        mIngestReader = null;
         super.stopSelf();
         synchronized (SenseManager.class) {
             sService = null;
         }
     }
 
+    /**
+     * Rebuild the array of event handlers used when sending events. Called with
+     * mEventCallbackHandlers locked, so that sending an event does not need to
+     * copy the list
+     */
+    private void updateEventCallbackHandlerArray() {
+        Handler[] handlers = new Handler[mEventCallbackHandlers.size()];
+        mEventCallbackHandlers.toArray(handlers);
+        mEventCallbackHandlerArray = handlers;
+    }
+
     public void registerEventCallbackHandler(Handler callback) {
-        if (mEventCallbackHandlers.contains(callback)) {
-            Log.w(TAG, "registerEventCallbackHandler: callback already registered");
-            return;
+        synchronized (mEventCallbackHandlers) {
+            if (mEventCallbackHandlers.contains(callback)) {
+                Log.w(TAG, "registerEventCallbackHandler: callback already registered");
+                return;
+            }
+            mEventCallbackHandlers.add(callback);
+            updateEventCallbackHandlerArray();
         }
-        mEventCallbackHandlers.add(callback);
     }
 
     public void unregisterEventCallbackHandler(Handler callback) {
-        mEventCallbackHandlers.remove(callback);
+        synchronized (mEventCallbackHandlers) {
+            if (mEventCallbackHandlers.remove(callback)) {
+                updateEventCallbackHandlerArray();
+            }
+        }
+    }
+
+    /**
+     * Register a reader of decoded sensor samples. When new samples are
+     * available, a single message with the given what code is sent to the
+     * handler. The handler must call
+     * {@link SensorSampleRing.Reader#clearWakeup()} and then drain the reader
+     * with {@link SensorSampleRing.Reader#read(SensorSample)}
+     *
+     * @param handler
+     * @param wakeupWhat
+     * @return the reader
+     */
+    public SensorSampleRing.Reader registerSensorDataReader(Handler handler, int wakeupWhat) {
+        SensorSampleRing.Reader reader = mSensorSampleRing.newReader();
+        synchronized (mSensorDataConsumers) {
+            mSensorDataConsumers.add(new SensorDataConsumer(reader, handler, wakeupWhat));
+            updateSensorDataConsumerArray();
+        }
+        return reader;
+    }
+
+    public void unregisterSensorDataReader(SensorSampleRing.Reader reader) {
+        synchronized (mSensorDataConsumers) {
+            for (int i = mSensorDataConsumers.size() - 1; i >= 0; i--) {
+                if (mSensorDataConsumers.get(i).mReader == reader) {
+                    mSensorDataConsumers.remove(i);
+                }
+            }
+            updateSensorDataConsumerArray();
+        }
+    }
+
+    private void updateSensorDataConsumerArray() {
+        SensorDataConsumer[] consumers = new SensorDataConsumer[mSensorDataConsumers.size()];
+        mSensorDataConsumers.toArray(consumers);
+        mSensorDataConsumerArray = consumers;
+    }
+
+    /**
+     * Add a sink that receives every decoded sample on the SenseManager
+     * handler thread
+     *
+     * @param sink
+     */
+    public void addSampleSink(SensorSampleSink sink) {
+        synchronized (mSampleSinks) {
+            if (mSampleSinks.contains(sink)) {
+                return;
+            }
+            mSampleSinks.add(sink);
+            updateSampleSinkArray();
+            if (mIngestReader == null) {
+                mIngestReader = registerSensorDataReader(mIngestHandler, INGEST_SENSOR_SAMPLES);
+            }
+        }
+    }
+
+    public void removeSampleSink(SensorSampleSink sink) {
+        synchronized (mSampleSinks) {
+            if (mSampleSinks.remove(sink)) {
+                updateSampleSinkArray();
+            }
+        }
+    }
+
+    private void updateSampleSinkArray() {
+        SensorSampleSink[] sinks = new SensorSampleSink[mSampleSinks.size()];
+        mSampleSinks.toArray(sinks);
+        mSampleSinkArray = sinks;
+    }
+
+    /**
+     * Get the sample history, or null if it is disabled
+     */
+    public SampleStore getSampleStore() {
+        return mSampleStore;
+    }
+
+    /**
+     * Record the sensor notifications of the current device to a capture file
+     *
+     * @param file
+     * @return false if there is no device or the file cannot be created
+     */
+    public synchronized boolean startPacketCapture(File file) {
+        stopPacketCapture();
+        if (mDeviceState == null) {
+            return false;
+        }
+        try {
+            mPacketCapture = new PacketCapture.Writer(file, System.nanoTime());
+        } catch (IOException e) {
+            Log.e(TAG, "startPacketCapture: unable to create " + file, e);
+            return false;
+        }
+        mDeviceState.setPacketCapture(mPacketCapture);
+        return true;
+    }
+
+    public synchronized void stopPacketCapture() {
+        if (mPacketCapture == null) {
+            return;
+        }
+        if (mDeviceState != null) {
+            mDeviceState.setPacketCapture(null);
+        }
+        try {
+            mPacketCapture.close();
+        } catch (IOException e) {
+            Log.w(TAG, "stopPacketCapture: error closing capture", e);
+        }
+        mPacketCapture = null;
+    }
+
+    /**
+     * Replay a capture file on a background thread, through the current
+     * device state (or straight into the sample ring if there is no device).
+     * The sample ring has a single producer, so a replay is refused while the
+     * tag is connected, and sensor notifications are dropped until the replay
+     * ends
+     *
+     * @param file
+     * @param speed
+     *            1 for the recorded speed, N for N times faster, or
+     *            {@link PacketReplayer#SPEED_MAX}
+     * @return false if the tag is connected
+     */
+    public synchronized boolean startReplay(File file, float speed) {
+        stopReplay();
+        if (isConnectedAndAvailable()) {
+            Log.w(TAG, "startReplay: not replaying while the tag is connected");
+            return false;
+        }
+        PacketSink sink = mDeviceState;
+        if (sink == null) {
+            sink = new PacketSink() {
+                @Override
+                public void onSensorPacket(byte[] packet) {
+                    onSensorData(null, packet);
+                }
+            };
+        } else {
+            mDeviceState.setSensorNotificationsSuspended(true);
+        }
+        final PacketReplayer replayer = new PacketReplayer(file, sink, speed);
+        mPacketReplayer = replayer;
+        mReplayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PacketReplayer.Stats stats = replayer.run();
+                    if (DBG) {
+                        Log.d(TAG, "replay: " + stats);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "replay error", e);
+                }
+                // Resume sensor notifications
+                mIngestHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onReplayFinished(replayer);
+                    }
+                });
+            }
+        }, "PacketReplay");
+        mReplayThread.start();
+        return true;
+    }
+
+    /**
+     * Stop the replay, and wait for the replay thread to deliver its last
+     * packet before resuming sensor notifications
+     */
+    public synchronized void stopReplay() {
+        if (mPacketReplayer == null) {
+            return;
+        }
+        mPacketReplayer.cancel();
+        try {
+            mReplayThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mPacketReplayer = null;
+        mReplayThread = null;
+        if (mDeviceState != null) {
+            mDeviceState.setSensorNotificationsSuspended(false);
+        }
+    }
+
+    private synchronized void onReplayFinished(PacketReplayer replayer) {
+        if (mPacketReplayer == replayer) {
+            stopReplay();
+        }
+    }
+
+    /**
+     * Replace the alert rules. Alerts are sent to the event callback handlers
+     * as {@link #EVENT_ALERT} messages
+     *
+     * @param rules
+     *            the new rules, or null to remove all rules
+     */
+    public void setAlertRules(AlertRule[] rules) {
+        AlertEngine engine = rules == null || rules.length == 0 ? null : new AlertEngine(
+                rules, mAlertListener);
+        synchronized (mSampleSinks) {
+            if (mAlertEngine != null) {
+                removeSampleSink(mAlertEngine);
+            }
+            mAlertEngine = engine;
+            if (engine != null) {
+                addSampleSink(engine);
+            }
+        }
+    }
+
+    /**
+     * Get the rolling statistics of the environmental sensor values. Can be
+     * queried from any thread
+     */
+    public RollingAggregator getRollingAggregator() {
+        return mRollingAggregator;
+    }
+
+    /**
+     * Drain the ingest reader into the sample sinks. Runs on the SenseManager
+     * handler thread
+     */
+    private void ingestSensorSamples() {
+        SensorSampleRing.Reader reader = mIngestReader;
+        if (reader == null) {
+            return;
+        }
+        reader.clearWakeup();
+        SensorSample sample = mIngestSample;
+        while (reader.read(sample)) {
+            SensorSampleSink[] sinks = mSampleSinkArray;
+            for (int i = 0; i < sinks.length; i++) {
+                try {
+                    sinks[i].onSensorSample(sample);
+                } catch (Throwable t) {
+                    Log.w(TAG, "ingestSensorSamples error, sink #" + i, t);
+                }
+            }
+        }
     }
 
     public synchronized void setDevice(BluetoothDevice device) {
+        setDeviceState(new SenseDeviceState(this, device, mHandlerThread.getLooper(), this));
+    }
+
+    /**
+     * Use a simulated WICED Sense tag instead of a Bluetooth device, to run
+     * the application without hardware
+     *
+     * @param config
+     *            behaviour of the simulated tag
+     */
+    public synchronized void setSimulatedDevice(SimulatedSensePeripheral.Config config) {
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(SIMULATED_DEVICE_ADDRESS);
+        setDeviceState(new SenseDeviceState(this, device, new SimulatedGattTransport(config),
+                mHandlerThread.getLooper(), this));
+    }
+
+    private void setDeviceState(SenseDeviceState deviceState) {
+        stopReplay();
+        stopPacketCapture();
         GattRequestManager gattManager = mDeviceState == null ? null : mDeviceState
                 .getGattManager();
         if (gattManager != null) {
             gattManager.disconnect(true);
         }
-        mDeviceState = new SenseDeviceState(this, device, mHandlerThread.getLooper(), this);
+        mDeviceState = deviceState;
         if (Settings.CONNECT_AFTER_DEVICE_PICK) {
             connect();
         }
@@ -190,7 +614,7 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
             return false;
         }
         if (!mDeviceState.pairIfNeeded()) {
-            mDeviceState.getGattManager().connect();
+            mDeviceState.connect();
         }
         return true;
     }
@@ -213,21 +637,11 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
         if (mDeviceState == null) {
             return false;
         }
-        GattRequestManager gattManager = null;
-        OtaAppInfoReader reader = null;
-        if (mDeviceState != null) {
-            gattManager = mDeviceState.getGattManager();
-            reader = mDeviceState.getAppInfoReader();
-        }
-        if (gattManager == null || reader == null) {
+        OtaAppInfoReader reader = mDeviceState.getAppInfoReader();
+        if (reader == null) {
             return false;
         }
-        gattManager.addCallback(reader);
-        boolean success = reader.read();
-        if (!success) {
-            gattManager.removeCallback(reader);
-        }
-        return success;
+        return reader.read();
     }
 
     public void getBatteryStatus() {
@@ -275,11 +689,9 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
     }
 
     private void sendEvent(int eventType, SenseDeviceState state) {
-        @SuppressWarnings("unchecked")
-        ArrayList<Handler> eventCallbacks = (ArrayList<Handler>) mEventCallbackHandlers.clone();
-        int sz = eventCallbacks == null ? 0 : eventCallbacks.size();
-        for (int i = 0; i < sz; i++) {
-            Handler cb = eventCallbacks.get(i);
+        Handler[] eventCallbacks = mEventCallbackHandlerArray;
+        for (int i = 0; i < eventCallbacks.length; i++) {
+            Handler cb = eventCallbacks[i];
             if (cb != null) {
                 try {
                     Message event = cb.obtainMessage(eventType, state);
@@ -308,11 +720,9 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
 
     @Override
     public void onBatteryStatus(SenseDeviceState deviceState, int batteryLevel) {
-        @SuppressWarnings("unchecked")
-        ArrayList<Handler> eventCallbacks = (ArrayList<Handler>) mEventCallbackHandlers.clone();
-        int sz = eventCallbacks == null ? 0 : eventCallbacks.size();
-        for (int i = 0; i < sz; i++) {
-            Handler cb = eventCallbacks.get(i);
+        Handler[] eventCallbacks = mEventCallbackHandlerArray;
+        for (int i = 0; i < eventCallbacks.length; i++) {
+            Handler cb = eventCallbacks[i];
             if (cb != null) {
                 try {
                     Message event = cb.obtainMessage(EVENT_BATTERY_STATUS, batteryLevel,
@@ -325,19 +735,67 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
         }
     }
 
+    /**
+     * Feed a motion sample to the orientation filter and store the resulting
+     * orientation in the sample. The time step is taken from the sample
+     * timestamps, and only the sensors present in the packet are used
+     */
+    private void updateOrientation(SensorSample sample) {
+        long elapsedMs = sample.mTimestampMs - mLastMotionTimeMs;
+        mLastMotionTimeMs = sample.mTimestampMs;
+        if (elapsedMs < 0 || elapsedMs > ORIENTATION_MAX_GAP_MS) {
+            mOrientationFilter.reset();
+            elapsedMs = 0;
+        }
+        OrientationFilter f = mOrientationFilter;
+        int mask = sample.mMask;
+        float gx = sample.mGyroX * GYRO_RADIANS_PER_LSB;
+        float gy = sample.mGyroY * GYRO_RADIANS_PER_LSB;
+        float gz = sample.mGyroZ * GYRO_RADIANS_PER_LSB;
+        float dt = elapsedMs / 1000f;
+        if (!SensorDataParser.accelerometerHasChanged(mask)) {
+            f.updateGyro(gx, gy, gz, dt);
+        } else if (!SensorDataParser.magnetometerHasChanged(mask)) {
+            f.updateImu(gx, gy, gz, sample.mAccelX, sample.mAccelY, sample.mAccelZ, dt);
+        } else {
+            f.update(gx, gy, gz, sample.mAccelX, sample.mAccelY, sample.mAccelZ,
+                    sample.mMagnoX, sample.mMagnoY, sample.mMagnoZ, dt);
+        }
+        sample.mQuatW = f.getQuaternionW();
+        sample.mQuatX = f.getQuaternionX();
+        sample.mQuatY = f.getQuaternionY();
+        sample.mQuatZ = f.getQuaternionZ();
+        sample.mHeading = f.getHeading();
+        sample.mPitch = f.getPitch();
+        sample.mRoll = f.getRoll();
+    }
+
+    /**
+     * Invoked on the Bluetooth callback thread for each sensor notification.
+     * Decodes the packet straight into the next ring slot and wakes up the
+     * readers that are not already scheduled. Does not block or allocate
+     */
     @Override
     public void onSensorData(SenseDeviceState deviceState, byte[] sensorData) {
-        @SuppressWarnings("unchecked")
-        ArrayList<Handler> eventCallbacks = (ArrayList<Handler>) mEventCallbackHandlers.clone();
-        int sz = eventCallbacks == null ? 0 : eventCallbacks.size();
-        for (int i = 0; i < sz; i++) {
-            Handler cb = eventCallbacks.get(i);
-            if (cb != null) {
+        SensorSample sample = mSensorSampleRing.claim();
+        if (!SensorDataParser.decode(sensorData, sample)) {
+            return;
+        }
+        sample.mTimestampMs = System.currentTimeMillis();
+        if (sample.mPacketLength == SensorDataParser.SENSOR_MOTION_PACKET_LENGTH) {
+            updateOrientation(sample);
+        }
+        mSensorSampleRing.publish();
+
+        SensorDataConsumer[] consumers = mSensorDataConsumerArray;
+        for (int i = 0; i < consumers.length; i++) {
+            SensorDataConsumer c = consumers[i];
+            if (c.mReader.requestWakeup()) {
                 try {
-                    Message event = cb.obtainMessage(EVENT_SENSOR_DATA, sensorData);
-                    cb.sendMessage(event);
+                    c.mHandler.sendEmptyMessage(c.mWakeupWhat);
                 } catch (Throwable t) {
-                    Log.w(TAG, "onSensorData error, callback #" + i, t);
+                    c.mReader.clearWakeup();
+                    Log.w(TAG, "onSensorData error, reader #" + i, t);
                 }
             }
         }
@@ -345,11 +803,9 @@ public class SenseManager extends Service implements SenseDeviceState.EventCallb
 
     @Override
     public void onAppInfoRead(SenseDeviceState deviceState, boolean success, OtaAppInfo info) {
-        @SuppressWarnings("unchecked")
-        ArrayList<Handler> eventCallbacks = (ArrayList<Handler>) mEventCallbackHandlers.clone();
-        int sz = eventCallbacks == null ? 0 : eventCallbacks.size();
-        for (int i = 0; i < sz; i++) {
-            Handler cb = eventCallbacks.get(i);
+        Handler[] eventCallbacks = mEventCallbackHandlerArray;
+        for (int i = 0; i < eventCallbacks.length; i++) {
+            Handler cb = eventCallbacks[i];
             if (cb != null) {
                 try {
                     Message event = cb.obtainMessage(EVENT_APP_INFO, success ? 1 : 0, 0, info);
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
 
+import com.broadcom.app.wicedsmart.ota.ui.FirmwareCatalog;
 import com.broadcom.app.wicedsmart.ota.ui.OtaResource;
 import com.broadcom.app.wicedsmart.ota.ui.OtaUiHelper;
 
@@ -69,12 +70,51 @@ public class Settings {
      */
     public static final int SERVICE_DISCOVERY_RETRY = 2;
 
+    /**
+     * If true, a WICED Sense tag whose GATT layout was cached on a previous
+     * connection is reconnected without the connect and service discovery
+     * delays, and its sensor notifications are enabled as soon as the cached
+     * layout validates
+     */
+    public static final boolean FAST_RECONNECT = true;
+
+    /**
+     * Number of attempts to reconnect to the WICED Sense tag after the
+     * connection is lost, before giving up (-1 for no limit). The attempts
+     * are spaced with an exponential backoff, up to 30 seconds apart
+     */
+    public static final int RECONNECT_MAX_ATTEMPTS = 20;
+
     /**
      * If true, a firmware update check will be performed after the WICED Sense
      * tag is connected
      */
     public static final boolean CHECK_FOR_UPDATES_ON_CONNECT = true;
 
+    /**
+     * If true, decoded sensor samples are recorded to the sample history
+     * store
+     */
+    public static final boolean HISTORY_ENABLED = true;
+
+    /**
+     * Size of each sample history segment file (in bytes)
+     */
+    public static final int HISTORY_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * How long sample history is kept (in ms) at
+     * {@link #HISTORY_SAMPLE_RATE_HZ}. The number of segment files kept is
+     * sized from both; the oldest segment is deleted when a new one is created
+     */
+    public static final long HISTORY_RETENTION_MS = 7L * 24 * 60 * 60 * 1000; // 1 week
+
+    /**
+     * Sample rate used to size the sample history (motion and environmental
+     * notifications per second)
+     */
+    public static final int HISTORY_SAMPLE_RATE_HZ = 20;
+
     /**
      * Enable debug tracing to adb logcat logs
      */
@@ -118,6 +158,7 @@ public class Settings {
     private static String sTemperatureScaleType;
     private static File sOtaDirectory;
     private static FilenameFilter sOtaFileFilter;
+    private static FirmwareCatalog sFirmwareCatalog;
     private static final ArrayList<SettingChangeListener> mChangeListeners = new ArrayList<Settings.SettingChangeListener>();
 
     private static OnSharedPreferenceChangeListener mPrefListener = new OnSharedPreferenceChangeListener() {
@@ -178,7 +219,7 @@ public class Settings {
         } catch (Throwable t) {
         }
         try {
-            appId = Integer.parseInt(ctx.getString(R.string.default_ota_fw_version_minor));
+            appId = Integer.parseInt(ctx.getString(R.string.default_ota_fw_app_id));
         } catch (Throwable t) {
         }
 
@@ -187,9 +228,9 @@ public class Settings {
         } catch (Throwable t) {
         }
 
-        sDefaultOtaResource = OtaUiHelper.createRawOtaResource(
+        sDefaultOtaResource = OtaUiHelper.createRawOtaResource(ctx,
                 ctx.getString(R.string.default_ota_fw_version_name), appId, major, minor,
-                ctx.getResources(), R.raw.wiced_sense_1_3_update,mandatory);
+                R.raw.wiced_sense_1_3_update, mandatory);
         sOtaDirectory = new File(Environment.getExternalStorageDirectory(), "broadcom/wicedsense");
         sOtaFileFilter = new FilenameFilter() {
             @Override
@@ -197,6 +238,8 @@ public class Settings {
                 return filename.startsWith("wiced_sense") && filename.endsWith(".ota.bin.signed");
             }
         };
+        sFirmwareCatalog = new FirmwareCatalog(ctx, sOtaDirectory, sOtaFileFilter);
+        sFirmwareCatalog.refreshAsync();
     }
 
     public static void addChangeListener(SettingChangeListener l) {
@@ -262,4 +305,11 @@ public class Settings {
         return sOtaFileFilter;
     }
 
+    /**
+     * Catalog of the firmware images of the OTA directory
+     */
+    static FirmwareCatalog getFirmwareCatalog() {
+        return sFirmwareCatalog;
+    }
+
 }
\ No newline at end of file
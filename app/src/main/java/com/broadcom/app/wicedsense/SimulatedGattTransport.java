@@ -0,0 +1,261 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import com.broadcom.util.GattTransport;
+
+/**
+ * {@link GattTransport} over a {@link SimulatedSensePeripheral}, so the
+ * GattRequestManager, SenseDeviceState and OtaManager can be driven without a
+ * WICED Sense tag. The callback is invoked from the simulator thread with a
+ * null BluetoothGatt
+ *
+ */
+public class SimulatedGattTransport implements GattTransport, SimulatedSensePeripheral.Link {
+    private final SimulatedSensePeripheral.Config mConfig;
+    private final List<BluetoothGattService> mServices = new ArrayList<BluetoothGattService>();
+    private SimulatedSensePeripheral mPeripheral;
+    private volatile BluetoothGattCallback mCallback;
+
+    public SimulatedGattTransport(SimulatedSensePeripheral.Config config) {
+        mConfig = config;
+
+        BluetoothGattService sensor = new BluetoothGattService(
+                SimulatedSensePeripheral.SENSOR_SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        sensor.addCharacteristic(newCharacteristic(
+                SimulatedSensePeripheral.SENSOR_NOTIFICATION_UUID,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, true));
+        mServices.add(sensor);
+
+        BluetoothGattService battery = new BluetoothGattService(
+                SimulatedSensePeripheral.BATTERY_SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        battery.addCharacteristic(newCharacteristic(SimulatedSensePeripheral.BATTERY_LEVEL_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ, false));
+        mServices.add(battery);
+
+        BluetoothGattService upgrade = new BluetoothGattService(
+                SimulatedSensePeripheral.UPGRADE_SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        upgrade.addCharacteristic(newCharacteristic(
+                SimulatedSensePeripheral.UPGRADE_CONTROL_POINT_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY, true));
+        upgrade.addCharacteristic(newCharacteristic(SimulatedSensePeripheral.UPGRADE_DATA_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, false));
+        upgrade.addCharacteristic(newCharacteristic(
+                SimulatedSensePeripheral.UPGRADE_APP_INFO_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ, false));
+        mServices.add(upgrade);
+    }
+
+    private static BluetoothGattCharacteristic newCharacteristic(UUID uuid, int properties,
+            boolean clientConfig) {
+        BluetoothGattCharacteristic c = new BluetoothGattCharacteristic(uuid, properties,
+                BluetoothGattCharacteristic.PERMISSION_READ
+                        | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        if (clientConfig) {
+            c.addDescriptor(new BluetoothGattDescriptor(SimulatedSensePeripheral.CLIENT_CONFIG_UUID,
+                    BluetoothGattDescriptor.PERMISSION_READ
+                            | BluetoothGattDescriptor.PERMISSION_WRITE));
+        }
+        return c;
+    }
+
+    /**
+     * The simulated peripheral, or null if not open
+     */
+    public SimulatedSensePeripheral getPeripheral() {
+        return mPeripheral;
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID uuid) {
+        for (int i = 0; i < mServices.size(); i++) {
+            BluetoothGattCharacteristic c = mServices.get(i).getCharacteristic(uuid);
+            if (c != null) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    // ---------------------GattTransport-----------------------------------
+
+    @Override
+    public synchronized boolean connect(boolean autoConnect, BluetoothGattCallback callback) {
+        mCallback = callback;
+        if (mPeripheral == null) {
+            mPeripheral = new SimulatedSensePeripheral(mConfig, this);
+        }
+        mPeripheral.connect();
+        return true;
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (mPeripheral != null) {
+            mPeripheral.disconnect();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mPeripheral != null) {
+            mPeripheral.close();
+            mPeripheral = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mPeripheral != null;
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        if (mPeripheral == null) {
+            return false;
+        }
+        mPeripheral.discoverServices();
+        return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(BluetoothGattCharacteristic c) {
+        if (mPeripheral == null) {
+            return false;
+        }
+        mPeripheral.read(c.getUuid());
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(BluetoothGattCharacteristic c) {
+        if (mPeripheral == null) {
+            return false;
+        }
+        mPeripheral.write(c.getUuid(), c.getValue());
+        return true;
+    }
+
+    @Override
+    public boolean readDescriptor(BluetoothGattDescriptor d) {
+        // Nothing in the application reads descriptors
+        return false;
+    }
+
+    @Override
+    public synchronized boolean writeDescriptor(BluetoothGattDescriptor d) {
+        if (mPeripheral == null) {
+            return false;
+        }
+        mPeripheral.writeDescriptor(d.getCharacteristic().getUuid(), d.getUuid(), d.getValue());
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic c, boolean enable) {
+        return mPeripheral != null;
+    }
+
+    @Override
+    public boolean supportsPairing() {
+        return false;
+    }
+
+    @Override
+    public BluetoothGatt getGatt() {
+        return null;
+    }
+
+    // ---------------------SimulatedSensePeripheral.Link-------------------
+
+    @Override
+    public void onConnectionStateChanged(boolean connected, int status) {
+        BluetoothGattCallback cb = mCallback;
+        if (cb != null) {
+            cb.onConnectionStateChange(null, status, connected ? BluetoothGatt.STATE_CONNECTED
+                    : BluetoothGatt.STATE_DISCONNECTED);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+        BluetoothGattCallback cb = mCallback;
+        if (cb != null) {
+            cb.onServicesDiscovered(null, status);
+        }
+    }
+
+    @Override
+    public void onNotification(UUID characteristic, byte[] value) {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        BluetoothGattCallback cb = mCallback;
+        if (c != null && cb != null) {
+            c.setValue(value);
+            cb.onCharacteristicChanged(null, c);
+        }
+    }
+
+    @Override
+    public void onReadResponse(UUID characteristic, int status, byte[] value) {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        BluetoothGattCallback cb = mCallback;
+        if (c != null && cb != null) {
+            if (value != null) {
+                c.setValue(value);
+            }
+            cb.onCharacteristicRead(null, c, status);
+        }
+    }
+
+    @Override
+    public void onWriteResponse(UUID characteristic, int status) {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        BluetoothGattCallback cb = mCallback;
+        if (c != null && cb != null) {
+            cb.onCharacteristicWrite(null, c, status);
+        }
+    }
+
+    @Override
+    public void onDescriptorWriteResponse(UUID characteristic, UUID descriptor, int status) {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        BluetoothGattCallback cb = mCallback;
+        if (c != null && cb != null) {
+            cb.onDescriptorWrite(null, c.getDescriptor(descriptor), status);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsmart.ota;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Read-only firmware image with random access by offset. The image is either
+ * memory-mapped from a file or loaded once into a single buffer, so packets
+ * are copied straight from it into the caller's packet arrays
+ *
+ */
+public class FirmwareSource {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ByteBuffer mBuffer;
+    private final int mLength;
+    private String mDigest;
+
+    private FirmwareSource(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mLength = buffer.remaining();
+    }
+
+    /**
+     * Map a firmware file. The file is not kept open
+     *
+     * @param file
+     * @return the firmware source
+     * @throws IOException
+     */
+    public static FirmwareSource map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new FirmwareSource(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Map a firmware file whose digest is already known, e.g. from the
+     * firmware catalog, so that it is not computed again
+     *
+     * @param file
+     * @param digest
+     *            the {@link #getDigest()} of the file, or null if not known
+     * @return the firmware source
+     * @throws IOException
+     */
+    public static FirmwareSource map(File file, String digest) throws IOException {
+        FirmwareSource source = map(file);
+        source.mDigest = digest;
+        return source;
+    }
+
+    /**
+     * Read a firmware image into memory. The stream is not closed
+     *
+     * @param in
+     * @param length
+     *            length of the image (in bytes)
+     * @return the firmware source
+     * @throws IOException
+     *             if the stream has fewer than length bytes
+     */
+    public static FirmwareSource load(InputStream in, int length) throws IOException {
+        byte[] image = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int bytesRead = in.read(image, offset, length - offset);
+            if (bytesRead < 0) {
+                throw new EOFException("Firmware image truncated at " + offset + " of "
+                        + length + " bytes");
+            }
+            offset += bytesRead;
+        }
+        return new FirmwareSource(ByteBuffer.wrap(image));
+    }
+
+    /**
+     * @return the length of the image (in bytes)
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * SHA-1 digest of the image, as a hex string. Computed on the first call,
+     * which reads the whole image: avoid calling it on the UI thread
+     */
+    public synchronized String getDigest() {
+        if (mDigest == null) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            mBuffer.position(0);
+            md.update(mBuffer);
+            byte[] digest = md.digest();
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+            }
+            mDigest = new String(hex);
+        }
+        return mDigest;
+    }
+
+    /**
+     * Copy bytes of the image
+     *
+     * @param offset
+     *            offset in the image
+     * @param dst
+     * @param dstOffset
+     * @param length
+     * @throws IndexOutOfBoundsException
+     *             if the range is not in the image
+     */
+    public synchronized void get(int offset, byte[] dst, int dstOffset, int length) {
+        if (offset < 0 || length > mLength - offset) {
+            throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length);
+        }
+        mBuffer.position(offset);
+        mBuffer.get(dst, dstOffset, length);
+    }
+}
@@ -19,8 +19,6 @@ package com.broadcom.app.wicedsmart.ota;
 
 import java.util.UUID;
 
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.os.Handler;
 import android.os.Looper;
@@ -28,12 +26,10 @@ import android.os.Message;
 import android.util.Log;
 
 import com.broadcom.util.ByteUtils;
+import com.broadcom.util.GattOperation;
 import com.broadcom.util.GattRequestManager;
-import com.broadcom.util.GattRequestManager.GattRequest;
-import com.broadcom.util.GattRequestManager.GattTimeoutCallback;
 
-public class OtaAppInfoReader extends BluetoothGattCallback implements android.os.Handler.Callback,
-        GattTimeoutCallback {
+public class OtaAppInfoReader implements android.os.Handler.Callback {
     private static final String TAG = OtaSettings.TAG_PREFIX + "OtaAppInfoReader";
 
     public interface Callback {
@@ -49,6 +45,16 @@ public class OtaAppInfoReader extends BluetoothGattCallback implements android.o
     private BluetoothGattCharacteristic mAppInfoChar;
     private Handler mEventHandler;
 
+    private final GattOperation.Listener mReadListener = new GattOperation.Listener() {
+        @Override
+        public void onComplete(GattOperation op) {
+            if (!op.isSuccess()) {
+                Log.w(TAG, "read(): error reading characteristic: " + op.getStatus());
+            }
+            sendAppInfoEvent(op.isSuccess(), op.getValue());
+        }
+    };
+
     public OtaAppInfoReader(Callback cb) {
         this(cb, null);
     }
@@ -67,15 +73,6 @@ public class OtaAppInfoReader extends BluetoothGattCallback implements android.o
                 appInfo));
     }
 
-    @Override
-    public void onCharacteristicRead(BluetoothGatt gatt,
-            BluetoothGattCharacteristic characteristic, int status) {
-        if (UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_APP_INFO.equals(characteristic.getUuid())) {
-            byte[] appInfoBytes = characteristic.getValue();
-            sendAppInfoEvent(true, appInfoBytes);
-        }
-    }
-
     @Override
     public boolean handleMessage(Message msg) {
         switch (msg.what) {
@@ -88,22 +85,6 @@ public class OtaAppInfoReader extends BluetoothGattCallback implements android.o
         return false;
     }
 
-    @Override
-    public void onTimeout(GattRequest request) {
-        if (request == null) {
-            return;
-        }
-        BluetoothGattCharacteristic c = request.mCharacteristic;
-        if (c == null) {
-            return;
-        }
-
-        if (UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_APP_INFO.equals(c.getUuid())) {
-            Log.w(TAG, "read(): error timeout reading characeristic...");
-            sendAppInfoEvent(false, null);
-        }
-    }
-
     private void processAppInfoRead(boolean success, byte[] appInfoBytes) {
         OtaAppInfo info = null;
         if (success && appInfoBytes != null && appInfoBytes.length >= 4) {
@@ -125,17 +106,11 @@ public class OtaAppInfoReader extends BluetoothGattCallback implements android.o
         if (mAppInfoChar == null) {
             return false;
         }
-
-        mGattManager.addCallback(this);
-        mGattManager.addTimeoutCallback(this);
         return true;
     }
 
     public void finish() {
-        if (mGattManager != null) {
-            mGattManager.removeCallback(this);
-            mGattManager.removeTimeoutCallback(this);
-        }
+        mEventHandler.removeMessages(EVENT_APP_INFO);
     }
 
     public boolean read() {
@@ -143,7 +118,7 @@ public class OtaAppInfoReader extends BluetoothGattCallback implements android.o
             return false;
         }
 
-        mGattManager.read(mAppInfoChar);
+        mGattManager.read(mAppInfoChar).then(mReadListener);
         return true;
     }
 
@@ -19,7 +19,9 @@ package com.broadcom.app.wicedsmart.ota;
 
 import android.os.Handler;
 import android.os.Handler.Callback;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import android.bluetooth.BluetoothDevice;
@@ -33,14 +35,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 
-import java.io.BufferedInputStream;
 import java.util.UUID;
 import com.broadcom.util.ByteUtils;
+import com.broadcom.util.GattIoThread;
+import com.broadcom.util.GattOperation;
 import com.broadcom.util.GattRequestManager;
-import com.broadcom.util.GattRequestManager.GattRequest;
-import com.broadcom.util.GattRequestManager.GattTimeoutCallback;
+import com.broadcom.util.ReconnectScheduler;
 
-public class OtaManager extends BluetoothGattCallback implements Callback, GattTimeoutCallback {
+public class OtaManager extends BluetoothGattCallback implements Callback {
     public static final int STATE_NONE = 0;
     public static final int STATE_CONNECT = 1;
     public static final int STATE_DISCOVER = 2;
@@ -171,6 +173,7 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
 
     private static final String TAG = OtaSettings.TAG_PREFIX + "OtaManager";
     private static final boolean DBG = OtaSettings.DBG;
+    private static final boolean VDBG = OtaSettings.VDBG;
     static final UUID UUID_WS_SECURE_UPGRADE_SERVICE = UUID
             .fromString("A86ABC2D-D44C-442E-99F7-80059A873E36");
     private static final UUID UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_CONTROL_POINT = UUID
@@ -187,6 +190,18 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
     private static final int EVENT_STATE_CHANGED = 3;
     private static final int EVENT_SEND_PROGRESS = 4;
 
+    // Messages of the state machine, which runs on the GATT I/O thread
+    private static final int MSG_START = 1;
+    private static final int MSG_ABORT = 2;
+    private static final int MSG_PAIRED = 3;
+    private static final int MSG_SERVICES_DISCOVERED = 4;
+    private static final int MSG_NOTIFY_COMPLETED = 5;
+    private static final int MSG_CONTROL_POINT_STATUS = 6;
+    private static final int MSG_DATA_WRITE_ERROR = 7;
+    private static final int MSG_FIRMWARE_PACKET_WRITTEN = 8;
+    private static final int MSG_LINK_LOST = 9;
+    private static final int MSG_RESTART = 10;
+
     private class BluetoothBondingReceiver extends BroadcastReceiver {
 
         @Override
@@ -198,25 +213,52 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
                     && device.equals(d)
                     && (device.getBondState() == BluetoothDevice.BOND_BONDED || device
                             .getBondState() == BluetoothDevice.BOND_BONDING)) {
-                onPaired();
+                mStateHandler.sendEmptyMessage(MSG_PAIRED);
             }
         }
     }
 
     private Context mContext;
     private GattRequestManager mGatt;
+    private volatile boolean mGattRegistered;
     private BluetoothGattService mOtaFwService;
     private BluetoothGattCharacteristic mOtaCharControlPoint;
     private BluetoothGattCharacteristic mOtaCharData;
 
     private BluetoothGattDescriptor mCccDescriptor;
-    private int mFirmwareLength;
-    private BufferedInputStream mFirmwareInputStream;
-    private int mState = STATE_NONE;
+    private FirmwareSource mFirmware;
+    // Digest of mFirmware, computed by startUpdate()
+    private String mFirmwareDigest;
+    private volatile int mState = STATE_NONE;
     private int mFirmwareSendLoopCount;
     private int mFirmwareBytesSent;
+    // Firmware packets not yet written, oldest first, in a ring of reused
+    // packet arrays. The first mFirmwarePacketsSent of them have been queued
+    // to the GATT manager
+    private byte[][] mFirmwarePackets;
+    private int mFirmwarePacketHead;
+    private int mFirmwarePacketCount;
+    private int mFirmwarePacketsSent;
+    private int mFirmwareWindow;
+    private boolean mFirmwareWriteNoResponse;
+    private int mFirmwareOffset;
+    private long mFirmwareSendStartMs;
+    private OtaProgressStore mProgressStore;
+    private String mDeviceAddress;
+    private final OtaProgressStore.Progress mProgress = new OtaProgressStore.Progress();
+    private final ReconnectScheduler mRestartScheduler = new ReconnectScheduler(
+            OtaSettings.MAX_AUTO_RESTARTS);
+    private boolean mRestartPending;
     private OtaCallback mCallback;
-    private final Handler mEventHandler = new Handler(this);
+    // Delivers events to the OtaCallback on the UI thread
+    private final Handler mEventHandler = new Handler(Looper.getMainLooper(), this);
+    private final Handler mStateHandler = new Handler(GattIoThread.getLooper(),
+            new Handler.Callback() {
+                @Override
+                public boolean handleMessage(Message msg) {
+                    return handleStateMessage(msg);
+                }
+            });
     private boolean mHasError;
     private boolean mConnectAfterBonding = true;
     private boolean mDisconnectOnFinished = false;
@@ -262,18 +304,63 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         return true;
     }
 
+    private boolean handleStateMessage(Message msg) {
+        try {
+            switch (msg.what) {
+            case MSG_START:
+                restoreProgress();
+                start();
+                break;
+            case MSG_ABORT:
+                abort();
+                break;
+            case MSG_PAIRED:
+                onPaired();
+                break;
+            case MSG_SERVICES_DISCOVERED:
+                onServicesDiscovered(msg.arg1);
+                break;
+            case MSG_NOTIFY_COMPLETED:
+                onOtaNotifyCompleted(msg.arg1 == 1, msg.arg2);
+                break;
+            case MSG_CONTROL_POINT_STATUS:
+                processControlPointStatus(msg.arg1 == 1, msg.arg2);
+                break;
+            case MSG_DATA_WRITE_ERROR:
+                processDataWriteError();
+                break;
+            case MSG_FIRMWARE_PACKET_WRITTEN:
+                onFirmwarePacketWritten(msg.arg1 == 1, msg.arg2);
+                break;
+            case MSG_LINK_LOST:
+                restartUpdate(ReconnectScheduler.CAUSE_LINK_LOSS);
+                break;
+            case MSG_RESTART:
+                restart();
+                break;
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "handleStateMessage: error", t);
+        }
+        return true;
+    }
+
+    private void sendStateMessage(int what, boolean success, int code) {
+        mStateHandler.sendMessage(mStateHandler.obtainMessage(what, success ? 1 : 0, code));
+    }
+
     private void setState(int state) {
         mState = state;
+        if (state == STATE_UPGRADE_COMPLETED || state == STATE_ABORTED) {
+            mProgressStore.remove(mDeviceAddress);
+        } else {
+            saveProgress();
+        }
         mEventHandler.sendMessage(mEventHandler.obtainMessage(EVENT_STATE_CHANGED, state, 0));
     }
 
     private boolean loadGattServicesAndCharacteristics() {
-        BluetoothGatt gatt = mGatt.getGatt();
-        if (gatt == null) {
-            return false;
-        }
-
-        mOtaFwService = gatt.getService(UUID_WS_SECURE_UPGRADE_SERVICE);
+        mOtaFwService = mGatt.findService(UUID_WS_SECURE_UPGRADE_SERVICE);
         if (mOtaFwService == null) {
             return false;
         }
@@ -296,6 +383,62 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         return true;
     }
 
+    /**
+     * Record the state of the update, and the offset acknowledged by the
+     * latest attempt to send the firmware
+     */
+    private void saveProgress() {
+        OtaProgressStore.Progress p = mProgress;
+        p.mDigest = mFirmwareDigest;
+        p.mLength = mFirmware.getLength();
+        if (mState == STATE_SEND_FW) {
+            p.mOffset = OTA_FW_INFO_PACKET_LENGTH + mFirmwareBytesSent;
+        }
+        p.mState = mState;
+        mProgressStore.put(mDeviceAddress, p);
+    }
+
+    /**
+     * The protocol has no command to continue a download at an offset: an
+     * interrupted update is restarted from the beginning, a bounded number
+     * of times
+     *
+     * @param cause
+     *            ReconnectScheduler.CAUSE_LINK_LOSS, or CAUSE_TIMEOUT if a
+     *            firmware packet write timed out
+     */
+    private void restartUpdate(int cause) {
+        int state = mState;
+        if (state == STATE_NONE || state == STATE_UPGRADE_COMPLETED || state == STATE_ABORTED
+                || mHasError || mRestartPending) {
+            return;
+        }
+        saveProgress();
+        long delayMs = mRestartScheduler.onDisconnected(cause, SystemClock.elapsedRealtime());
+        if (delayMs < 0) {
+            Log.w(TAG, "restartUpdate: giving up after " + mProgress.mRestarts + " restarts");
+            setState(STATE_ABORTED);
+            mEventHandler.sendEmptyMessage(EVENT_ABORTED);
+            return;
+        }
+        Log.w(TAG, "restartUpdate: " + ReconnectScheduler.getCauseName(cause) + ", " + mProgress
+                + ", restarting in " + delayMs + "ms");
+        mProgress.mRestarts++;
+        mRestartPending = true;
+        setState(STATE_CONNECT);
+        mStateHandler.sendEmptyMessageDelayed(MSG_RESTART, delayMs);
+    }
+
+    private void restart() {
+        if (!mRestartPending) {
+            return;
+        }
+        mRestartPending = false;
+        mFirmwareSendLoopCount = 0;
+        mFirmwareBytesSent = 0;
+        start();
+    }
+
     private void enableOtaNotify(boolean enable) {
         if (DBG) {
             Log.d(TAG, "enableOtaNotify");
@@ -305,7 +448,7 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
             Log.e(TAG, "mCccDescriptor is null");
             onOtaNotifyCompleted(false, ERROR_DESCRIPTOR_NOT_FOUND);
         }
-        mGatt.write(mCccDescriptor, new byte[] { 0x00, 0x02 });
+        mGatt.write(mCccDescriptor, new byte[] { 0x00, 0x02 }).then(mCccWriteListener);
         mGatt.setCharacteristicNotification(mOtaCharControlPoint, enable);
     }
 
@@ -326,7 +469,8 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
             Log.d(TAG, "prepareDownload");
         }
         setState(STATE_PREPARE_DOWNLOAD);
-        mGatt.write(mOtaCharControlPoint, new byte[] { 0x01 });
+        mGatt.write(mOtaCharControlPoint, new byte[] { 0x01 },
+                GattRequestManager.PRIORITY_CONTROL).then(mControlPointWriteListener);
     }
 
     private void onDownloadPrepared(boolean success, int errorCode) {
@@ -338,7 +482,7 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
             mEventHandler.sendMessage(mEventHandler.obtainMessage(EVENT_ERROR, mState, errorCode));
             return;
         }
-        startDownload(mFirmwareLength);
+        startDownload(mFirmware.getLength());
 
     }
 
@@ -349,7 +493,8 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         mState = STATE_START_DOWNLOAD;
         byte[] packet = new byte[] { 0x02, 0x00, 0x00 };
         ByteUtils.uInt16ToBytesLI(firmwareLength, packet, 1);
-        mGatt.write(mOtaCharControlPoint, packet);
+        mGatt.write(mOtaCharControlPoint, packet, GattRequestManager.PRIORITY_CONTROL).then(
+                mControlPointWriteListener);
     }
 
     private void onDownloadStarted(boolean success, int errorCode) {
@@ -364,37 +509,21 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         sendFirmwareInfo();
     }
 
-    private byte[] getFirmwareInfoBytes() {
-        if (mFirmwareInputStream == null) {
-            return null;
-        }
-        byte[] firmwareInfo = new byte[OTA_FW_INFO_PACKET_LENGTH];
-
-        try {
-            int bytesRead = mFirmwareInputStream.read(firmwareInfo, 0, OTA_FW_INFO_PACKET_LENGTH);
-            if (bytesRead != OTA_FW_INFO_PACKET_LENGTH) {
-                Log.w(TAG, "Could not read firmware info... Incorrect length.");
-                return null;
-            }
-        } catch (Throwable t) {
-            Log.w(TAG, "Could not read firmware info.", t);
-            return null;
-        }
-
-        return firmwareInfo;
-    }
-
     private void sendFirmwareInfo() {
         if (DBG) {
             Log.d(TAG, "sendFirmwareInfo");
         }
         setState(STATE_SEND_FW_INFO);
 
-        byte[] firmwareInfo = getFirmwareInfoBytes();
-        if (firmwareInfo == null) {
+        if (mFirmware.getLength() < OTA_FW_INFO_PACKET_LENGTH) {
+            Log.w(TAG, "Could not read firmware info... Incorrect length.");
             onFirmwareInfoSent(false, ERROR_FIRMWARE_INFO_READ);
+            return;
         }
-        mGatt.write(mOtaCharData, firmwareInfo);
+        byte[] firmwareInfo = new byte[OTA_FW_INFO_PACKET_LENGTH];
+        mFirmware.get(0, firmwareInfo, 0, OTA_FW_INFO_PACKET_LENGTH);
+        mGatt.write(mOtaCharData, firmwareInfo, GattRequestManager.PRIORITY_BULK).then(
+                mDataWriteListener);
     }
 
     private void onFirmwareInfoSent(boolean success, int errorCode) {
@@ -407,65 +536,130 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         }
         mFirmwareSendLoopCount = 0;
         mFirmwareBytesSent = 0;
+        mFirmwareWindow = Math.max(1, OtaSettings.FW_UPLOAD_WINDOW);
+        mFirmwareWriteNoResponse = mFirmwareWindow > 1
+                && (mOtaCharData.getProperties()
+                        & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+        if (!mFirmwareWriteNoResponse) {
+            mFirmwareWindow = 1;
+        }
+        if (mFirmwarePackets == null || mFirmwarePackets.length != mFirmwareWindow) {
+            mFirmwarePackets = new byte[mFirmwareWindow][];
+        }
+        for (int i = 0; i < mFirmwareWindow; i++) {
+            if (mFirmwarePackets[i] == null
+                    || mFirmwarePackets[i].length != OTA_MAX_TX_WRITE_PACKET_LENGTH) {
+                mFirmwarePackets[i] = new byte[OTA_MAX_TX_WRITE_PACKET_LENGTH];
+            }
+        }
+        mFirmwarePacketHead = 0;
+        mFirmwarePacketCount = 0;
+        mFirmwarePacketsSent = 0;
+        mFirmwareOffset = OTA_FW_INFO_PACKET_LENGTH;
+        mFirmwareSendStartMs = SystemClock.elapsedRealtime();
+        if (DBG) {
+            Log.d(TAG, "onFirmwareInfoSent: window=" + mFirmwareWindow + ", writeNoResponse="
+                    + mFirmwareWriteNoResponse);
+        }
         sendFirmware();
     }
 
-    private byte[] getFirmwareBytes() {
-        if (mFirmwareInputStream == null) {
-            return null;
+    /**
+     * Copy the next firmware packet into a slot of the packet ring
+     *
+     * @return false at the end of the firmware
+     */
+    private boolean readFirmwarePacket() {
+        int length = Math.min(OTA_MAX_TX_WRITE_PACKET_LENGTH, mFirmware.getLength()
+                - mFirmwareOffset);
+        if (length <= 0) {
+            return false;
         }
-        byte[] firmware = new byte[OTA_MAX_TX_WRITE_PACKET_LENGTH];
-        try {
-            int bytesRead = mFirmwareInputStream.read(firmware, 0, OTA_MAX_TX_WRITE_PACKET_LENGTH);
-            if (bytesRead <= 0) {
-                return new byte[0];
-            }
-
-            if (bytesRead == OTA_FW_INFO_PACKET_LENGTH) {
-                return firmware;
-            }
-            // Truncate byte array
-            byte[] truncatedBytes = new byte[bytesRead];
-            if (bytesRead > 0) {
-                System.arraycopy(firmware, 0, truncatedBytes, 0, bytesRead);
-            }
-            return truncatedBytes;
-
-        } catch (Throwable t) {
-            Log.w(TAG, "Could not read firmware info.", t);
-            return null;
+        int slot = (mFirmwarePacketHead + mFirmwarePacketCount) % mFirmwarePackets.length;
+        byte[] packet = mFirmwarePackets[slot];
+        if (packet.length != length) {
+            // Last packet. The whole array is written
+            packet = mFirmwarePackets[slot] = new byte[length];
         }
+        mFirmware.get(mFirmwareOffset, packet, 0, length);
+        mFirmwareOffset += length;
+        mFirmwarePacketCount++;
+        return true;
     }
 
+    /**
+     * Queue firmware packets until the window is full. Each written packet
+     * frees a slot of the window ({@link #onFirmwarePacketWritten})
+     */
     private void sendFirmware() {
-        if (DBG) {
-            Log.d(TAG, "sendFirmware");
-        }
         if (mState != STATE_SEND_FW) {
             setState(STATE_SEND_FW);
         }
 
-        byte[] firmware = getFirmwareBytes();
-        if (firmware == null) {
-            onFirmwareSent(false, ERROR_FIRMWARE_READ);
+        while (mFirmwarePacketsSent < mFirmwareWindow) {
+            if (mFirmwarePacketsSent == mFirmwarePacketCount && !readFirmwarePacket()) {
+                break;
+            }
+            byte[] firmware = mFirmwarePackets[(mFirmwarePacketHead + mFirmwarePacketsSent)
+                    % mFirmwarePackets.length];
+            mFirmwarePacketsSent++;
+            mFirmwareSendLoopCount++;
+            if (VDBG) {
+                Log.d(TAG, "sendFirmware: " + mFirmwareSendLoopCount + ", length="
+                        + firmware.length);
+            }
+            if (mFirmwareWriteNoResponse) {
+                mGatt.writeNoResponse(mFirmwareSendLoopCount, mOtaCharData, firmware,
+                        GattRequestManager.PRIORITY_BULK).then(mFirmwarePacketWriteListener);
+            } else {
+                mGatt.write(mFirmwareSendLoopCount, mOtaCharData, firmware,
+                        GattRequestManager.PRIORITY_BULK).then(mFirmwarePacketWriteListener);
+            }
         }
-        if (firmware.length == 0) {
+        if (mFirmwarePacketCount == 0 && mFirmwareOffset >= mFirmware.getLength()) {
             onFirmwareSendCompleted();
-        } else {
-            mFirmwareSendLoopCount++;
-            mFirmwareBytesSent += firmware.length;
-            Message m = mEventHandler.obtainMessage(EVENT_SEND_PROGRESS, mFirmwareBytesSent,
-                    mFirmwareLength);
-            m.getData().putInt("l", mFirmwareSendLoopCount);
-            mEventHandler.sendMessage(m);
-            if (DBG) {
-                Log.d(TAG, "sendFirmware: " + mFirmwareSendLoopCount + ", value= " + firmware);
-                if (firmware != null) {
-                    Log.d(TAG, "sendFirmware: length =" + firmware.length);
-                }
+        }
+    }
+
+    private void onFirmwarePacketWritten(boolean success, int errorCode) {
+        if (mState != STATE_SEND_FW || mFirmwarePacketsSent == 0) {
+            return;
+        }
+        if (!success) {
+            if (errorCode == ERROR_TIMEOUT) {
+                // The device may or may not have received the packet, so it
+                // cannot be resent: start the download again
+                Log.w(TAG, "onFirmwarePacketWritten: timeout at " + mFirmwareBytesSent);
+                restartUpdate(ReconnectScheduler.CAUSE_TIMEOUT);
+                return;
+            }
+            if (!mFirmwareWriteNoResponse) {
+                onFirmwareSent(false, errorCode);
+                return;
             }
-            mGatt.write(mFirmwareSendLoopCount, mOtaCharData, firmware);
+            // The packets after the failed one were removed from the GATT
+            // queue. Send them again, one acknowledged write at a time
+            Log.w(TAG, "onFirmwarePacketWritten: error " + errorCode
+                    + ", falling back to acknowledged writes");
+            mFirmwareWriteNoResponse = false;
+            mFirmwareWindow = 1;
+            mFirmwarePacketsSent = 0;
+            sendFirmware();
+            return;
         }
+        byte[] firmware = mFirmwarePackets[mFirmwarePacketHead];
+        mFirmwarePacketHead = (mFirmwarePacketHead + 1) % mFirmwarePackets.length;
+        mFirmwarePacketCount--;
+        mFirmwarePacketsSent--;
+        mFirmwareBytesSent += firmware.length;
+
+        // Only the latest progress is shown
+        mEventHandler.removeMessages(EVENT_SEND_PROGRESS);
+        Message m = mEventHandler.obtainMessage(EVENT_SEND_PROGRESS, mFirmwareBytesSent,
+                mFirmware.getLength());
+        m.getData().putInt("l", mFirmwareSendLoopCount);
+        mEventHandler.sendMessage(m);
+        sendFirmware();
     }
 
     private void onFirmwareSent(boolean success, int errorCode) {
@@ -482,7 +676,8 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
     }
 
     private void onFirmwareSendCompleted() {
-        Log.d(TAG, "onFirmwareSendCompleted");
+        Log.d(TAG, "onFirmwareSendCompleted: " + mFirmwareBytesSent + " bytes in "
+                + (SystemClock.elapsedRealtime() - mFirmwareSendStartMs) + "ms");
         setState(STATE_SEND_FW_COMPLETED);
         verifyFirmware();
     }
@@ -492,7 +687,8 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
             Log.d(TAG, "verifyFirmware");
         }
         setState(STATE_VERIFY_FW);
-        mGatt.write(mOtaCharControlPoint, new byte[] { 0x3 });
+        mGatt.write(mOtaCharControlPoint, new byte[] { 0x3 },
+                GattRequestManager.PRIORITY_CONTROL).then(mControlPointWriteListener);
     }
 
     private void onFirmwareVerified(boolean success, int errorCode) {
@@ -523,7 +719,9 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
             onFirmwareInfoSent(success, errorCode);
             break;
         case STATE_SEND_FW:
-            onFirmwareSent(success, errorCode);
+            if (!success) {
+                onFirmwareSent(success, errorCode);
+            }
             break;
         case STATE_VERIFY_FW:
             onFirmwareVerified(success, errorCode);
@@ -549,14 +747,22 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         if (newState == BluetoothGatt.STATE_DISCONNECTED
                 || newState == BluetoothGatt.STATE_DISCONNECTING) {
             if (mState != STATE_NONE && mState != STATE_UPGRADE_COMPLETED && !mHasError) {
-                mEventHandler.sendEmptyMessage(EVENT_ABORTED);
+                mStateHandler.sendEmptyMessage(MSG_LINK_LOST);
             }
         }
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        mStateHandler.sendMessage(mStateHandler.obtainMessage(MSG_SERVICES_DISCOVERED, status, 0));
+    }
+
+    private void onServicesDiscovered(int status) {
         Log.d(TAG, "onServicesDiscovered -- status " + status);
+        if (mRestartPending || mState >= STATE_ENABLE_NOTIFY) {
+            // Reconnected before a restart, or already started by start()
+            return;
+        }
         if (!loadGattServicesAndCharacteristics()) {
             mEventHandler.sendMessage(mEventHandler.obtainMessage(EVENT_ERROR, mState,
                     ERROR_SERVICE));
@@ -565,14 +771,79 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         }
     }
 
-    @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        if (descriptor.getCharacteristic().getUuid()
-                .equals(UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_CONTROL_POINT)) {
-            boolean success = status == BluetoothGatt.GATT_SUCCESS;
-            onOtaNotifyCompleted(success, success ? 0 : ERROR_DESCRIPTOR_WRITE);
+    private final GattOperation.Listener mCccWriteListener = new GattOperation.Listener() {
+        @Override
+        public void onComplete(GattOperation op) {
+            if (!mGattRegistered || op.getStatus() == GattOperation.STATUS_CANCELLED) {
+                return;
+            }
+            if (op.getStatus() == GattOperation.STATUS_TIMEOUT) {
+                sendStateMessage(MSG_CONTROL_POINT_STATUS, false, ERROR_TIMEOUT);
+                return;
+            }
+            boolean success = op.isSuccess();
+            sendStateMessage(MSG_NOTIFY_COMPLETED, success, success ? 0 : ERROR_DESCRIPTOR_WRITE);
         }
-    }
+    };
+
+    // Failures of control point writes. Their results arrive as notifications
+    private final GattOperation.Listener mControlPointWriteListener = new GattOperation.Listener() {
+        @Override
+        public void onComplete(GattOperation op) {
+            if (DBG) {
+                Log.d(TAG, "onControlPointWrite: status= " + op.getStatus());
+            }
+            if (!mGattRegistered || op.getStatus() == GattOperation.STATUS_CANCELLED) {
+                return;
+            }
+            if (op.getStatus() == GattOperation.STATUS_TIMEOUT) {
+                sendStateMessage(MSG_CONTROL_POINT_STATUS, false, ERROR_TIMEOUT);
+            } else if (!op.isSuccess()) {
+                sendStateMessage(MSG_CONTROL_POINT_STATUS, false, ERROR_CHARACTERISTIC_WRITE);
+            }
+        }
+    };
+
+    private final GattOperation.Listener mDataWriteListener = new GattOperation.Listener() {
+        @Override
+        public void onComplete(GattOperation op) {
+            if (DBG) {
+                Log.d(TAG, "onDataWrite: status= " + op.getStatus());
+            }
+            if (!mGattRegistered || op.getStatus() == GattOperation.STATUS_CANCELLED) {
+                return;
+            }
+            if (op.isSuccess()) {
+                sendStateMessage(MSG_CONTROL_POINT_STATUS, true, WS_UPGRADE_STATUS_OK);
+            } else if (op.getStatus() == GattOperation.STATUS_TIMEOUT) {
+                sendStateMessage(MSG_CONTROL_POINT_STATUS, false, ERROR_TIMEOUT);
+            } else {
+                mStateHandler.sendEmptyMessage(MSG_DATA_WRITE_ERROR);
+            }
+        }
+    };
+
+    // Completions of firmware packet writes. Runs before the GATT manager
+    // starts its next request
+    private final GattOperation.Listener mFirmwarePacketWriteListener =
+            new GattOperation.Listener() {
+        @Override
+        public void onComplete(GattOperation op) {
+            if (!mGattRegistered || op.getStatus() == GattOperation.STATUS_CANCELLED) {
+                return;
+            }
+            if (op.isSuccess()) {
+                sendStateMessage(MSG_FIRMWARE_PACKET_WRITTEN, true, 0);
+                return;
+            }
+            // Keep the packets queued after this one from being sent out of
+            // order
+            mGatt.removeRequest(GattRequestManager.REQUEST_WRITE_CHAR, mOtaCharData);
+            sendStateMessage(MSG_FIRMWARE_PACKET_WRITTEN, false,
+                    op.getStatus() == GattOperation.STATUS_TIMEOUT ? ERROR_TIMEOUT
+                            : ERROR_FIRMWARE_WRITE);
+        }
+    };
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt,
@@ -591,67 +862,17 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         case WS_UPGRADE_STATUS_OK:
             // case WS_UPGRADE_WRITE_STATUS_SUCCESS:
         case WS_UPGRADE_STATUS_MORE_DATA:
-            processControlPointStatus(true, WS_UPGRADE_STATUS_OK);
+            sendStateMessage(MSG_CONTROL_POINT_STATUS, true, WS_UPGRADE_STATUS_OK);
             break;
         case WS_UPGRADE_WRITE_STATUS_ABORTED:
             // mEventHandler.sendEmptyMessage(EVENT_ABORTED);
             break;
         default:
-            processControlPointStatus(false, status);
+            sendStateMessage(MSG_CONTROL_POINT_STATUS, false, status);
             break;
         }
     }
 
-    @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt,
-            BluetoothGattCharacteristic characteristic, int status) {
-        UUID uuid = characteristic.getUuid();
-        if (DBG) {
-            Log.d(TAG, "onCharacteristicWrite: " + uuid + ", status= " + status);
-            Log.d(TAG, "write type = " + characteristic.getWriteType());
-        }
-        if (UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_CONTROL_POINT.equals(uuid)) {
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                processControlPointStatus(false, ERROR_CHARACTERISTIC_WRITE);
-            }
-        }
-
-        else if (UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_DATA.equals(uuid)) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                processControlPointStatus(true, WS_UPGRADE_STATUS_OK);
-            } else {
-                processDataWriteError();
-            }
-        }
-
-    }
-
-    @Override
-    public void onTimeout(GattRequest request) {
-        if (DBG) {
-            Log.d(TAG, "onTimeout()");
-        }
-        if (request.mRequestType == GattRequestManager.REQUEST_WRITE_CHAR) {
-            UUID uuid = request.mCharacteristic == null ? null : request.mCharacteristic.getUuid();
-            if (UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_CONTROL_POINT.equals(uuid)
-                    || UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_DATA.equals(uuid)) {
-                Log.d(TAG, "onTimeout(): CP");
-                processControlPointStatus(false, ERROR_TIMEOUT);
-            }
-        } else if (request.mRequestType == GattRequestManager.REQUEST_WRITE_DESCRIPTOR) {
-            UUID uuid = null;
-            UUID cUuid = null;
-            if (request.mDescriptor != null) {
-                uuid = request.mDescriptor.getUuid();
-                cUuid = request.mDescriptor.getCharacteristic().getUuid();
-            }
-            if (UUID_WS_SECURE_UPGRADE_CHARACTERISTIC_CONTROL_POINT.equals(cUuid)
-                    && GATT_DESCRIPTOR_UUID.equals(uuid)) {
-                processControlPointStatus(false, ERROR_TIMEOUT);
-            }
-        }
-    }
-
     private void connect() {
         if (!mGatt.connect()) {
             mEventHandler.sendMessage(mEventHandler.obtainMessage(EVENT_ERROR, mState,
@@ -664,7 +885,8 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
     private boolean pairIfNeeded() {
         BluetoothDevice device = mGatt.getDevice();
 
-        if (OtaSettings.PAIRING_REQUIRED && device.getBondState() != BluetoothDevice.BOND_BONDED) {
+        if (OtaSettings.PAIRING_REQUIRED && mGatt.getTransport().supportsPairing()
+                && device.getBondState() != BluetoothDevice.BOND_BONDED) {
             if (DBG) {
                 Log.d(TAG, "Pairing device...");
             }
@@ -695,9 +917,9 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
     }
 
     private void unregisterGatt() {
+        mGattRegistered = false;
         if (mGatt != null) {
             mGatt.removeCallback(this);
-            mGatt.removeTimeoutCallback(this);
         }
     }
 
@@ -713,29 +935,68 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
         }
     }
 
-    public void startUpdate(Context ctx, GattRequestManager gattManager, int firmwareLength,
-            BufferedInputStream in) {
+    /**
+     * Start a firmware update
+     *
+     * @param ctx
+     * @param gattManager
+     * @param firmware
+     *            the signed firmware image, starting with its 4 byte info
+     *            header. Its digest is computed on the calling thread, unless
+     *            the source already has it (see
+     *            {@link FirmwareSource#map(java.io.File, String)})
+     */
+    public void startUpdate(Context ctx, GattRequestManager gattManager, FirmwareSource firmware) {
         mContext = ctx;
         mBondReceiver = new BluetoothBondingReceiver();
         mContext.registerReceiver(mBondReceiver, new IntentFilter(
                 BluetoothDevice.ACTION_BOND_STATE_CHANGED));
         mGatt = gattManager;
         mGatt.addCallback(this);
-        mGatt.addTimeoutCallback(this);
+        mGattRegistered = true;
+        mDeviceAddress = mGatt.getDevice().getAddress();
+        mProgressStore = new OtaProgressStore(ctx);
+        mRestartPending = false;
 
-        mFirmwareLength = firmwareLength;
-        mFirmwareInputStream = in;
+        mFirmware = firmware;
+        mFirmwareDigest = firmware.getDigest();
         mState = STATE_NONE;
         mHasError = false;
         mFirmwareSendLoopCount = 0;
         mFirmwareBytesSent = 0;
+        mStateHandler.sendEmptyMessage(MSG_START);
+    }
+
+    /**
+     * Carry over the restarts of an interrupted update of the same image, e.g.
+     * one stopped by the app being killed, so that the restart limit holds
+     * across runs. The record of an update of another image is dropped
+     */
+    private void restoreProgress() {
+        mProgress.mOffset = 0;
+        mProgress.mRestarts = 0;
+        OtaProgressStore.Progress last = mProgressStore.get(mDeviceAddress);
+        if (last != null) {
+            if (last.mDigest.equals(mFirmwareDigest)) {
+                Log.i(TAG, "restoreProgress: restarting interrupted update: " + last);
+                mProgress.mRestarts = last.mRestarts;
+            } else {
+                mProgressStore.remove(mDeviceAddress);
+            }
+        }
+        mRestartScheduler.reset();
+        mRestartScheduler.setMaxAttempts(Math.max(0, OtaSettings.MAX_AUTO_RESTARTS
+                - mProgress.mRestarts));
+    }
+
+    private void start() {
         if (mGatt.isConnected()) {
             if (DBG) {
                 Log.d(TAG, "startUpgrade: GattManager already connected");
             }
             if (!loadGattServicesAndCharacteristics()) {
                 if (!mGatt.discoverServices()) {
-                    onServicesDiscovered(mGatt.getGatt(), -600);
+                    onServicesDiscovered(-600);
                 }
             } else {
                 enableOtaNotify(true);
@@ -751,12 +1012,20 @@ public class OtaManager extends BluetoothGattCallback implements Callback, GattT
     }
 
     public void abortUpdate() {
-        mGatt.write(mOtaCharControlPoint, new byte[] { 0x7 });
+        mStateHandler.sendEmptyMessage(MSG_ABORT);
+    }
+
+    private void abort() {
+        mRestartPending = false;
+        mStateHandler.removeMessages(MSG_RESTART);
+        mGatt.write(mOtaCharControlPoint, new byte[] { 0x7 },
+                GattRequestManager.PRIORITY_CONTROL);
         setState(STATE_ABORTED);
         mEventHandler.sendEmptyMessage(EVENT_ABORTED);
     }
 
     public void finish() {
+        mStateHandler.removeCallbacksAndMessages(null);
         mContext.unregisterReceiver(mBondReceiver);
         unregisterGatt();
         if (mDisconnectOnFinished) {
@@ -0,0 +1,92 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsmart.ota;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persistent progress of the firmware update of each device: the image being
+ * sent, the last acknowledged offset in it, the state of the update and how
+ * many times it was restarted. The progress of an update is kept until the
+ * update completes or is aborted, so that the restarts of an interrupted
+ * update count towards its restart limit when it is started again
+ *
+ */
+public class OtaProgressStore {
+    private static final String PREF_NAME = "ota_progress";
+    private static final String KEY_DIGEST = ".digest";
+    private static final String KEY_LENGTH = ".length";
+    private static final String KEY_OFFSET = ".offset";
+    private static final String KEY_STATE = ".state";
+    private static final String KEY_RESTARTS = ".restarts";
+
+    public static class Progress {
+        // FirmwareSource digest of the image
+        public String mDigest;
+        public int mLength;
+        // Offset in the image of the bytes acknowledged by the device
+        public int mOffset;
+        // One of the OtaManager.STATE_ constants
+        public int mState;
+        public int mRestarts;
+
+        @Override
+        public String toString() {
+            return OtaManager.getStateString(mState) + " " + mOffset + "/" + mLength
+                    + " bytes, " + mRestarts + " restarts, image " + mDigest;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    public OtaProgressStore(Context ctx) {
+        mPrefs = ctx.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the progress of the update of a device, or null if none is
+     *         recorded
+     */
+    public Progress get(String address) {
+        String digest = mPrefs.getString(address + KEY_DIGEST, null);
+        if (digest == null) {
+            return null;
+        }
+        Progress p = new Progress();
+        p.mDigest = digest;
+        p.mLength = mPrefs.getInt(address + KEY_LENGTH, 0);
+        p.mOffset = mPrefs.getInt(address + KEY_OFFSET, 0);
+        p.mState = mPrefs.getInt(address + KEY_STATE, OtaManager.STATE_NONE);
+        p.mRestarts = mPrefs.getInt(address + KEY_RESTARTS, 0);
+        return p;
+    }
+
+    public void put(String address, Progress p) {
+        mPrefs.edit().putString(address + KEY_DIGEST, p.mDigest)
+                .putInt(address + KEY_LENGTH, p.mLength).putInt(address + KEY_OFFSET, p.mOffset)
+                .putInt(address + KEY_STATE, p.mState)
+                .putInt(address + KEY_RESTARTS, p.mRestarts).apply();
+    }
+
+    public void remove(String address) {
+        mPrefs.edit().remove(address + KEY_DIGEST).remove(address + KEY_LENGTH)
+                .remove(address + KEY_OFFSET).remove(address + KEY_STATE)
+                .remove(address + KEY_RESTARTS).apply();
+    }
+}
@@ -19,7 +19,26 @@ package com.broadcom.app.wicedsmart.ota;
 
 public class OtaSettings {
     public static final boolean DBG = true;
+
+    /**
+     * Enable tracing of each firmware packet. Slows down uploads
+     */
+    public static final boolean VDBG = false;
     public static final String TAG_PREFIX = "WicedSmartOta";
     public static final boolean PAIRING_REQUIRED = true;
     public static final int TIMEOUT_PAIRING_MS = 3000;
+
+    /**
+     * Number of firmware data packets kept in flight with writes without
+     * response. 1 sends each packet with an acknowledged write. Uploads fall
+     * back to acknowledged writes if the tag does not support writes without
+     * response, or one of them fails
+     */
+    public static final int FW_UPLOAD_WINDOW = 8;
+
+    /**
+     * Number of times an update interrupted by a link loss is restarted from
+     * the beginning, with an increasing delay, before it is aborted
+     */
+    public static final int MAX_AUTO_RESTARTS = 3;
 }
@@ -0,0 +1,395 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsmart.ota.ui;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.broadcom.app.wicedsmart.ota.FirmwareSource;
+import com.broadcom.app.wicedsmart.ota.OtaAppInfo;
+import com.broadcom.app.wicedsmart.ota.OtaSettings;
+import com.broadcom.util.ByteUtils;
+
+/**
+ * Index of the firmware image files of a directory, by application id. The
+ * application id of each image is read from its header (uint16 LE, as in the
+ * device's app info) once, and its digest computed once, when the file is
+ * first seen or changes. The header does not carry the firmware version: it
+ * is taken from the file name (e.g. wiced_sense_1_3_update.ota.bin.signed),
+ * or left at 0.0 if the name has none. The index is persisted, so lookups do
+ * not list or open files; {@link #refreshAsync()} brings it up to date on a
+ * background thread
+ *
+ */
+public class FirmwareCatalog {
+    private static final String TAG = OtaSettings.TAG_PREFIX + "FirmwareCatalog";
+    private static final boolean DBG = OtaSettings.DBG;
+
+    private static final String PREF_NAME = "firmware_catalog";
+    private static final int HEADER_LENGTH = 2;
+    // Version of the persisted entry format
+    private static final String ENTRY_FORMAT = "2";
+    // _<major>_<minor> in a file name, e.g. wiced_sense_1_3_update
+    private static final Pattern VERSION_PATTERN = Pattern
+            .compile("_(\\d{1,3})_(\\d{1,3})(?=[_.]|$)");
+
+    /**
+     * A firmware image file of the catalog
+     */
+    public static class Entry implements OtaResource {
+        private final File mFile;
+        private final long mMtime;
+        private final long mLength;
+        private final int mAppId;
+        private final int mMajor;
+        private final int mMinor;
+        private volatile String mDigest;
+        private InputStream mInputStream;
+
+        private Entry(File file, long mtime, long length, int appId, int major, int minor,
+                String digest) {
+            mFile = file;
+            mMtime = mtime;
+            mLength = length;
+            mAppId = appId;
+            mMajor = major;
+            mMinor = minor;
+            mDigest = digest;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * @return the FirmwareSource digest of the image, or null if not yet
+         *         computed
+         */
+        public String getDigest() {
+            return mDigest;
+        }
+
+        @Override
+        public String getName() {
+            return mFile.getName();
+        }
+
+        @Override
+        public int getAppId() {
+            return mAppId;
+        }
+
+        @Override
+        public int getMajor() {
+            return mMajor;
+        }
+
+        @Override
+        public int getMinor() {
+            return mMinor;
+        }
+
+        @Override
+        public long getLength() {
+            return mLength;
+        }
+
+        @Override
+        public InputStream getStream() {
+            try {
+                return mInputStream = new FileInputStream(mFile);
+            } catch (Throwable t) {
+            }
+            return null;
+        }
+
+        @Override
+        public void closeStream() {
+            if (mInputStream != null) {
+                try {
+                    mInputStream.close();
+                    mInputStream = null;
+                } catch (Throwable t) {
+                }
+            }
+        }
+
+        @Override
+        public FirmwareSource openFirmware() throws IOException {
+            return FirmwareSource.map(mFile, mDigest);
+        }
+
+        @Override
+        public boolean isMandatory() {
+            return false;
+        }
+
+        private boolean isNewerThan(Entry e) {
+            return mMajor > e.mMajor || (mMajor == e.mMajor && mMinor > e.mMinor);
+        }
+
+        private String encode() {
+            return ENTRY_FORMAT + ":" + mMtime + ":" + mLength + ":" + mAppId + ":" + mMajor
+                    + ":" + mMinor + ":" + (mDigest != null ? mDigest : "");
+        }
+
+        /**
+         * @return the entry, or null if the string is not in the current
+         *         format, so that the file is parsed again
+         */
+        private static Entry decode(File file, String s) {
+            String[] f = s.split(":", -1);
+            if (f.length != 7 || !ENTRY_FORMAT.equals(f[0])) {
+                return null;
+            }
+            try {
+                return new Entry(file, Long.parseLong(f[1]), Long.parseLong(f[2]),
+                        Integer.parseInt(f[3]), Integer.parseInt(f[4]), Integer.parseInt(f[5]),
+                        f[6].length() > 0 ? f[6] : null);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final File mDir;
+    private final FilenameFilter mFilter;
+    private final SharedPreferences mPrefs;
+    // Entries by application id. Replaced, never modified, by refresh()
+    private volatile HashMap<Integer, Entry[]> mIndex;
+    private final Object mRefreshLock = new Object();
+    private Handler mRefreshHandler;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    /**
+     * Load the persisted index of a directory. The directory is not read
+     *
+     * @param ctx
+     * @param dir
+     * @param filter
+     *            filter of the image files, or null for all files
+     */
+    public FirmwareCatalog(Context ctx, File dir, FilenameFilter filter) {
+        mDir = dir;
+        mFilter = filter;
+        mPrefs = ctx.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        Map<String, ?> all = mPrefs.getAll();
+        for (Map.Entry<String, ?> e : all.entrySet()) {
+            if (e.getValue() instanceof String) {
+                Entry entry = Entry.decode(new File(e.getKey()), (String) e.getValue());
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        mIndex = buildIndex(entries);
+    }
+
+    /**
+     * Find the newest image for the application of a device that is newer
+     * than its firmware. Images of unknown version (0.0) are always offered,
+     * as their version cannot be compared, but any image known to be newer is
+     * preferred
+     *
+     * @return the image, or null if none
+     */
+    public Entry findUpdate(OtaAppInfo appInfo) {
+        Entry[] entries = mIndex.get(appInfo.mAppId);
+        if (entries == null) {
+            return null;
+        }
+        // The device reports its version as signed bytes
+        int major = appInfo.mMajorVersion & 0xFF;
+        int minor = appInfo.mMinorVersion & 0xFF;
+        Entry best = null;
+        for (int i = 0; i < entries.length; i++) {
+            Entry e = entries[i];
+            if ((e.mMajor <= 0 || e.mMajor > major || (e.mMajor == major && e.mMinor > minor))
+                    && (best == null || e.isNewerThan(best))) {
+                best = e;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the images of an application
+     */
+    public List<Entry> getEntries(int appId) {
+        ArrayList<Entry> list = new ArrayList<Entry>();
+        Entry[] entries = mIndex.get(appId);
+        if (entries != null) {
+            for (int i = 0; i < entries.length; i++) {
+                list.add(entries[i]);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Update the index on the catalog thread
+     */
+    public synchronized void refreshAsync() {
+        if (mRefreshHandler == null) {
+            HandlerThread thread = new HandlerThread("FirmwareCatalog");
+            thread.start();
+            mRefreshHandler = new Handler(thread.getLooper());
+        }
+        mRefreshHandler.removeCallbacks(mRefresh);
+        mRefreshHandler.post(mRefresh);
+    }
+
+    /**
+     * Update the index with the files of the directory: parse the header of
+     * new or changed files, drop removed ones and compute missing digests.
+     * Reads files: do not call on the UI thread
+     */
+    public void refresh() {
+        synchronized (mRefreshLock) {
+            refreshLocked();
+        }
+    }
+
+    private void refreshLocked() {
+        File[] files = null;
+        if (mDir != null && mDir.isDirectory()) {
+            files = mFilter != null ? mDir.listFiles(mFilter) : mDir.listFiles();
+        }
+        HashMap<String, Entry> known = new HashMap<String, Entry>();
+        HashMap<Integer, Entry[]> index = mIndex;
+        for (Entry[] entries : index.values()) {
+            for (int i = 0; i < entries.length; i++) {
+                known.put(entries[i].mFile.getPath(), entries[i]);
+            }
+        }
+
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        int parsed = 0;
+        for (int i = 0; files != null && i < files.length; i++) {
+            File f = files[i];
+            Entry e = known.remove(f.getPath());
+            if (e == null || e.mMtime != f.lastModified() || e.mLength != f.length()) {
+                e = parseHeader(f);
+                parsed++;
+            }
+            if (e != null) {
+                entries.add(e);
+            }
+        }
+        mIndex = buildIndex(entries);
+
+        // Digests are computed after the index is published: lookups do not
+        // need them
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String path : known.keySet()) {
+            editor.remove(path);
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            if (e.mDigest == null) {
+                try {
+                    e.mDigest = FirmwareSource.map(e.mFile).getDigest();
+                } catch (IOException ex) {
+                    Log.w(TAG, "refresh: unable to read " + e.mFile, ex);
+                }
+            }
+            editor.putString(e.mFile.getPath(), e.encode());
+        }
+        editor.apply();
+        if (DBG) {
+            Log.d(TAG, "refresh: " + entries.size() + " images, " + parsed + " parsed, "
+                    + known.size() + " removed");
+        }
+    }
+
+    private static Entry parseHeader(File f) {
+        byte[] header = new byte[HEADER_LENGTH];
+        long mtime = f.lastModified();
+        long length = f.length();
+        try {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                int offset = 0;
+                while (offset < HEADER_LENGTH) {
+                    int bytesRead = in.read(header, offset, HEADER_LENGTH - offset);
+                    if (bytesRead < 0) {
+                        Log.w(TAG, "parseHeader: " + f + " too short");
+                        return null;
+                    }
+                    offset += bytesRead;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "parseHeader: unable to read " + f, e);
+            return null;
+        }
+        // The image starts with the application id, like the app info read
+        // from the device. The bytes after it are not the version
+        int major = 0;
+        int minor = 0;
+        Matcher m = VERSION_PATTERN.matcher(f.getName());
+        if (m.find()) {
+            major = Integer.parseInt(m.group(1));
+            minor = Integer.parseInt(m.group(2));
+        }
+        return new Entry(f, mtime, length, ByteUtils.bytesToUInt16LI(header, 0, 0), major,
+                minor, null);
+    }
+
+    private static HashMap<Integer, Entry[]> buildIndex(List<Entry> entries) {
+        HashMap<Integer, ArrayList<Entry>> lists = new HashMap<Integer, ArrayList<Entry>>();
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            ArrayList<Entry> list = lists.get(e.mAppId);
+            if (list == null) {
+                list = new ArrayList<Entry>();
+                lists.put(e.mAppId, list);
+            }
+            list.add(e);
+        }
+        HashMap<Integer, Entry[]> index = new HashMap<Integer, Entry[]>();
+        for (Map.Entry<Integer, ArrayList<Entry>> e : lists.entrySet()) {
+            index.put(e.getKey(), e.getValue().toArray(new Entry[e.getValue().size()]));
+        }
+        return index;
+    }
+}
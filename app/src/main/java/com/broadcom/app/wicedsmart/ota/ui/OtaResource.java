@@ -1,7 +1,10 @@
 package com.broadcom.app.wicedsmart.ota.ui;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import com.broadcom.app.wicedsmart.ota.FirmwareSource;
+
 public interface OtaResource {
     public String getName();
 
@@ -17,5 +20,10 @@ public interface OtaResource {
 
     public void closeStream();
 
+    /**
+     * Open the firmware image for random access, without a stream
+     */
+    public FirmwareSource openFirmware() throws IOException;
+
     public boolean isMandatory();
 }
\ No newline at end of file
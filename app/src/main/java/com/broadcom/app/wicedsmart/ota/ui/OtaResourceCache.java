@@ -0,0 +1,71 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsmart.ota.ui;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persistent cache of the lengths of firmware images, keyed by resource and by
+ * the modification time of the file holding it, so an image is not read just
+ * to find its length. Raw resources are stamped with the modification time of
+ * the application package
+ *
+ */
+class OtaResourceCache {
+    private static final String PREF_NAME = "ota_resource_cache";
+    private static final String KEY_MTIME = ".mtime";
+    private static final String KEY_LENGTH = ".length";
+
+    private final SharedPreferences mPrefs;
+    private final long mPackageMtime;
+
+    OtaResourceCache(Context ctx) {
+        mPrefs = ctx.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        mPackageMtime = new File(ctx.getPackageCodePath()).lastModified();
+    }
+
+    /**
+     * @return the cached length of a raw resource, or -1 if it is not cached
+     *         or the package changed since
+     */
+    long getRawLength(int resourceId) {
+        return getLength(rawKey(resourceId), mPackageMtime);
+    }
+
+    void putRawLength(int resourceId, long length) {
+        putLength(rawKey(resourceId), mPackageMtime, length);
+    }
+
+    long getLength(String key, long mtime) {
+        if (mPrefs.getLong(key + KEY_MTIME, -1) != mtime) {
+            return -1;
+        }
+        return mPrefs.getLong(key + KEY_LENGTH, -1);
+    }
+
+    void putLength(String key, long mtime, long length) {
+        mPrefs.edit().putLong(key + KEY_MTIME, mtime).putLong(key + KEY_LENGTH, length).apply();
+    }
+
+    private static String rawKey(int resourceId) {
+        return "raw." + resourceId;
+    }
+}
@@ -26,10 +26,10 @@ package com.broadcom.app.wicedsmart.ota.ui;
  */
 import com.broadcom.app.wicedsense.R;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
@@ -37,12 +37,15 @@ import java.util.List;
 import android.app.FragmentManager;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.util.Log;
 
+import com.broadcom.app.wicedsmart.ota.FirmwareSource;
 import com.broadcom.app.wicedsmart.ota.OtaSettings;
 import com.broadcom.app.wicedsmart.ota.OtaManager;
 import com.broadcom.app.wicedsmart.ota.OtaCallback;
+import com.broadcom.util.FrameMonitor;
 import com.broadcom.util.GattRequestManager;
 
 public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChooserFragment.Callback,
@@ -60,7 +63,8 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
         private final String mName;
         private final Resources mResources;
         private final int mResourceId;
-        private long mLength;
+        private final OtaResourceCache mCache;
+        private long mLength = -1;
         private InputStream mInputStream;
         private final int mAppId;
         private final int mMajor;
@@ -68,30 +72,65 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
         private final boolean mMandatory;
 
         public RawOtaResource(String name, int appId, int major, int minor, Resources resources,
-                int resourceId, boolean mandatory) {
+                int resourceId, boolean mandatory, OtaResourceCache cache) {
             mAppId = appId;
             mName = name;
             mResources = resources;
             mResourceId = resourceId;
             mMandatory = mandatory;
-            InputStream i = getStream();
+            mCache = cache;
+            mMajor = major;
+            mMinor = minor;
+        }
+
+        /**
+         * Find the length of the image: cached, from the package index if the
+         * resource is stored uncompressed, or else by reading it
+         */
+        private long findLength() {
+            long length = mCache != null ? mCache.getRawLength(mResourceId) : -1;
+            if (length >= 0) {
+                return length;
+            }
             try {
-                // Calculate the length
-                int length = 0;
-                if (i != null) {
-                    while (i.read() >= 0) {
-                        length++;
-                    }
+                AssetFileDescriptor fd = mResources.openRawResourceFd(mResourceId);
+                length = fd.getLength();
+                fd.close();
+            } catch (Throwable t) {
+                // Compressed in the package
+            }
+            if (length < 0) {
+                length = countBytes();
+            }
+            Log.d(TAG, "findLength: resource " + mResourceId + " length = " + length);
+            if (mCache != null && length >= 0) {
+                mCache.putRawLength(mResourceId, length);
+            }
+            return length;
+        }
+
+        private long countBytes() {
+            InputStream in = null;
+            try {
+                in = mResources.openRawResource(mResourceId);
+                byte[] buffer = new byte[8192];
+                long length = 0;
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) >= 0) {
+                    length += bytesRead;
                 }
-                mLength = length;
+                return length;
             } catch (Throwable t) {
-                Log.d(TAG, "RawOtaResource(): error opening resource " + mResourceId, t);
-                throw new RuntimeException();
+                Log.w(TAG, "countBytes: error reading resource " + mResourceId, t);
+                return -1;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (Throwable t) {
+                    }
+                }
             }
-            Log.d(TAG, "length = " + mLength);
-            closeStream();
-            mMajor = major;
-            mMinor = minor;
         }
 
         @Override
@@ -115,7 +154,10 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
         }
 
         @Override
-        public long getLength() {
+        public synchronized long getLength() {
+            if (mLength < 0) {
+                mLength = findLength();
+            }
             return mLength;
         }
 
@@ -144,6 +186,21 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
                 }
             }
         }
+
+        @Override
+        public FirmwareSource openFirmware() throws IOException {
+            // Raw resources may be compressed in the package: load the image
+            long length = getLength();
+            if (length < 0) {
+                throw new IOException("Unable to read resource " + mResourceId);
+            }
+            InputStream in = mResources.openRawResource(mResourceId);
+            try {
+                return FirmwareSource.load(in, (int) length);
+            } finally {
+                in.close();
+            }
+        }
     }
 
     private static class FileOtaResource implements OtaResource {
@@ -185,6 +242,11 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
             }
         }
 
+        @Override
+        public FirmwareSource openFirmware() throws IOException {
+            return FirmwareSource.map(mOtaFile);
+        }
+
         @Override
         public int getAppId() {
             return 0;
@@ -212,7 +274,18 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
 
     public static OtaResource createRawOtaResource(String name, int appId, int major, int minor,
             Resources resources, int resourceId, boolean mandatory) {
-        return new RawOtaResource(name, appId, major, minor, resources, resourceId, mandatory);
+        return new RawOtaResource(name, appId, major, minor, resources, resourceId, mandatory,
+                null);
+    }
+
+    /**
+     * Create the resource of a firmware image in res/raw. The image is not
+     * read: its length is found when first needed, and cached
+     */
+    public static OtaResource createRawOtaResource(Context ctx, String name, int appId,
+            int major, int minor, int resourceId, boolean mandatory) {
+        return new RawOtaResource(name, appId, major, minor, ctx.getResources(), resourceId,
+                mandatory, new OtaResourceCache(ctx));
     }
 
     public static void createOtaResources(File fwDirectory, FilenameFilter filter,
@@ -253,6 +326,9 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
     private OtaResource mSelectedResource;
     private boolean mDisconnectOnFinished;
 
+    // Frame times of the UI while the firmware is uploaded
+    private final FrameMonitor mFrameMonitor = new FrameMonitor();
+
     private void reset() {
         mOtaResources.clear();
         mDevice = null;
@@ -338,18 +414,16 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
         if (mGatt == null) {
             mGatt = new GattRequestManager(mContext, mDevice);
         }
-        BufferedInputStream in = null;
-        long fwSizeBytes = 0;
         try {
-            in = new BufferedInputStream(mSelectedResource.getStream());
-            fwSizeBytes = mSelectedResource.getLength();
+            FirmwareSource firmware = mSelectedResource.openFirmware();
             // Create OtaManager instance
             mOtaManager = new OtaManager();
             mOtaManager.setDisconnectOnFinished(mDisconnectOnFinished);
             mOtaManager.addCallback(this);
-            Log.d(TAG, "Starting update: size=" + fwSizeBytes);
+            Log.d(TAG, "Starting update: size=" + firmware.getLength());
+            mFrameMonitor.start();
             // Start upgrade
-            mOtaManager.startUpdate(mContext, mGatt, (int) fwSizeBytes, in);
+            mOtaManager.startUpdate(mContext, mGatt, firmware);
         } catch (Throwable t) {
             Log.e(TAG, "startUpdate(): error", t);
             showFinishedDialog(mContext.getString(R.string.ota_error_fw_open_error), true, false);
@@ -503,6 +577,11 @@ public class OtaUiHelper implements com.broadcom.app.wicedsmart.ota.ui.OtaChoose
 
     @Override
     public void onOtaFinished(boolean isComplete) {
+        if (mFrameMonitor.isRunning()) {
+            mFrameMonitor.stop();
+            Log.d(TAG, "onOtaFinished: UI frames "
+                    + mFrameMonitor.getStats(new FrameMonitor.Stats()));
+        }
         if (mSelectedResource != null) {
             mSelectedResource.closeStream();
         }
@@ -0,0 +1,118 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import java.util.List;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+/**
+ * {@link GattTransport} over a {@link BluetoothGatt} connection to a remote
+ * device
+ *
+ */
+public class BluetoothGattTransport implements GattTransport {
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private BluetoothGatt mGatt;
+
+    public BluetoothGattTransport(Context ctx, BluetoothDevice device) {
+        mContext = ctx;
+        mDevice = device;
+    }
+
+    @Override
+    public boolean connect(boolean autoConnect, BluetoothGattCallback callback) {
+        if (mGatt != null) {
+            return mGatt.connect();
+        }
+        mGatt = mDevice.connectGatt(mContext, autoConnect, callback);
+        return mGatt != null;
+    }
+
+    @Override
+    public void disconnect() {
+        if (mGatt != null) {
+            mGatt.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mGatt != null) {
+            mGatt.close();
+            mGatt = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mGatt != null;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt != null && mGatt.discoverServices();
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return mGatt == null ? null : mGatt.getServices();
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic c) {
+        return mGatt != null && mGatt.readCharacteristic(c);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic c) {
+        return mGatt != null && mGatt.writeCharacteristic(c);
+    }
+
+    @Override
+    public boolean readDescriptor(BluetoothGattDescriptor d) {
+        return mGatt != null && mGatt.readDescriptor(d);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor d) {
+        return mGatt != null && mGatt.writeDescriptor(d);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic c, boolean enable) {
+        return mGatt != null && mGatt.setCharacteristicNotification(c, enable);
+    }
+
+    @Override
+    public boolean supportsPairing() {
+        return true;
+    }
+
+    @Override
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+}
@@ -0,0 +1,132 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import android.view.Choreographer;
+
+/**
+ * Measures the time between the frames drawn by the UI thread, to check that
+ * background work such as a firmware upload does not delay rendering. Must
+ * be started and stopped on the UI thread
+ *
+ */
+public class FrameMonitor implements Choreographer.FrameCallback {
+
+    /** Frame interval of a 60Hz display */
+    public static final long FRAME_INTERVAL_NS = 16666667;
+
+    /**
+     * Frames longer than this missed at least one display refresh
+     */
+    public static final long JANK_THRESHOLD_NS = FRAME_INTERVAL_NS * 3 / 2;
+
+    /**
+     * Frame time statistics
+     */
+    public static class Stats {
+        public long mFrames;
+        public long mTotalNs;
+        public long mMaxNs;
+        public long mJankFrames;
+
+        public long getMeanNs() {
+            return mFrames > 0 ? mTotalNs / mFrames : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mFrames + " frames, mean " + getMeanNs() / 1000 + "us, max " + mMaxNs / 1000
+                    + "us, " + mJankFrames + " janky";
+        }
+    }
+
+    private final Stats mStats = new Stats();
+    private boolean mRunning;
+    private long mLastFrameNs;
+
+    /**
+     * Reset the statistics and start measuring
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        synchronized (mStats) {
+            mStats.mFrames = 0;
+            mStats.mTotalNs = 0;
+            mStats.mMaxNs = 0;
+            mStats.mJankFrames = 0;
+        }
+        mRunning = true;
+        mLastFrameNs = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stop measuring. The statistics are kept until the next start
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Copy the statistics. Can be called from any thread
+     *
+     * @param out
+     * @return out
+     */
+    public Stats getStats(Stats out) {
+        synchronized (mStats) {
+            out.mFrames = mStats.mFrames;
+            out.mTotalNs = mStats.mTotalNs;
+            out.mMaxNs = mStats.mMaxNs;
+            out.mJankFrames = mStats.mJankFrames;
+        }
+        return out;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        if (mLastFrameNs != 0) {
+            long intervalNs = frameTimeNanos - mLastFrameNs;
+            synchronized (mStats) {
+                mStats.mFrames++;
+                mStats.mTotalNs += intervalNs;
+                if (intervalNs > mStats.mMaxNs) {
+                    mStats.mMaxNs = intervalNs;
+                }
+                if (intervalNs > JANK_THRESHOLD_NS) {
+                    mStats.mJankFrames++;
+                }
+            }
+        }
+        mLastFrameNs = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
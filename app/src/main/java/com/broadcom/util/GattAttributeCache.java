@@ -0,0 +1,125 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import java.util.List;
+
+import com.broadcom.app.wicedsense.Settings;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Persistent map of the GATT attribute layout (services, characteristics and
+ * their properties, descriptors) discovered on each device, with the
+ * firmware version the layout was seen with. A device with a cached layout
+ * can be reconnected without the delays used for unknown devices; the layout
+ * discovered on reconnect is validated against the cache
+ *
+ */
+public class GattAttributeCache {
+    private static final String TAG = Settings.TAG_PREFIX + "GattAttributeCache";
+    private static final boolean DBG = Settings.DBG;
+
+    private static final String PREF_NAME = "gatt_attribute_cache";
+    private static final String KEY_LAYOUT = ".layout";
+    private static final String KEY_FIRMWARE = ".firmware";
+
+    private final SharedPreferences mPrefs;
+
+    public GattAttributeCache(Context ctx) {
+        mPrefs = ctx.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Encode the layout of a list of services as a string. Equal layouts have
+     * equal encodings
+     */
+    public static String encodeLayout(List<BluetoothGattService> services) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < services.size(); i++) {
+            BluetoothGattService s = services.get(i);
+            b.append(s.getUuid()).append('{');
+            List<BluetoothGattCharacteristic> chars = s.getCharacteristics();
+            for (int j = 0; j < chars.size(); j++) {
+                BluetoothGattCharacteristic c = chars.get(j);
+                b.append(c.getUuid()).append(':').append(c.getProperties()).append('[');
+                List<BluetoothGattDescriptor> descriptors = c.getDescriptors();
+                for (int k = 0; k < descriptors.size(); k++) {
+                    b.append(descriptors.get(k).getUuid()).append(';');
+                }
+                b.append(']');
+            }
+            b.append('}');
+        }
+        return b.toString();
+    }
+
+    /**
+     * @return true if a layout is cached for the device
+     */
+    public boolean contains(String address) {
+        return mPrefs.contains(address + KEY_LAYOUT);
+    }
+
+    /**
+     * Compare the discovered services of a device with its cached layout, and
+     * cache them if they differ
+     *
+     * @return true if the cached layout matches
+     */
+    public boolean validate(String address, List<BluetoothGattService> services) {
+        String layout = encodeLayout(services);
+        String cached = mPrefs.getString(address + KEY_LAYOUT, null);
+        if (layout.equals(cached)) {
+            return true;
+        }
+        if (DBG) {
+            Log.d(TAG, "validate: " + address + (cached == null ? " not cached" : " changed"));
+        }
+        mPrefs.edit().putString(address + KEY_LAYOUT, layout).apply();
+        return false;
+    }
+
+    /**
+     * Record the firmware version of a device. The cached layout is removed
+     * if it was seen with another version
+     */
+    public void setFirmwareVersion(String address, String version) {
+        String cached = mPrefs.getString(address + KEY_FIRMWARE, null);
+        if (version.equals(cached)) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (cached != null) {
+            if (DBG) {
+                Log.d(TAG, "setFirmwareVersion: " + address + " " + cached + " -> " + version);
+            }
+            editor.remove(address + KEY_LAYOUT);
+        }
+        editor.putString(address + KEY_FIRMWARE, version).apply();
+    }
+
+    public void remove(String address) {
+        mPrefs.edit().remove(address + KEY_LAYOUT).remove(address + KEY_FIRMWARE).apply();
+    }
+}
@@ -0,0 +1,52 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * Process wide thread that runs the GATT request timers, connection retries
+ * and the OTA state machine, so that they do not compete with rendering on
+ * the UI thread. Started on first use and never stopped
+ *
+ */
+public class GattIoThread {
+    private static HandlerThread sThread;
+
+    private GattIoThread() {
+    }
+
+    /**
+     * @return the looper of the GATT I/O thread
+     */
+    public static synchronized Looper getLooper() {
+        if (sThread == null) {
+            sThread = new HandlerThread("GattIoThread");
+            sThread.start();
+        }
+        return sThread.getLooper();
+    }
+
+    /**
+     * @return true if called on the GATT I/O thread
+     */
+    public static boolean isCurrentThread() {
+        return Looper.myLooper() == getLooper();
+    }
+}
@@ -0,0 +1,180 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import com.broadcom.app.wicedsense.Settings;
+import com.broadcom.util.GattRequestManager.GattRequest;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+/**
+ * Completion handle of a GATT read or write queued by
+ * {@link GattRequestManager}. The result is delivered only to the listeners
+ * of the operation, on the thread that completed it (usually a Bluetooth
+ * binder thread). Operations can be chained with
+ * {@link #thenStart(Continuation)}
+ *
+ */
+public class GattOperation {
+    private static final String TAG = Settings.TAG_PREFIX + "GattOperation";
+
+    /** The request did not complete within its timeout */
+    public static final int STATUS_TIMEOUT = -1;
+
+    /** The request was dropped before it completed, e.g. on disconnect */
+    public static final int STATUS_CANCELLED = -2;
+
+    public interface Listener {
+        public void onComplete(GattOperation op);
+    }
+
+    /**
+     * Starts the next operation of a chain
+     */
+    public interface Continuation {
+        /**
+         * @param previous
+         *            the completed operation
+         * @return the next operation, or null to end the chain with the
+         *         result of the previous operation
+         */
+        public GattOperation start(GattOperation previous);
+    }
+
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    private final GattRequest mRequest;
+    private Listener[] mListeners = NO_LISTENERS;
+    private boolean mDone;
+    private int mStatus;
+    private byte[] mValue;
+
+    GattOperation(GattRequest request) {
+        mRequest = request;
+    }
+
+    /**
+     * @return the request, or null if this operation is a chain
+     */
+    public GattRequest getRequest() {
+        return mRequest;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return the GATT status, {@link #STATUS_TIMEOUT} or
+     *         {@link #STATUS_CANCELLED}
+     */
+    public synchronized int getStatus() {
+        return mStatus;
+    }
+
+    public synchronized boolean isSuccess() {
+        return mDone && mStatus == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * @return the value read, or null
+     */
+    public synchronized byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * Add a listener. If the operation is already complete, the listener is
+     * called immediately on this thread. A listener that is already attached
+     * is not added again, so callers that get the same operation back from a
+     * merged request are only called once
+     *
+     * @return this operation
+     */
+    public GattOperation then(Listener l) {
+        synchronized (this) {
+            if (!mDone) {
+                for (int i = 0; i < mListeners.length; i++) {
+                    if (mListeners[i] == l) {
+                        return this;
+                    }
+                }
+                Listener[] listeners = new Listener[mListeners.length + 1];
+                System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+                listeners[mListeners.length] = l;
+                mListeners = listeners;
+                return this;
+            }
+        }
+        l.onComplete(this);
+        return this;
+    }
+
+    /**
+     * Start another operation when this one completes
+     *
+     * @return an operation that completes with the result of the last
+     *         operation of the chain
+     */
+    public GattOperation thenStart(final Continuation c) {
+        final GattOperation chain = new GattOperation(null);
+        then(new Listener() {
+            @Override
+            public void onComplete(GattOperation op) {
+                GattOperation next = c.start(op);
+                if (next == null) {
+                    chain.complete(op.getStatus(), op.getValue());
+                    return;
+                }
+                next.then(new Listener() {
+                    @Override
+                    public void onComplete(GattOperation last) {
+                        chain.complete(last.getStatus(), last.getValue());
+                    }
+                });
+            }
+        });
+        return chain;
+    }
+
+    /**
+     * Complete the operation and call its listeners. Ignored if already
+     * complete
+     */
+    void complete(int status, byte[] value) {
+        Listener[] listeners;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mStatus = status;
+            mValue = value;
+            listeners = mListeners;
+            mListeners = NO_LISTENERS;
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].onComplete(this);
+            } catch (Throwable t) {
+                Log.e(TAG, "onComplete[" + i + "]: error", t);
+            }
+        }
+    }
+}
@@ -17,10 +17,12 @@
  ******************************************************************************/
 package com.broadcom.util;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 
@@ -37,7 +39,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -50,6 +54,8 @@ import android.util.Log;
 public class GattRequestManager extends BluetoothGattCallback implements Handler.Callback {
     private static final String TAG = Settings.TAG_PREFIX + "GattRequestManager";
     private static final boolean DBG = true;
+    // Trace each characteristic write. Slows down bulk transfers
+    private static final boolean VDBG = false;
 
     private static final int REQUEST_NONE = 0;
     public static final int REQUEST_READ_CHAR = 1;
@@ -74,9 +80,55 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
     private static final int TIMEOUT_CONNECT_MS = 10000;
     private static final int TIMEOUT_DISCONNECT_MS = 3000;
     private static final int TIMEOUT_SERVICE_DISCOVERY_MS = 10000;
-    private static final int TIMEOUT_GATT_REQUEST_MS = 5000;
+
+    /**
+     * Bounds of the GATT request timeouts, which are derived from the
+     * measured round trip times of each request type
+     */
+    private static final int TIMEOUT_GATT_REQUEST_MIN_MS = 1000;
+    private static final int TIMEOUT_GATT_REQUEST_MAX_MS = 5000;
     private static final int TIMEOUT_PAIRING_MS = 5000;
 
+    /**
+     * Request priority classes, highest first. See {@link PriorityRequestQueue}
+     */
+    public static final int PRIORITY_CONTROL = PriorityRequestQueue.PRIORITY_CONTROL;
+    public static final int PRIORITY_INTERACTIVE = PriorityRequestQueue.PRIORITY_INTERACTIVE;
+    public static final int PRIORITY_BULK = PriorityRequestQueue.PRIORITY_BULK;
+    public static final int PRIORITY_BACKGROUND = PriorityRequestQueue.PRIORITY_BACKGROUND;
+
+    /**
+     * Phases of a GATT request timed by the latency histograms: waiting in
+     * the queue, from the request to the transport until its callback, and
+     * completing its {@link GattOperation} (running its listeners)
+     */
+    public static final int LATENCY_QUEUE = 0;
+    public static final int LATENCY_ON_AIR = 1;
+    public static final int LATENCY_CALLBACK = 2;
+    private static final int LATENCY_PHASES = 3;
+    private static final String[] LATENCY_PHASE_NAMES = { "queue", "on-air", "callback" };
+
+    /**
+     * Time after which a waiting bulk or background request is promoted one
+     * priority class
+     */
+    private static final int REQUEST_AGING_MS = 1000;
+
+    private static final PriorityRequestQueue.Classifier<GattRequest> REQUEST_CLASSIFIER = new PriorityRequestQueue.Classifier<GattRequest>() {
+        @Override
+        public int getPriority(GattRequest request) {
+            return request.mPriority;
+        }
+    };
+
+    private static final RequestTracker.Matcher<GattRequest> REQUEST_MATCHER = new RequestTracker.Matcher<GattRequest>() {
+        @Override
+        public boolean matches(GattRequest request, int type, Object attribute) {
+            return request.mRequestType == type
+                    && (request.mCharacteristic == attribute || request.mDescriptor == attribute);
+        }
+    };
+
     private static String getMessageString(int msg) {
         switch (msg) {
         case REQUEST_NONE:
@@ -180,30 +232,55 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
         public void onTimeout(GattRequest request);
     }
 
+    /**
+     * Called on the request handler thread before each automatic reconnect
+     * attempt scheduled after a disconnect, e.g. to update the fast connect
+     * setting
+     */
+    public interface ReconnectCallback {
+        public void onReconnect(int attempt);
+    }
+
     public static class GattRequest {
         public final int mId;
         public final BluetoothGattCharacteristic mCharacteristic;
         public final BluetoothGattDescriptor mDescriptor;
         public final int mRequestType;
         public final byte[] mByteValues;
-
-        private GattRequest(int requestType, BluetoothGattCharacteristic c,
+        public final int mPriority;
+        public final GattOperation mOperation;
+        // BluetoothGattCharacteristic.WRITE_TYPE_ of a characteristic write,
+        // or 0 for the write type of the characteristic
+        final int mWriteType;
+        final long mQueuedNs;
+
+        private GattRequest(int requestType, int priority, BluetoothGattCharacteristic c,
                 BluetoothGattDescriptor d, byte[] byteValues) {
-            this(0, requestType, c, d, byteValues);
+            this(0, requestType, priority, c, d, byteValues);
         }
 
-        private GattRequest(int requestType, BluetoothGattCharacteristic c,
+        private GattRequest(int requestType, int priority, BluetoothGattCharacteristic c,
                 BluetoothGattDescriptor d) {
-            this(requestType, c, d, null);
+            this(requestType, priority, c, d, null);
         }
 
-        private GattRequest(int id, int requestType, BluetoothGattCharacteristic c,
-                BluetoothGattDescriptor d, byte[] byteValues) {
+        private GattRequest(int id, int requestType, int priority,
+                BluetoothGattCharacteristic c, BluetoothGattDescriptor d, byte[] byteValues) {
+            this(id, requestType, priority, c, d, byteValues, 0);
+        }
+
+        private GattRequest(int id, int requestType, int priority,
+                BluetoothGattCharacteristic c, BluetoothGattDescriptor d, byte[] byteValues,
+                int writeType) {
             mId = id;
             mRequestType = requestType;
+            mPriority = priority;
             mCharacteristic = c;
             mDescriptor = d;
             mByteValues = byteValues;
+            mWriteType = writeType;
+            mOperation = new GattOperation(this);
+            mQueuedNs = System.nanoTime();
         }
     }
 
@@ -235,106 +312,317 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
     private final ArrayList<GattTimeoutCallback> mGattTimeoutCallbacks = new ArrayList<GattTimeoutCallback>();
     private final ArrayList<LePairingCallback> mPairingCallbacks = new ArrayList<GattRequestManager.LePairingCallback>();
 
-    private final Handler mHandler = new Handler(this);
-    private final LinkedList<GattRequest> mQueuedRequests = new LinkedList<GattRequest>();
-    private GattRequest mPendingRequest;
+    // Snapshots of the callback lists, replaced when a list changes so the
+    // GATT callbacks can iterate them without locking or copying
+    private volatile BluetoothGattCallback[] mGattCallbackArray = new BluetoothGattCallback[0];
+    private volatile GattTimeoutCallback[] mGattTimeoutCallbackArray = new GattTimeoutCallback[0];
+    private volatile LePairingCallback[] mPairingCallbackArray = new LePairingCallback[0];
+
+    private final Handler mHandler;
+    private final PriorityRequestQueue<GattRequest> mRequestQueue = new PriorityRequestQueue<GattRequest>(
+            REQUEST_CLASSIFIER, REQUEST_AGING_MS);
+
+    // Pending or queued characteristic reads, used to coalesce duplicate
+    // reads. Also the lock for adding reads to the request queue
+    private final HashMap<BluetoothGattCharacteristic, GattRequest> mReads = new HashMap<BluetoothGattCharacteristic, GattRequest>();
+    private int mCoalescedReadCount;
+
+    // Matches callbacks to the started request, dropping the late callbacks
+    // of timed out requests
+    private final RequestTracker<GattRequest> mRequestTracker = new RequestTracker<GattRequest>(
+            REQUEST_MATCHER);
+
+    // Round trip estimates, indexed by request type, and the timeout of the
+    // started request. Guarded by mRequestTimerLock
+    private final Object mRequestTimerLock = new Object();
+    private final RttEstimator[] mRttEstimators = new RttEstimator[REQUEST_WRITE_DESCRIPTOR + 1];
+    private GattRequest mTimedRequest;
+    private long mTimedRequestStartNs;
+    private long mRequestDeadlineNs;
+    private boolean mRequestTimerPosted;
+    private long mRequestTimerDueNs;
 
     private int mPairingTimeoutMs = TIMEOUT_PAIRING_MS;
     private boolean mAutoConnect = false;
     private boolean mRetryFailedConnection = true;
     private boolean mDiscoverServices = true;
-    private int mMaxConnectionRetries = 2;
+    private boolean mFastConnect;
+    private final ReconnectScheduler mReconnectScheduler = new ReconnectScheduler(2);
+    private volatile ReconnectCallback mReconnectCallback;
 
     private BluetoothPairingReceiver mPairingReceiver;
     private boolean mPairingReceiverRegistered;
     private final BluetoothDevice mDevice;
-    private BluetoothGatt mGatt;
+    private final GattTransport mTransport;
     private int mConnectState;
     private boolean mServicesDiscovered;
     private int mPendingConnectDisconnectRequest;
     private boolean mIsUserDisconnectRequested;
     private boolean mPendingClose;
     private boolean mIsClosedAndCleanedUp;
-    private int mReconnectCount;
+    private boolean mConnectTimedOut;
 
+    // Latency histograms, by phase and request type. Also their lock
+    private final LatencyHistogram[][] mLatency =
+            new LatencyHistogram[LATENCY_PHASES][REQUEST_WRITE_DESCRIPTOR + 1];
+
+    /**
+     * Start the timeout of a request. Only one request is started at a time,
+     * so a single deadline is kept. The timer message is only posted when
+     * none is posted or the posted one is due after the new deadline; when it
+     * fires early it is posted again for the remaining time
+     */
     private void startRequestTimeout(GattRequest r) {
-        mHandler.sendMessageDelayed(mHandler.obtainMessage(TIMEOUT_TYPE_GATT_REQUEST, r),
-                TIMEOUT_GATT_REQUEST_MS);
+        mRequestTracker.onStarted(r);
+        synchronized (mRequestTimerLock) {
+            long nowNs = System.nanoTime();
+            mTimedRequest = r;
+            mTimedRequestStartNs = nowNs;
+            mRequestDeadlineNs = nowNs + mRttEstimators[r.mRequestType].getTimeoutNs();
+            if (!mRequestTimerPosted || mRequestTimerDueNs - mRequestDeadlineNs > 0) {
+                postRequestTimer(nowNs);
+            }
+        }
     }
 
-    private void cancelRequestTimeout() {
+    private void postRequestTimer(long nowNs) {
         mHandler.removeMessages(TIMEOUT_TYPE_GATT_REQUEST);
+        mRequestTimerPosted = true;
+        mRequestTimerDueNs = mRequestDeadlineNs;
+        mHandler.sendEmptyMessageDelayed(TIMEOUT_TYPE_GATT_REQUEST,
+                (mRequestDeadlineNs - nowNs + 999999) / 1000000);
     }
 
-    private void queueRequest(GattRequest r, boolean atFront) {
-        synchronized (mQueuedRequests) {
-            if (atFront) {
-                mQueuedRequests.addFirst(r);
-            } else {
-                mQueuedRequests.add(r);
+    /**
+     * Stop the timeout of a request, if it is the timed request, and add its
+     * round trip time to the estimate of its type
+     */
+    private void cancelRequestTimeout(GattRequest r) {
+        synchronized (mRequestTimerLock) {
+            if (r == mTimedRequest) {
+                mTimedRequest = null;
+                long rttNs = System.nanoTime() - mTimedRequestStartNs;
+                // Writes without response complete locally; they would
+                // shorten the timeout of acknowledged writes
+                if (r.mWriteType != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+                    mRttEstimators[r.mRequestType].addSample(rttNs);
+                }
+                recordLatency(LATENCY_ON_AIR, r.mRequestType, rttNs);
             }
-            if (mPendingRequest == null) {
-                processQueuedRequests();
+        }
+    }
+
+    /**
+     * Called when the timer message fires
+     *
+     * @return the request that timed out, or null
+     */
+    private GattRequest checkRequestTimeout() {
+        synchronized (mRequestTimerLock) {
+            mRequestTimerPosted = false;
+            GattRequest r = mTimedRequest;
+            if (r == null) {
+                return null;
             }
+            long nowNs = System.nanoTime();
+            if (mRequestDeadlineNs - nowNs > 0) {
+                postRequestTimer(nowNs);
+                return null;
+            }
+            mTimedRequest = null;
+            mRttEstimators[r.mRequestType].onTimeout();
+            return r;
         }
     }
 
-    private void processQueuedRequests() {
-        GattRequest r = null;
-        synchronized (mQueuedRequests) {
-            mPendingRequest = mQueuedRequests.poll();
-            if (mPendingRequest == null) {
-                return;
+    /**
+     * Forget the started request. Called after the handler messages are
+     * removed
+     */
+    private void resetRequestTimer() {
+        mRequestTracker.reset();
+        synchronized (mRequestTimerLock) {
+            mTimedRequest = null;
+            mRequestTimerPosted = false;
+        }
+    }
+
+    private GattOperation queueRequest(GattRequest r, boolean atFront) {
+        GattRequest next;
+        if (r.mRequestType == REQUEST_READ_CHAR) {
+            synchronized (mReads) {
+                final GattRequest existing = mReads.get(r.mCharacteristic);
+                if (existing != null) {
+                    // The caller shares the operation of the existing read.
+                    // Only requeue it if the new read is more urgent and the
+                    // existing one has not started
+                    if (r.mPriority >= existing.mPriority
+                            || mRequestQueue.remove(new RequestQueue.Filter<GattRequest>() {
+                                @Override
+                                public boolean matches(GattRequest request) {
+                                    return request == existing;
+                                }
+                            }) == 0) {
+                        mCoalescedReadCount++;
+                        return existing.mOperation;
+                    }
+                    r.mOperation.then(new GattOperation.Listener() {
+                        @Override
+                        public void onComplete(GattOperation op) {
+                            existing.mOperation.complete(op.getStatus(), op.getValue());
+                        }
+                    });
+                }
+                mReads.put(r.mCharacteristic, r);
+                next = mRequestQueue.add(r, atFront);
+            }
+        } else {
+            next = mRequestQueue.add(r, atFront);
+        }
+        if (next != null) {
+            executeRequest(next);
+        }
+        return r.mOperation;
+    }
+
+    /**
+     * Complete the operation of the started request and start the next one,
+     * if the callback is for the started request. The late callback of a
+     * timed out request, or a stray callback, is dropped: the started request
+     * keeps its timer and the queue does not advance
+     */
+    private void completeRequest(int requestType, Object attribute, int status, byte[] value) {
+        GattRequest r = mRequestTracker.onCallback(requestType, attribute);
+        if (r == null) {
+            Log.w(TAG, "completeRequest: dropped late or stray callback "
+                    + getMessageString(requestType) + ", status=" + status);
+            return;
+        }
+        cancelRequestTimeout(r);
+        if (requestType == REQUEST_READ_CHAR) {
+            onReadCompleted(r.mCharacteristic);
+        }
+        long startNs = System.nanoTime();
+        r.mOperation.complete(status, value);
+        recordLatency(LATENCY_CALLBACK, requestType, System.nanoTime() - startNs);
+        processQueuedRequests();
+    }
+
+    /**
+     * Complete a request that could not be started, and start the next one
+     */
+    private void failRequest(GattRequest r) {
+        if (r.mRequestType == REQUEST_READ_CHAR) {
+            onReadCompleted(r.mCharacteristic);
+        }
+        r.mOperation.complete(BluetoothGatt.GATT_FAILURE, null);
+        processQueuedRequests();
+    }
+
+    /**
+     * Remove the queued requests, and the started one if requested, and
+     * complete their operations with {@link GattOperation#STATUS_CANCELLED}
+     */
+    private void cancelRequests(boolean includePending) {
+        final ArrayList<GattRequest> cancelled = new ArrayList<GattRequest>();
+        mRequestQueue.remove(new RequestQueue.Filter<GattRequest>() {
+            @Override
+            public boolean matches(GattRequest r) {
+                cancelled.add(r);
+                return true;
+            }
+        });
+        if (includePending) {
+            GattRequest pending = mRequestQueue.getPending();
+            mRequestQueue.reset();
+            if (pending != null) {
+                cancelled.add(pending);
             }
-            r = mPendingRequest;
         }
+        for (int i = 0; i < cancelled.size(); i++) {
+            cancelled.get(i).mOperation.complete(GattOperation.STATUS_CANCELLED, null);
+        }
+    }
+
+    private void onReadCompleted(BluetoothGattCharacteristic c) {
+        synchronized (mReads) {
+            mReads.remove(c);
+        }
+    }
+
+    private void clearReads() {
+        synchronized (mReads) {
+            mReads.clear();
+        }
+    }
+
+    private void processQueuedRequests() {
+        GattRequest r = mRequestQueue.next();
+        if (r != null) {
+            executeRequest(r);
+        }
+    }
+
+    private void recordLatency(int phase, int requestType, long latencyNs) {
+        synchronized (mLatency) {
+            mLatency[phase][requestType].record(latencyNs);
+        }
+    }
 
+    private void executeRequest(GattRequest r) {
+        recordLatency(LATENCY_QUEUE, r.mRequestType, System.nanoTime() - r.mQueuedNs);
         switch (r.mRequestType) {
         case REQUEST_READ_CHAR:
-            if (mGatt == null) {
-                onCharacteristicRead(null, r.mCharacteristic, BluetoothGatt.GATT_FAILURE);
+            if (!mTransport.isOpen()) {
+                failRequest(r);
                 return;
             }
             startRequestTimeout(r);
-            mGatt.readCharacteristic(r.mCharacteristic);
+            mTransport.readCharacteristic(r.mCharacteristic);
             break;
         case REQUEST_WRITE_DESCRIPTOR:
-            if (mGatt == null) {
-                onDescriptorWrite(null, r.mDescriptor, BluetoothGatt.GATT_FAILURE);
+            if (!mTransport.isOpen()) {
+                failRequest(r);
                 return;
             }
             startRequestTimeout(r);
             if (r.mByteValues != null) {
                 r.mDescriptor.setValue(r.mByteValues);
             }
-            mGatt.writeDescriptor(r.mDescriptor);
+            mTransport.writeDescriptor(r.mDescriptor);
             break;
         case REQUEST_WRITE_CHAR:
-            if (mGatt == null) {
-                onCharacteristicWrite(null, r.mCharacteristic, BluetoothGatt.GATT_FAILURE);
+            if (!mTransport.isOpen()) {
+                failRequest(r);
                 return;
             }
             startRequestTimeout(r);
-            if (DBG) {
+            if (VDBG) {
                 Log.d(TAG, "writeChar: id=" + r.mId + ",value=" + r.mByteValues);
-            }
-            if (r.mByteValues != null) {
-                if (DBG) {
+                if (r.mByteValues != null) {
                     Log.d(TAG, " valueLength=" + r.mByteValues.length);
                 }
             }
             if (r.mByteValues != null) {
                 r.mCharacteristic.setValue(r.mByteValues);
             }
-            mGatt.writeCharacteristic(r.mCharacteristic);
+            if (r.mWriteType != 0) {
+                // The write type is read when the write is started
+                int writeType = r.mCharacteristic.getWriteType();
+                r.mCharacteristic.setWriteType(r.mWriteType);
+                mTransport.writeCharacteristic(r.mCharacteristic);
+                r.mCharacteristic.setWriteType(writeType);
+            } else {
+                mTransport.writeCharacteristic(r.mCharacteristic);
+            }
             break;
         case REQUEST_READ_DESCRIPTOR:
-            if (mGatt == null) {
-                onDescriptorRead(null, r.mDescriptor, BluetoothGatt.GATT_FAILURE);
+            if (!mTransport.isOpen()) {
+                failRequest(r);
                 return;
             }
             startRequestTimeout(r);
-            mGatt.readDescriptor(r.mDescriptor);
+            mTransport.readDescriptor(r.mDescriptor);
             break;
         }
     }
@@ -352,30 +640,15 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
     }
 
     private BluetoothGattCallback[] getGattCallbacks() {
-        BluetoothGattCallback[] cb = null;
-        synchronized (mGattCallbacks) {
-            cb = new BluetoothGattCallback[mGattCallbacks.size()];
-            mGattCallbacks.toArray(cb);
-        }
-        return cb;
+        return mGattCallbackArray;
     }
 
     private LePairingCallback[] getPairingCallbacks() {
-        LePairingCallback[] cb = null;
-        synchronized (mPairingCallbacks) {
-            cb = new LePairingCallback[mPairingCallbacks.size()];
-            mPairingCallbacks.toArray(cb);
-        }
-        return cb;
+        return mPairingCallbackArray;
     }
 
     private GattTimeoutCallback[] getTimeoutCallbacks() {
-        GattTimeoutCallback[] l = null;
-        synchronized (mGattTimeoutCallbacks) {
-            l = new GattTimeoutCallback[mGattTimeoutCallbacks.size()];
-            mGattTimeoutCallbacks.toArray(l);
-        }
-        return l;
+        return mGattTimeoutCallbackArray;
     }
 
     @Override
@@ -391,18 +664,26 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
             onPaired(true);
             break;
         case REQUEST_CONNECT:
+            ReconnectCallback cb = mReconnectCallback;
+            if (msg.arg1 != 0 && cb != null) {
+                try {
+                    cb.onReconnect(mReconnectScheduler.getAttempt());
+                } catch (Throwable t) {
+                    Log.e(TAG, "onReconnect: error", t);
+                }
+            }
             connect(true);
             break;
         case CONNECT_COMPLETE:
-            mReconnectCount = mMaxConnectionRetries;
+            mReconnectScheduler.onConnected(SystemClock.elapsedRealtime());
             break;
         case REQUEST_DISCOVER_SERVICES:
-            if (mGatt.discoverServices()) {
+            if (mTransport.discoverServices()) {
                 mHandler.sendEmptyMessageDelayed(TIMEOUT_TYPE_SERVICE_DISCOVERY,
                         TIMEOUT_SERVICE_DISCOVERY_MS);
             } else {
                 Log.w(TAG, "Error calling discover services.");
-                onServicesDiscovered(mGatt, BluetoothGatt.GATT_FAILURE);
+                onServicesDiscovered(mTransport.getGatt(), BluetoothGatt.GATT_FAILURE);
             }
             break;
         case TIMEOUT_TYPE_PAIRING:
@@ -411,22 +692,31 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
             Log.w(TAG, "timeout: connect");
             synchronized (mConnectionLock) {
                 mPendingClose = true; // Force gatt connection to close
-                onConnectionStateChange(mGatt, BluetoothGatt.GATT_FAILURE,
+                mConnectTimedOut = true;
+                onConnectionStateChange(mTransport.getGatt(), BluetoothGatt.GATT_FAILURE,
                         BluetoothGatt.STATE_DISCONNECTED);
             }
             break;
         case TIMEOUT_TYPE_DISCONNECT:
             Log.w(TAG, "timeout: disconnect");
-            onConnectionStateChange(mGatt, BluetoothGatt.GATT_FAILURE,
+            onConnectionStateChange(mTransport.getGatt(), BluetoothGatt.GATT_FAILURE,
                     BluetoothGatt.STATE_DISCONNECTED);
             break;
         case TIMEOUT_TYPE_SERVICE_DISCOVERY:
             Log.w(TAG, "timeout: service discovery");
-            onServicesDiscovered(mGatt, BluetoothGatt.GATT_FAILURE);
+            onServicesDiscovered(mTransport.getGatt(), BluetoothGatt.GATT_FAILURE);
             break;
         case TIMEOUT_TYPE_GATT_REQUEST:
-            GattRequest r = (GattRequest) msg.obj;
+            GattRequest r = checkRequestTimeout();
+            if (r == null || !mRequestTracker.onTimeout(r)) {
+                // Not due yet, or its callback won the race
+                break;
+            }
             Log.w(TAG, "timeout: " + r.mRequestType);
+            if (r.mRequestType == REQUEST_READ_CHAR) {
+                onReadCompleted(r.mCharacteristic);
+            }
+            r.mOperation.complete(GattOperation.STATUS_TIMEOUT, null);
             sendTimeoutEvent(r);
             processQueuedRequests();
             break;
@@ -451,33 +741,14 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt,
             BluetoothGattCharacteristic characteristic, int status) {
-        cancelRequestTimeout();
-        BluetoothGattCallback[] cb = getGattCallbacks();
-        for (int i = 0; i < cb.length; i++) {
-            try {
-                cb[i].onCharacteristicRead(gatt, characteristic, status);
-            } catch (Throwable t) {
-                Log.e(TAG, "onCharacteristicRead[" + i + "]: error", t);
-            }
-        }
-        processQueuedRequests();
-
+        completeRequest(REQUEST_READ_CHAR, characteristic, status,
+                status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null);
     }
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt,
             BluetoothGattCharacteristic characteristic, int status) {
-        cancelRequestTimeout();
-        BluetoothGattCallback[] cb = getGattCallbacks();
-        for (int i = 0; i < cb.length; i++) {
-            try {
-                cb[i].onCharacteristicWrite(gatt, characteristic, status);
-            } catch (Throwable t) {
-                Log.e(TAG, "onCharacteristicWrite[" + i + "]: error", t);
-            }
-        }
-        processQueuedRequests();
-
+        completeRequest(REQUEST_WRITE_CHAR, characteristic, status, null);
     }
 
     private void registerPairingReceiver() {
@@ -525,14 +796,14 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
 
             // Remove all pending requests
             mHandler.removeCallbacksAndMessages(null);
-            mQueuedRequests.clear();
-            mPendingRequest = null;
+            resetRequestTimer();
+            clearReads();
+            cancelRequests(true);
 
             // Close gatt connection
-            if (mGatt != null) {
+            if (mTransport.isOpen()) {
                 try {
-                    mGatt.close();
-                    mGatt = null;
+                    mTransport.close();
                 } catch (Throwable t) {
                     Log.w(TAG, "closeAndCleanupGattConnection: error", t);
                 }
@@ -550,6 +821,7 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
             mPendingClose = false;
             mIsClosedAndCleanedUp = false;
             mIsUserDisconnectRequested = false;
+            mConnectTimedOut = false;
         }
     }
 
@@ -615,6 +887,7 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
                     + ", status=" + status);
         }
         stopConnectDisconnectTimeout();
+        boolean wasConnected = mConnectState == BluetoothGatt.STATE_CONNECTED;
         mConnectState = newState;
         // Handle disconnect
         if (newState == BluetoothGatt.STATE_DISCONNECTED
@@ -631,15 +904,16 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
             } else {
                 stopConnectCompleteTimer();
                 mHandler.removeCallbacksAndMessages(null);
-                mQueuedRequests.clear();
+                resetRequestTimer();
+                // The started request will not get its callback: cancel it
+                // with the others so that its operation completes
+                clearReads();
+                cancelRequests(true);
             }
 
-            if (!mIsUserDisconnectRequested && mRetryFailedConnection
-                    && ++mReconnectCount < mMaxConnectionRetries) {
-                if (DBG) {
-                    Log.d(TAG, "onConnectionStateChange: Auto-reconnecting...");
-                }
-                connectDelayed();
+            if (mRetryFailedConnection && scheduleReconnect(status) && !wasConnected) {
+                // A failed attempt: listeners already know the device is
+                // disconnected
                 return;
             }
         } else if (newState == BluetoothGatt.STATE_CONNECTED) {
@@ -647,6 +921,8 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
                 // Android 4.3: some devices can't handle an immediate service
                 // discovery request
                 discoverServicesDelayed();
+            } else {
+                mReconnectScheduler.onConnected(SystemClock.elapsedRealtime());
             }
         }
         // Send events to interested listeners
@@ -662,31 +938,13 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
 
     @Override
     public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        cancelRequestTimeout();
-        BluetoothGattCallback[] cb = getGattCallbacks();
-        for (int i = 0; i < cb.length; i++) {
-            try {
-                cb[i].onDescriptorRead(gatt, descriptor, status);
-            } catch (Throwable t) {
-                Log.e(TAG, "onDescriptorRead[" + i + "]: error", t);
-            }
-        }
-        processQueuedRequests();
-
+        completeRequest(REQUEST_READ_DESCRIPTOR, descriptor, status,
+                status == BluetoothGatt.GATT_SUCCESS ? descriptor.getValue() : null);
     }
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        cancelRequestTimeout();
-        BluetoothGattCallback[] cb = getGattCallbacks();
-        for (int i = 0; i < cb.length; i++) {
-            try {
-                cb[i].onDescriptorWrite(gatt, descriptor, status);
-            } catch (Throwable t) {
-                Log.e(TAG, "onDescriptorWrite[" + i + "]: error", t);
-            }
-        }
-        processQueuedRequests();
+        completeRequest(REQUEST_WRITE_DESCRIPTOR, descriptor, status, null);
     }
 
     @Override
@@ -720,6 +978,7 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
         // Check if we need to retry
         if (status == BluetoothGatt.GATT_SUCCESS) {
             mServicesDiscovered = true;
+            mReconnectScheduler.onConnected(SystemClock.elapsedRealtime());
         }
         if (mDiscoverServices && !mServicesDiscovered) {
             // Disconnect and reconnect if mRetryFailedConnection=true
@@ -746,23 +1005,37 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
                 return false;
             }
             if (!isReconnect) {
-                mReconnectCount = 0;
+                mReconnectScheduler.reset();
             }
             // Remove any queued connect requests
             mHandler.removeMessages(REQUEST_CONNECT);
             initStateBeforeConnect();
-            boolean success = false;
             startConnectDisconnectTimeout(true);
-            if (mGatt != null) {
-                success = mGatt.connect();
-            } else {
-                mGatt = mDevice.connectGatt(mContext, mAutoConnect, this);
-                success = (null != mGatt);
-            }
-            return success;
+            return mTransport.connect(mAutoConnect, this);
         }
     }
 
+    /**
+     * Classify a disconnect and schedule the next connect attempt
+     *
+     * @return true if an attempt was scheduled
+     */
+    private boolean scheduleReconnect(int status) {
+        int cause = ReconnectScheduler.classify(status, mIsUserDisconnectRequested,
+                mConnectTimedOut);
+        long delayMs = mReconnectScheduler.onDisconnected(cause, SystemClock.elapsedRealtime());
+        if (DBG) {
+            Log.d(TAG, "scheduleReconnect: cause=" + ReconnectScheduler.getCauseName(cause)
+                    + ", attempt=" + mReconnectScheduler.getAttempt() + ", delayMs=" + delayMs);
+        }
+        if (delayMs < 0) {
+            return false;
+        }
+        // arg1 marks an automatic reconnect for the ReconnectCallback
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(REQUEST_CONNECT, 1, 0), delayMs);
+        return true;
+    }
+
     private boolean disconnect(boolean isUserRequested, boolean closeResources) {
         synchronized (mConnectionLock) {
             // Check if we have a pending connect/disconnect request
@@ -774,10 +1047,10 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
             stopConnectCompleteTimer();
             mIsUserDisconnectRequested = isUserRequested;
             mServicesDiscovered = false;
-            if (mGatt != null) {
+            if (mTransport.isOpen()) {
                 mPendingClose = closeResources;
                 startConnectDisconnectTimeout(false);
-                mGatt.disconnect();
+                mTransport.disconnect();
             } else {
                 Log.w(TAG, "disconnect: cannot disconnect, because gatt is null");
                 return false;
@@ -787,75 +1060,226 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
     }
 
     private boolean discoverServicesDelayed() {
-        if (mGatt == null) {
+        if (!mTransport.isOpen()) {
             return false;
         }
-        mHandler.sendEmptyMessageDelayed(REQUEST_DISCOVER_SERVICES, DISCOVER_SERVICES_DELAY_MS);
+        mHandler.sendEmptyMessageDelayed(REQUEST_DISCOVER_SERVICES,
+                mFastConnect ? 0 : DISCOVER_SERVICES_DELAY_MS);
         return true;
     }
 
     // ---------------------Public API--------------------------------------
     public GattRequestManager(Context ctx, BluetoothDevice device) {
+        this(ctx, device, new BluetoothGattTransport(ctx, device));
+    }
+
+    /**
+     * Create a manager that makes its GATT requests through the given
+     * transport, such as a simulated peripheral. Timers and retries run on
+     * the {@link GattIoThread}
+     */
+    public GattRequestManager(Context ctx, BluetoothDevice device, GattTransport transport) {
+        this(ctx, device, transport, GattIoThread.getLooper());
+    }
+
+    /**
+     * Create a manager that runs its timers and retries on the given looper
+     */
+    public GattRequestManager(Context ctx, BluetoothDevice device, GattTransport transport,
+            Looper looper) {
         mDevice = device;
         mContext = ctx;
+        mTransport = transport;
+        mHandler = new Handler(looper, this);
+        for (int i = 0; i < mRttEstimators.length; i++) {
+            mRttEstimators[i] = new RttEstimator(TIMEOUT_GATT_REQUEST_MIN_MS,
+                    TIMEOUT_GATT_REQUEST_MAX_MS);
+        }
+        for (int i = 0; i < LATENCY_PHASES; i++) {
+            for (int j = 0; j < mLatency[i].length; j++) {
+                mLatency[i][j] = new LatencyHistogram();
+            }
+        }
     }
 
+    /**
+     * Add a callback called when a request times out. The
+     * {@link GattOperation} of the request also completes with
+     * {@link GattOperation#STATUS_TIMEOUT}
+     */
     public void addTimeoutCallback(GattTimeoutCallback l) {
         synchronized (mGattTimeoutCallbacks) {
             if (!mGattTimeoutCallbacks.contains(l)) {
                 mGattTimeoutCallbacks.add(l);
+                mGattTimeoutCallbackArray = mGattTimeoutCallbacks
+                        .toArray(new GattTimeoutCallback[mGattTimeoutCallbacks.size()]);
             }
         }
     }
 
     public void removeTimeoutCallback(GattTimeoutCallback l) {
         synchronized (mGattTimeoutCallbacks) {
-            mGattTimeoutCallbacks.remove(l);
+            if (mGattTimeoutCallbacks.remove(l)) {
+                mGattTimeoutCallbackArray = mGattTimeoutCallbacks
+                        .toArray(new GattTimeoutCallback[mGattTimeoutCallbacks.size()]);
+            }
         }
     }
 
+    /**
+     * Add a callback for connection, service discovery and notification
+     * events. The results of reads and writes are only delivered to the
+     * {@link GattOperation} returned by the request
+     */
     public void addCallback(BluetoothGattCallback cb) {
         synchronized (mGattCallbacks) {
             if (!mGattCallbacks.contains(cb)) {
                 mGattCallbacks.add(cb);
+                mGattCallbackArray = mGattCallbacks.toArray(new BluetoothGattCallback[mGattCallbacks
+                        .size()]);
             }
         }
     }
 
     public void removeCallback(BluetoothGattCallback cb) {
         synchronized (mGattCallbacks) {
-            mGattCallbacks.remove(cb);
+            if (mGattCallbacks.remove(cb)) {
+                mGattCallbackArray = mGattCallbacks.toArray(new BluetoothGattCallback[mGattCallbacks
+                        .size()]);
+            }
         }
     }
 
     public void addPairingCallback(LePairingCallback cb) {
-        synchronized (mGattCallbacks) {
+        synchronized (mPairingCallbacks) {
             if (!mPairingCallbacks.contains(cb)) {
                 mPairingCallbacks.add(cb);
+                mPairingCallbackArray = mPairingCallbacks
+                        .toArray(new LePairingCallback[mPairingCallbacks.size()]);
             }
         }
     }
 
     public void removePairingCallback(LePairingCallback cb) {
-        synchronized (mGattCallbacks) {
-            mPairingCallbacks.remove(cb);
+        synchronized (mPairingCallbacks) {
+            if (mPairingCallbacks.remove(cb)) {
+                mPairingCallbackArray = mPairingCallbacks
+                        .toArray(new LePairingCallback[mPairingCallbacks.size()]);
+            }
         }
     }
 
     public void removeAllCallbacks() {
-        mGattCallbacks.clear();
-        mGattTimeoutCallbacks.clear();
-        mPairingCallbacks.clear();
+        synchronized (mGattCallbacks) {
+            mGattCallbacks.clear();
+            mGattCallbackArray = new BluetoothGattCallback[0];
+        }
+        synchronized (mGattTimeoutCallbacks) {
+            mGattTimeoutCallbacks.clear();
+            mGattTimeoutCallbackArray = new GattTimeoutCallback[0];
+        }
+        synchronized (mPairingCallbacks) {
+            mPairingCallbacks.clear();
+            mPairingCallbackArray = new LePairingCallback[0];
+        }
     }
 
     public void setAutoConnect(boolean autoConnect) {
         mAutoConnect = autoConnect;
     }
 
+    /**
+     * Reconnect after a connection fails or is lost, unless the disconnect
+     * was requested. Attempts are spaced by {@link ReconnectScheduler}
+     *
+     * @param retry
+     * @param maxRetries
+     *            attempts per outage, or a negative value for no limit
+     */
     public void setRetryFailedConnection(boolean retry, int maxRetries) {
         synchronized (mConnectionLock) {
             mRetryFailedConnection = retry;
-            mMaxConnectionRetries = maxRetries;
+            mReconnectScheduler.setMaxAttempts(maxRetries);
+        }
+    }
+
+    /**
+     * Copy the reconnect statistics: disconnects by cause, attempts and the
+     * time taken to recover from each outage
+     *
+     * @param out
+     * @return out
+     */
+    public ReconnectScheduler.Stats getReconnectStats(ReconnectScheduler.Stats out) {
+        return mReconnectScheduler.getStats(out);
+    }
+
+    /**
+     * Copy the latency histogram of a request phase
+     *
+     * @param phase
+     *            one of the LATENCY_ constants
+     * @param requestType
+     *            one of REQUEST_READ_CHAR, REQUEST_WRITE_CHAR,
+     *            REQUEST_READ_DESCRIPTOR, REQUEST_WRITE_DESCRIPTOR
+     * @param out
+     * @return out
+     */
+    public LatencyHistogram getLatencyHistogram(int phase, int requestType, LatencyHistogram out) {
+        synchronized (mLatency) {
+            out.copyFrom(mLatency[phase][requestType]);
+        }
+        return out;
+    }
+
+    public void resetLatencyHistograms() {
+        synchronized (mLatency) {
+            for (int i = 0; i < LATENCY_PHASES; i++) {
+                for (int j = 0; j < mLatency[i].length; j++) {
+                    mLatency[i][j].clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the latency histograms of each request type and phase
+     */
+    public void dumpLatencyHistograms(PrintWriter pw) {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int type = REQUEST_READ_CHAR; type <= REQUEST_WRITE_DESCRIPTOR; type++) {
+            for (int phase = 0; phase < LATENCY_PHASES; phase++) {
+                getLatencyHistogram(phase, type, h);
+                if (h.getCount() == 0) {
+                    continue;
+                }
+                pw.println(getMessageString(type) + " " + LATENCY_PHASE_NAMES[phase] + ": " + h);
+                pw.println("  buckets(us:count): " + h.bucketsToString());
+            }
+        }
+    }
+
+    /**
+     * Set the bounds of the GATT request timeouts. Within them, the timeout
+     * of each request type follows its measured round trip times
+     */
+    public void setRequestTimeoutBounds(int minTimeoutMs, int maxTimeoutMs) {
+        synchronized (mRequestTimerLock) {
+            for (int i = 0; i < mRttEstimators.length; i++) {
+                mRttEstimators[i].setBounds(minTimeoutMs, maxTimeoutMs);
+            }
+        }
+    }
+
+    /**
+     * @param requestType
+     *            REQUEST_READ_CHAR, REQUEST_WRITE_CHAR, REQUEST_READ_DESCRIPTOR
+     *            or REQUEST_WRITE_DESCRIPTOR
+     * @return the current timeout of the request type
+     */
+    public int getRequestTimeoutMs(int requestType) {
+        synchronized (mRequestTimerLock) {
+            return (int) (mRttEstimators[requestType].getTimeoutNs() / 1000000);
         }
     }
 
@@ -869,6 +1293,22 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
         mDiscoverServices = discoverServices;
     }
 
+    /**
+     * Skip the delays before reconnecting and before service discovery. Only
+     * use for a device known to handle an immediate service discovery, e.g.
+     * one with a layout in the {@link GattAttributeCache}
+     */
+    public void setFastConnect(boolean fastConnect) {
+        mFastConnect = fastConnect;
+    }
+
+    /**
+     * Set the callback called before each automatic reconnect attempt, or null
+     */
+    public void setReconnectCallback(ReconnectCallback cb) {
+        mReconnectCallback = cb;
+    }
+
     public boolean unpair() {
         registerPairingReceiver();
         boolean success = mDevice != null && unpair(mDevice);
@@ -907,7 +1347,7 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
                     + getMessageString(mPendingConnectDisconnectRequest));
             return false;
         }
-        mHandler.sendEmptyMessageDelayed(REQUEST_CONNECT, CONNECT_DELAY_MS);
+        mHandler.sendEmptyMessageDelayed(REQUEST_CONNECT, mFastConnect ? 0 : CONNECT_DELAY_MS);
         return true;
     }
 
@@ -934,7 +1374,7 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
     }
 
     public boolean discoverServices() {
-        if (mGatt == null) {
+        if (!mTransport.isOpen()) {
             return false;
         }
 
@@ -942,65 +1382,169 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
         return true;
     }
 
-    public void read(BluetoothGattDescriptor d) {
-        queueRequest(new GattRequest(REQUEST_READ_DESCRIPTOR, null, d), false);
+    public GattOperation read(BluetoothGattDescriptor d) {
+        return queueRequest(new GattRequest(REQUEST_READ_DESCRIPTOR, PRIORITY_INTERACTIVE, null,
+                d), false);
     }
 
-    public void read(BluetoothGattCharacteristic c, boolean immediate) {
-        queueRequest(new GattRequest(REQUEST_READ_CHAR, c, null), immediate);
+    /**
+     * Read a characteristic with interactive priority
+     *
+     * @param c
+     * @param immediate
+     *            true to start the read before the other interactive requests
+     * @return the operation, completed with the value read
+     */
+    public GattOperation read(BluetoothGattCharacteristic c, boolean immediate) {
+        return queueRequest(new GattRequest(REQUEST_READ_CHAR, PRIORITY_INTERACTIVE, c, null),
+                immediate);
     }
 
-    public void read(BluetoothGattCharacteristic c) {
-        read(c, false);
+    /**
+     * Read a characteristic
+     *
+     * @param c
+     * @param priority
+     *            one of the PRIORITY_ constants
+     * @return the operation, completed with the value read. A read of a
+     *         characteristic already queued returns the queued operation
+     */
+    public GattOperation read(BluetoothGattCharacteristic c, int priority) {
+        return queueRequest(new GattRequest(REQUEST_READ_CHAR, priority, c, null), false);
     }
 
-    public void write(BluetoothGattDescriptor d, byte[] value) {
-        queueRequest(new GattRequest(REQUEST_WRITE_DESCRIPTOR, null, d, value), false);
+    public GattOperation read(BluetoothGattCharacteristic c) {
+        return read(c, false);
     }
 
-    public void write(BluetoothGattCharacteristic c, byte[] value, boolean immediate) {
-        queueRequest(new GattRequest(REQUEST_WRITE_CHAR, c, null, value), immediate);
+    /**
+     * Write a descriptor, such as a client configuration, with control
+     * priority
+     */
+    public GattOperation write(BluetoothGattDescriptor d, byte[] value) {
+        return queueRequest(new GattRequest(REQUEST_WRITE_DESCRIPTOR, PRIORITY_CONTROL, null, d,
+                value), false);
     }
 
-    public void write(BluetoothGattCharacteristic c, byte[] value) {
-        write(c, value, false);
+    public GattOperation write(BluetoothGattCharacteristic c, byte[] value, boolean immediate) {
+        return queueRequest(new GattRequest(REQUEST_WRITE_CHAR, PRIORITY_INTERACTIVE, c, null,
+                value), immediate);
     }
 
-    public void write(int id, BluetoothGattCharacteristic c, byte[] value) {
-        queueRequest(new GattRequest(id, REQUEST_WRITE_CHAR, c, null, value), false);
+    /**
+     * Write a characteristic
+     *
+     * @param c
+     * @param value
+     * @param priority
+     *            one of the PRIORITY_ constants
+     * @return the operation, completed with the write response
+     */
+    public GattOperation write(BluetoothGattCharacteristic c, byte[] value, int priority) {
+        return queueRequest(new GattRequest(REQUEST_WRITE_CHAR, priority, c, null, value), false);
+    }
+
+    public GattOperation write(BluetoothGattCharacteristic c, byte[] value) {
+        return write(c, value, false);
+    }
+
+    public GattOperation write(int id, BluetoothGattCharacteristic c, byte[] value) {
+        return write(id, c, value, PRIORITY_INTERACTIVE);
+    }
 
+    public GattOperation write(int id, BluetoothGattCharacteristic c, byte[] value, int priority) {
+        return queueRequest(new GattRequest(id, REQUEST_WRITE_CHAR, priority, c, null, value),
+                false);
+    }
+
+    /**
+     * Write a characteristic without response. The operation completes when
+     * the local stack has accepted the packet, not when the peer has
+     * received it, so several writes can be kept queued back to back. The
+     * characteristic must have the PROPERTY_WRITE_NO_RESPONSE property
+     *
+     * @param id
+     * @param c
+     * @param value
+     * @param priority
+     *            one of the PRIORITY_ constants
+     * @return the operation
+     */
+    public GattOperation writeNoResponse(int id, BluetoothGattCharacteristic c, byte[] value,
+            int priority) {
+        return queueRequest(new GattRequest(id, REQUEST_WRITE_CHAR, priority, c, null, value,
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE), false);
+    }
+
+    /**
+     * Copy the time requests of a priority class waited in the queue
+     *
+     * @param priority
+     *            one of the PRIORITY_ constants
+     * @param out
+     * @return out
+     */
+    public PriorityRequestQueue.WaitStats getQueueWaitStats(int priority,
+            PriorityRequestQueue.WaitStats out) {
+        return mRequestQueue.getWaitStats(priority, out);
     }
 
     public boolean setCharacteristicNotification(BluetoothGattCharacteristic c, boolean enable) {
-        return mGatt != null && mGatt.setCharacteristicNotification(c, enable);
+        return mTransport.setCharacteristicNotification(c, enable);
     }
 
-    public void removeRequest(int requestType, BluetoothGattCharacteristic c) {
-        synchronized (mQueuedRequests) {
-            Iterator<GattRequest> i = mQueuedRequests.iterator();
-            while (i.hasNext()) {
-                GattRequest r = i.next();
-                if (r.mRequestType == requestType && r.mCharacteristic == c) {
-                    i.remove();
-                }
+    /**
+     * Remove the queued requests of a type for a characteristic. Not needed
+     * to avoid duplicate reads: a read of a characteristic that already has a
+     * read queued or pending is merged with it
+     */
+    public void removeRequest(final int requestType, final BluetoothGattCharacteristic c) {
+        RequestQueue.Filter<GattRequest> filter = new RequestQueue.Filter<GattRequest>() {
+            @Override
+            public boolean matches(GattRequest r) {
+                return r.mRequestType == requestType && r.mCharacteristic == c;
+            }
+        };
+        if (requestType != REQUEST_READ_CHAR) {
+            mRequestQueue.remove(filter);
+            return;
+        }
+        synchronized (mReads) {
+            if (mRequestQueue.remove(filter) > 0) {
+                mReads.remove(c);
             }
         }
     }
 
-    public void removeRequest(int requestType, BluetoothGattDescriptor d) {
-        synchronized (mQueuedRequests) {
-            Iterator<GattRequest> i = mQueuedRequests.iterator();
-            while (i.hasNext()) {
-                GattRequest r = i.next();
-                if (r.mRequestType == requestType && r.mDescriptor == d) {
-                    i.remove();
-                }
-            }
+    /**
+     * @return the number of reads merged with a read of the same
+     *         characteristic that was already queued or pending
+     */
+    public int getCoalescedReadCount() {
+        synchronized (mReads) {
+            return mCoalescedReadCount;
         }
     }
 
+    public void removeRequest(final int requestType, final BluetoothGattDescriptor d) {
+        mRequestQueue.remove(new RequestQueue.Filter<GattRequest>() {
+            @Override
+            public boolean matches(GattRequest r) {
+                return r.mRequestType == requestType && r.mDescriptor == d;
+            }
+        });
+    }
+
     public BluetoothGatt getGatt() {
-        return mGatt;
+        return mTransport.getGatt();
+    }
+
+    public GattTransport getTransport() {
+        return mTransport;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return mTransport.getServices();
     }
 
     public BluetoothDevice getDevice() {
@@ -1012,7 +1556,7 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
             return null;
         }
 
-        List<BluetoothGattService> services = mGatt.getServices();
+        List<BluetoothGattService> services = mTransport.getServices();
         if (services == null) {
             return null;
         }
@@ -1050,29 +1594,49 @@ public class GattRequestManager extends BluetoothGattCallback implements Handler
 
     public void finish() {
         synchronized (mConnectionLock) {
-            if (mGatt != null) {
-                mGatt.close();
-                mGatt = null;
-            }
+            mTransport.close();
         }
     }
 
     public void debugDumpInfo() {
         Log.d(TAG, "DEBUG mAutoConnect=" + mAutoConnect);
         Log.d(TAG, "DEBUG mRetryFailedConnection=" + mRetryFailedConnection);
-        Log.d(TAG, "DEBUG mMaxConnectionRetries=" + mMaxConnectionRetries);
+        Log.d(TAG, "DEBUG reconnect: "
+                + mReconnectScheduler.getStats(new ReconnectScheduler.Stats()));
         Log.d(TAG, "DEBUG mDiscoverServices=" + mDiscoverServices);
         Log.d(TAG, "");
         Log.d(TAG, "DEBUG GattRequestManager = " + this);
         Log.d(TAG, "DEBUG mGattCallbacks size= " + mGattCallbacks.size());
         Log.d(TAG, "DEBUG mGattRequestListeners size= " + mGattTimeoutCallbacks.size());
         Log.d(TAG, "");
-        Log.d(TAG, "DEBUG mQueuedRequests size=" + mQueuedRequests.size());
-        Log.d(TAG, "DEBUG mPendingRequest=" + mPendingRequest + ", id= "
-                + (mPendingRequest != null ? mPendingRequest.mId : "") + ", type="
-                + (mPendingRequest != null ? mPendingRequest.mRequestType : ""));
+        GattRequest pendingRequest = mRequestQueue.getPending();
+        Log.d(TAG, "DEBUG mRequestQueue size=" + mRequestQueue.size());
+        Log.d(TAG, "DEBUG coalesced reads=" + getCoalescedReadCount());
+        Log.d(TAG, "DEBUG dropped callbacks: late=" + mRequestTracker.getLateCallbackCount()
+                + ", stray=" + mRequestTracker.getStrayCallbackCount());
+        synchronized (mRequestTimerLock) {
+            for (int i = REQUEST_READ_CHAR; i <= REQUEST_WRITE_DESCRIPTOR; i++) {
+                Log.d(TAG, "DEBUG " + getMessageString(i) + " rtt: " + mRttEstimators[i]);
+            }
+        }
+        StringWriter latency = new StringWriter();
+        dumpLatencyHistograms(new PrintWriter(latency));
+        String[] lines = latency.toString().split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].length() > 0) {
+                Log.d(TAG, "DEBUG latency " + lines[i]);
+            }
+        }
+        PriorityRequestQueue.WaitStats waitStats = new PriorityRequestQueue.WaitStats();
+        for (int i = PRIORITY_CONTROL; i <= PRIORITY_BACKGROUND; i++) {
+            Log.d(TAG, "DEBUG queue wait, priority " + i + ": "
+                    + mRequestQueue.getWaitStats(i, waitStats));
+        }
+        Log.d(TAG, "DEBUG pendingRequest=" + pendingRequest + ", id= "
+                + (pendingRequest != null ? pendingRequest.mId : "") + ", type="
+                + (pendingRequest != null ? pendingRequest.mRequestType : ""));
         Log.d(TAG, "DEBUG mDevice=" + mDevice);
-        Log.d(TAG, "DEBUG mGatt=" + mGatt);
+        Log.d(TAG, "DEBUG mTransport=" + mTransport);
         Log.d(TAG, "DEBUG mConnectState=" + getConnectionStateString(mConnectState));
         Log.d(TAG, "DEBUG mServicesDiscovered=" + mServicesDiscovered);
         Log.d(TAG, "DEBUG mPendingConnectDisconnectRequest=" + mPendingConnectDisconnectRequest);
@@ -0,0 +1,76 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import java.util.List;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+/**
+ * The GATT client operations used by {@link GattRequestManager}. Implemented
+ * over a {@link BluetoothGatt} connection, or over a simulated peripheral for
+ * testing without hardware. Results are reported to the callback passed to
+ * {@link #connect(boolean, BluetoothGattCallback)}
+ *
+ */
+public interface GattTransport {
+
+    /**
+     * Open the connection, or reconnect if it is already open
+     */
+    public boolean connect(boolean autoConnect, BluetoothGattCallback callback);
+
+    public void disconnect();
+
+    /**
+     * Release the connection. {@link #connect(boolean, BluetoothGattCallback)}
+     * opens a new one
+     */
+    public void close();
+
+    public boolean isOpen();
+
+    public boolean discoverServices();
+
+    public List<BluetoothGattService> getServices();
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic c);
+
+    public boolean writeCharacteristic(BluetoothGattCharacteristic c);
+
+    public boolean readDescriptor(BluetoothGattDescriptor d);
+
+    public boolean writeDescriptor(BluetoothGattDescriptor d);
+
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic c, boolean enable);
+
+    /**
+     * True if the remote device can be bonded with
+     */
+    public boolean supportsPairing();
+
+    /**
+     * The underlying connection, or null if not open or not a Bluetooth
+     * connection
+     */
+    public BluetoothGatt getGatt();
+}
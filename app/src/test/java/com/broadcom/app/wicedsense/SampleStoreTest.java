@@ -0,0 +1,144 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the store rolls over to a new segment when one is full or its
+ * relative times would overflow, and keeps only the newest segments
+ *
+ */
+public class SampleStoreTest {
+    private static final int RECORDS_PER_SEGMENT = 4;
+    private static final int SEGMENT_SIZE = SampleSegment.HEADER_SIZE + RECORDS_PER_SEGMENT
+            * SampleSegment.RECORD_SIZE;
+    private static final int MAX_SEGMENTS = 3;
+
+    private File mDir;
+    private final SensorSample mSample = new SensorSample();
+    private final SensorSample mOut = new SensorSample();
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("samples").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private void append(SampleStore store, long timeMs) {
+        mSample.clear();
+        mSample.mTimestampMs = timeMs;
+        mSample.mPacketLength = SensorDataParser.SENSOR_ENV_PACKET_LENGTH;
+        mSample.mMask = SensorDataParser.SENSOR_FLAG_HUMIDITY;
+        mSample.mHumidity = timeMs % 1000;
+        store.onSensorSample(mSample);
+    }
+
+    @Test
+    public void keepsNewestSegments() {
+        SampleStore store = new SampleStore(mDir, SEGMENT_SIZE, MAX_SEGMENTS);
+        for (int i = 0; i < 20; i++) {
+            append(store, i * 10);
+        }
+        assertEquals(MAX_SEGMENTS, store.getSegmentCount());
+        assertEquals(MAX_SEGMENTS, mDir.list().length);
+
+        // Segments of 4 samples: the last 3 hold samples 8 to 19
+        SampleStore.Reader reader = store.newReader(0, Long.MAX_VALUE);
+        for (int i = 8; i < 20; i++) {
+            assertTrue(reader.next(mOut));
+            assertEquals(i * 10, mOut.mTimestampMs);
+            assertEquals(i * 10 % 1000, mOut.mHumidity, 1e-4);
+        }
+        assertFalse(reader.next(mOut));
+    }
+
+    @Test
+    public void readerStopsAtEndOfRange() {
+        SampleStore store = new SampleStore(mDir, SEGMENT_SIZE, MAX_SEGMENTS);
+        for (int i = 0; i < 10; i++) {
+            append(store, i * 10);
+        }
+        SampleStore.Reader reader = store.newReader(25, 55);
+        for (int i = 3; i <= 5; i++) {
+            assertTrue(reader.next(mOut));
+            assertEquals(i * 10, mOut.mTimestampMs);
+        }
+        assertFalse(reader.next(mOut));
+    }
+
+    @Test
+    public void rollsOverBeforeRelativeTimeOverflows() {
+        SampleStore store = new SampleStore(mDir, SEGMENT_SIZE, MAX_SEGMENTS);
+        long farMs = Integer.MAX_VALUE + 1000L;
+        append(store, 0);
+        append(store, farMs);
+        assertEquals(2, store.getSegmentCount());
+
+        SampleStore.Reader reader = store.newReader(0, Long.MAX_VALUE);
+        assertTrue(reader.next(mOut));
+        assertEquals(0, mOut.mTimestampMs);
+        assertTrue(reader.next(mOut));
+        assertEquals(farMs, mOut.mTimestampMs);
+        assertFalse(reader.next(mOut));
+    }
+
+    @Test
+    public void reopenedStoreAppendsToLastSegment() {
+        SampleStore store = new SampleStore(mDir, SEGMENT_SIZE, MAX_SEGMENTS);
+        append(store, 0);
+        append(store, 10);
+        store.close();
+
+        store = new SampleStore(mDir, SEGMENT_SIZE, MAX_SEGMENTS);
+        append(store, 20);
+        append(store, 30);
+        assertEquals(1, store.getSegmentCount());
+        append(store, 40);
+        assertEquals(2, store.getSegmentCount());
+    }
+
+    @Test
+    public void segmentsForRetention() {
+        int segmentSize = SampleSegment.HEADER_SIZE + 100 * SampleSegment.RECORD_SIZE;
+        // 250 samples fill 3 segments, plus the one being filled
+        assertEquals(4, SampleStore.getSegmentsForRetention(segmentSize, 10000, 25));
+        assertEquals(3, SampleStore.getSegmentsForRetention(segmentSize, 8000, 25));
+        assertEquals(1, SampleStore.getSegmentsForRetention(segmentSize, 0, 25));
+    }
+}
@@ -0,0 +1,96 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.broadcom.app.wicedsense.RollingAggregator;
+import com.broadcom.app.wicedsense.SensorDataParser;
+import com.broadcom.app.wicedsense.SensorSample;
+import com.broadcom.app.wicedsense.SensorSampleRing;
+import com.broadcom.app.wicedsense.SensorSampleSink;
+
+/**
+ * Cost of delivering one sensor packet to all consumers: decode into the
+ * ring, wake up and drain each reader, and dispatch to the sample sinks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FanOutBenchmark {
+
+    @Param({ "1", "4" })
+    public int mReaders;
+
+    private final byte[] mPacket = { 0x34, (byte) 0xc5, 0x01, (byte) 0xc4, 0x26, (byte) 0xe6,
+            0x00 };
+    private final SensorSampleRing mRing = new SensorSampleRing(256);
+    private final SensorSample mSample = new SensorSample();
+    private SensorSampleRing.Reader[] mReaderArray;
+    private SensorSampleSink[] mSinks;
+    private long mTimeMs;
+
+    @Setup
+    public void setup() {
+        mReaderArray = new SensorSampleRing.Reader[mReaders];
+        for (int i = 0; i < mReaders; i++) {
+            mReaderArray[i] = mRing.newReader();
+        }
+        mSinks = new SensorSampleSink[] { new RollingAggregator(), new RollingAggregator() };
+    }
+
+    @Benchmark
+    public SensorSample publishAndDrain() {
+        SensorSample slot = mRing.claim();
+        SensorDataParser.decode(mPacket, slot);
+        slot.mTimestampMs = mTimeMs += 50;
+        mRing.publish();
+
+        SensorSampleRing.Reader[] readers = mReaderArray;
+        for (int i = 0; i < readers.length; i++) {
+            SensorSampleRing.Reader r = readers[i];
+            if (r.requestWakeup()) {
+                r.clearWakeup();
+                while (r.read(mSample)) {
+                    // drained
+                }
+            }
+        }
+        return mSample;
+    }
+
+    @Benchmark
+    public SensorSample sinkDispatch() {
+        SensorDataParser.decode(mPacket, mSample);
+        mSample.mTimestampMs = mTimeMs += 50;
+        SensorSampleSink[] sinks = mSinks;
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i].onSensorSample(mSample);
+        }
+        return mSample;
+    }
+}
@@ -0,0 +1,61 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.broadcom.util.OrientationFilter;
+
+/**
+ * Cost of one orientation filter update, in nanoseconds
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OrientationFilterBenchmark {
+    private final OrientationFilter mFilter = new OrientationFilter();
+    private float mGyro = 0.01f;
+
+    @Benchmark
+    public float update9Axis() {
+        mGyro = -mGyro;
+        mFilter.update(mGyro, 0.02f, -0.01f, 12, 700, 710, 310, 95, -402, 0.0125f);
+        return mFilter.getQuaternionW();
+    }
+
+    @Benchmark
+    public float update6Axis() {
+        mGyro = -mGyro;
+        mFilter.updateImu(mGyro, 0.02f, -0.01f, 12, 700, 710, 0.0125f);
+        return mFilter.getQuaternionW();
+    }
+
+    @Benchmark
+    public float updateAndAngles() {
+        mGyro = -mGyro;
+        mFilter.update(mGyro, 0.02f, -0.01f, 12, 700, 710, 310, 95, -402, 0.0125f);
+        return mFilter.getHeading() + mFilter.getPitch() + mFilter.getRoll();
+    }
+}
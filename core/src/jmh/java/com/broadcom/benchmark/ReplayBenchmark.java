@@ -0,0 +1,103 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.broadcom.app.wicedsense.PacketCapture;
+import com.broadcom.app.wicedsense.PacketReplayer;
+import com.broadcom.app.wicedsense.PacketSink;
+import com.broadcom.app.wicedsense.SensorDataParser;
+import com.broadcom.app.wicedsense.SensorSample;
+import com.broadcom.app.wicedsense.SensorSampleRing;
+
+/**
+ * Maximum sustainable sample rate of the replay path: a capture replayed at
+ * {@link PacketReplayer#SPEED_MAX}, decoded into the sample ring and drained
+ * by a reader. The score is in samples per second
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReplayBenchmark {
+    private static final int PACKETS = 100000;
+
+    private final byte[] mEnvPacket = { 0x34, (byte) 0xc5, 0x01, (byte) 0xc4, 0x26, (byte) 0xe6,
+            0x00 };
+    private final byte[] mMotionPacket = new byte[SensorDataParser.SENSOR_MOTION_PACKET_LENGTH];
+    private final SensorSampleRing mRing = new SensorSampleRing(256);
+    private final SensorSampleRing.Reader mReader = mRing.newReader();
+    private final SensorSample mSample = new SensorSample();
+    private File mFile;
+    private long mTimeMs;
+
+    private final PacketSink mSink = new PacketSink() {
+        @Override
+        public void onSensorPacket(byte[] packet) {
+            SensorSample slot = mRing.claim();
+            if (!SensorDataParser.decode(packet, slot)) {
+                return;
+            }
+            slot.mTimestampMs = mTimeMs += 50;
+            mRing.publish();
+            while (mReader.read(mSample)) {
+                // drained
+            }
+        }
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        mMotionPacket[0] = 0x0b;
+        for (int i = 1; i < mMotionPacket.length; i++) {
+            mMotionPacket[i] = (byte) (i * 37);
+        }
+        mFile = File.createTempFile("replay", ".cap");
+        PacketCapture.Writer writer = new PacketCapture.Writer(mFile, 0);
+        try {
+            for (int i = 0; i < PACKETS; i++) {
+                writer.write(i % 4 == 0 ? mEnvPacket : mMotionPacket, i * 50000000L);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public PacketReplayer.Stats replayMaxSpeed() throws IOException {
+        return new PacketReplayer(mFile, mSink, PacketReplayer.SPEED_MAX).run();
+    }
+}
@@ -0,0 +1,97 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.broadcom.util.FifoRequestQueue;
+import com.broadcom.util.PriorityRequestQueue;
+import com.broadcom.util.RequestQueue;
+
+/**
+ * Enqueue and dispatch cost of the GATT request queues. Each operation queues
+ * a request behind a backlog of the given depth and completes the pending
+ * one, like a GATT callback does. The priority queue requests are spread over
+ * all classes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestQueueBenchmark {
+    private static final int BURST = 64;
+
+    private static final PriorityRequestQueue.Classifier<Integer> CLASSIFIER = new PriorityRequestQueue.Classifier<Integer>() {
+        @Override
+        public int getPriority(Integer request) {
+            return request.intValue() & 3;
+        }
+    };
+
+    @Param({ "0", "16" })
+    public int mBacklog;
+
+    @Param({ "fifo", "priority" })
+    public String mQueueType;
+
+    private final Integer[] mRequests = new Integer[BURST];
+    private RequestQueue<Integer> mQueue;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < BURST; i++) {
+            mRequests[i] = Integer.valueOf(i);
+        }
+        if ("priority".equals(mQueueType)) {
+            mQueue = new PriorityRequestQueue<Integer>(CLASSIFIER, 1000);
+        } else {
+            mQueue = new FifoRequestQueue<Integer>();
+        }
+        for (int i = 0; i < mBacklog + 1; i++) {
+            mQueue.add(mRequests[i % BURST], false);
+        }
+    }
+
+    @Benchmark
+    public Object enqueueDispatch() {
+        mQueue.add(mRequests[0], false);
+        return mQueue.next();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public Object burst() {
+        for (int i = 0; i < BURST; i++) {
+            mQueue.add(mRequests[i], false);
+        }
+        Object r = null;
+        for (int i = 0; i < BURST; i++) {
+            r = mQueue.next();
+        }
+        return r;
+    }
+}
@@ -0,0 +1,81 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.broadcom.app.wicedsense.SensorBatch;
+import com.broadcom.app.wicedsense.SensorDataParser;
+import com.broadcom.app.wicedsense.SensorSample;
+
+/**
+ * Decode cost of sensor packets. Run with -prof gc to check that decoding
+ * does not allocate
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SensorDecodeBenchmark {
+    private static final int BATCH_SIZE = 256;
+
+    private final byte[] mEnvPacket = { 0x34, (byte) 0xc5, 0x01, (byte) 0xc4, 0x26, (byte) 0xe6,
+            0x00 };
+    private final byte[] mMotionPacket = new byte[SensorDataParser.SENSOR_MOTION_PACKET_LENGTH];
+    private final byte[][] mPackets = new byte[BATCH_SIZE][];
+    private final SensorSample mSample = new SensorSample();
+    private final SensorBatch mBatch = new SensorBatch(BATCH_SIZE);
+
+    @Setup
+    public void setup() {
+        mMotionPacket[0] = 0x0b;
+        for (int i = 1; i < mMotionPacket.length; i++) {
+            mMotionPacket[i] = (byte) (i * 37);
+        }
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            mPackets[i] = i % 4 == 0 ? mEnvPacket : mMotionPacket;
+        }
+    }
+
+    @Benchmark
+    public SensorSample decodeEnvironmental() {
+        SensorDataParser.decode(mEnvPacket, mSample);
+        return mSample;
+    }
+
+    @Benchmark
+    public SensorSample decodeMotion() {
+        SensorDataParser.decode(mMotionPacket, mSample);
+        return mSample;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public SensorBatch decodeBatch() {
+        SensorDataParser.decodeBatch(mPackets, 0, BATCH_SIZE, mBatch);
+        return mBatch;
+    }
+}
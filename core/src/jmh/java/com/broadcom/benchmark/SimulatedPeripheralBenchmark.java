@@ -0,0 +1,142 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.benchmark;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.broadcom.app.wicedsense.SimulatedSensePeripheral;
+import com.broadcom.util.FifoRequestQueue;
+import com.broadcom.util.RequestQueue;
+
+/**
+ * Request round trips to the simulated WICED Sense tag, with the responses
+ * coming back on the simulator thread like GATT callbacks. The burst
+ * benchmark serializes reads through the request queue the same way the
+ * GattRequestManager does, starting the next request from the response
+ * callback
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimulatedPeripheralBenchmark implements SimulatedSensePeripheral.Link {
+    private static final int BURST = 64;
+
+    /** Response latency of the simulated tag */
+    @Param({ "0", "1" })
+    public int mLatencyMs;
+
+    private final RequestQueue<UUID> mQueue = new FifoRequestQueue<UUID>();
+    private SimulatedSensePeripheral mPeripheral;
+    private volatile Thread mWaiter;
+    private volatile boolean mConnected;
+    private volatile int mResponses;
+
+    @Setup
+    public void setup() {
+        SimulatedSensePeripheral.Config config = new SimulatedSensePeripheral.Config();
+        config.mEnvIntervalMs = 0;
+        config.mMotionIntervalMs = 0;
+        config.mResponseLatencyMs = mLatencyMs;
+        mPeripheral = new SimulatedSensePeripheral(config, this);
+        mWaiter = Thread.currentThread();
+        mPeripheral.connect();
+        while (!mConnected) {
+            LockSupport.park(this);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPeripheral.close();
+    }
+
+    @Benchmark
+    public int read() {
+        int target = mResponses + 1;
+        mWaiter = Thread.currentThread();
+        mPeripheral.read(SimulatedSensePeripheral.BATTERY_LEVEL_UUID);
+        return await(target);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int queuedReads() {
+        int target = mResponses + BURST;
+        mWaiter = Thread.currentThread();
+        for (int i = 0; i < BURST; i++) {
+            UUID next = mQueue.add(SimulatedSensePeripheral.BATTERY_LEVEL_UUID, false);
+            if (next != null) {
+                mPeripheral.read(next);
+            }
+        }
+        return await(target);
+    }
+
+    private int await(int target) {
+        while (mResponses < target) {
+            LockSupport.park(this);
+        }
+        return mResponses;
+    }
+
+    @Override
+    public void onConnectionStateChanged(boolean connected, int status) {
+        mConnected = connected;
+        LockSupport.unpark(mWaiter);
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+    }
+
+    @Override
+    public void onNotification(UUID characteristic, byte[] value) {
+    }
+
+    @Override
+    public void onReadResponse(UUID characteristic, int status, byte[] value) {
+        UUID next = mQueue.next();
+        if (next != null) {
+            mPeripheral.read(next);
+        }
+        // Only written on the simulator thread
+        mResponses = mResponses + 1;
+        LockSupport.unpark(mWaiter);
+    }
+
+    @Override
+    public void onWriteResponse(UUID characteristic, int status) {
+    }
+
+    @Override
+    public void onDescriptorWriteResponse(UUID characteristic, UUID descriptor, int status) {
+    }
+}
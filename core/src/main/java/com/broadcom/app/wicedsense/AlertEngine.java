@@ -0,0 +1,209 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+/**
+ * Evaluates a set of {@link AlertRule}s on the sample stream. The rules are
+ * compiled into flat arrays when the engine is created. For each sample, only
+ * the rules on the values present in the sample mask are evaluated, and the
+ * evaluation does not allocate.
+ * <p>
+ * A change rule tracks the min/max of its value in 16 time buckets covering
+ * its window, so the change is measured with a resolution of 1/16th of the
+ * window
+ *
+ */
+public class AlertEngine implements SensorSampleSink {
+
+    /**
+     * Receives alert state changes on the ingest thread
+     */
+    public interface Listener {
+        public void onAlert(int ruleId, boolean active, float value, long timeMs);
+    }
+
+    private static final int CHANGE_BUCKETS = 16;
+
+    private static final int[] VALUE_FLAGS = { SensorDataParser.SENSOR_FLAG_HUMIDITY,
+            SensorDataParser.SENSOR_FLAG_PRESSURE, SensorDataParser.SENSOR_FLAG_TEMP };
+
+    private final Listener mListener;
+
+    // Compiled rules
+    private final int mRuleCount;
+    private final int[] mId;
+    private final int[] mKind;
+    private final float[] mThreshold;
+    private final float[] mHysteresis;
+    private final long[] mHoldMs;
+    private final long[] mBucketWidthMs;
+    private final int[][] mRulesByValue;
+
+    // Rule state
+    private final boolean[] mActive;
+    private final long[] mConditionSinceMs;
+    private final long[] mBucketTime;
+    private final float[] mBucketMin;
+    private final float[] mBucketMax;
+
+    public AlertEngine(AlertRule[] rules, Listener listener) {
+        mListener = listener;
+        int n = rules.length;
+        mRuleCount = n;
+        mId = new int[n];
+        mKind = new int[n];
+        mThreshold = new float[n];
+        mHysteresis = new float[n];
+        mHoldMs = new long[n];
+        mBucketWidthMs = new long[n];
+        mActive = new boolean[n];
+        mConditionSinceMs = new long[n];
+        mBucketTime = new long[n * CHANGE_BUCKETS];
+        mBucketMin = new float[n * CHANGE_BUCKETS];
+        mBucketMax = new float[n * CHANGE_BUCKETS];
+
+        int[] valueRuleCount = new int[AlertRule.VALUE_COUNT];
+        for (int i = 0; i < n; i++) {
+            AlertRule r = rules[i];
+            mId[i] = r.mId;
+            mKind[i] = r.mKind;
+            mThreshold[i] = r.mThreshold;
+            mHysteresis[i] = r.mHysteresis;
+            mHoldMs[i] = r.mHoldMs;
+            mBucketWidthMs[i] = Math.max(1, r.mWindowMs / CHANGE_BUCKETS);
+            mConditionSinceMs[i] = -1;
+            valueRuleCount[r.mValue]++;
+        }
+        for (int i = 0; i < mBucketTime.length; i++) {
+            mBucketTime[i] = Long.MIN_VALUE;
+        }
+        mRulesByValue = new int[AlertRule.VALUE_COUNT][];
+        for (int v = 0; v < AlertRule.VALUE_COUNT; v++) {
+            mRulesByValue[v] = new int[valueRuleCount[v]];
+            int j = 0;
+            for (int i = 0; i < n; i++) {
+                if (rules[i].mValue == v) {
+                    mRulesByValue[v][j++] = i;
+                }
+            }
+        }
+    }
+
+    public int getRuleCount() {
+        return mRuleCount;
+    }
+
+    /**
+     * Evaluate the rules on the values present in the sample. Must only be
+     * called from the ingest thread
+     */
+    @Override
+    public void onSensorSample(SensorSample sample) {
+        if (sample.mPacketLength != SensorDataParser.SENSOR_ENV_PACKET_LENGTH) {
+            return;
+        }
+        int mask = sample.mMask;
+        long timeMs = sample.mTimestampMs;
+        if ((mask & VALUE_FLAGS[AlertRule.VALUE_HUMIDITY]) != 0) {
+            evaluate(mRulesByValue[AlertRule.VALUE_HUMIDITY], sample.mHumidity, timeMs);
+        }
+        if ((mask & VALUE_FLAGS[AlertRule.VALUE_PRESSURE]) != 0) {
+            evaluate(mRulesByValue[AlertRule.VALUE_PRESSURE], sample.mPressure, timeMs);
+        }
+        if ((mask & VALUE_FLAGS[AlertRule.VALUE_TEMPERATURE_C]) != 0) {
+            evaluate(mRulesByValue[AlertRule.VALUE_TEMPERATURE_C], sample.mTemperatureC,
+                    timeMs);
+        }
+    }
+
+    private void evaluate(int[] rules, float v, long timeMs) {
+        for (int j = 0; j < rules.length; j++) {
+            int i = rules[j];
+            boolean active = mActive[i];
+            boolean nowActive;
+            switch (mKind[i]) {
+            case AlertRule.KIND_ABOVE:
+                nowActive = evaluateHold(i, active ? v > mThreshold[i] - mHysteresis[i]
+                        : v > mThreshold[i], timeMs);
+                break;
+            case AlertRule.KIND_BELOW:
+                nowActive = evaluateHold(i, active ? v < mThreshold[i] + mHysteresis[i]
+                        : v < mThreshold[i], timeMs);
+                break;
+            default:
+                float change = updateChange(i, v, timeMs);
+                nowActive = active ? change > mThreshold[i] - mHysteresis[i]
+                        : change > mThreshold[i];
+                break;
+            }
+            if (nowActive != active) {
+                mActive[i] = nowActive;
+                mListener.onAlert(mId[i], nowActive, v, timeMs);
+            }
+        }
+    }
+
+    /**
+     * @return true once the condition has held for the hold time
+     */
+    private boolean evaluateHold(int i, boolean condition, long timeMs) {
+        if (!condition) {
+            mConditionSinceMs[i] = -1;
+            return false;
+        }
+        if (mConditionSinceMs[i] < 0) {
+            mConditionSinceMs[i] = timeMs;
+        }
+        return timeMs - mConditionSinceMs[i] >= mHoldMs[i];
+    }
+
+    /**
+     * Add the value to the current bucket of the rule
+     *
+     * @return the difference between the max and min values of the window
+     */
+    private float updateChange(int i, float v, long timeMs) {
+        long bucketTime = timeMs / mBucketWidthMs[i];
+        int start = i * CHANGE_BUCKETS;
+        int b = start + (int) (bucketTime % CHANGE_BUCKETS);
+        if (mBucketTime[b] != bucketTime) {
+            mBucketTime[b] = bucketTime;
+            mBucketMin[b] = v;
+            mBucketMax[b] = v;
+        } else if (v < mBucketMin[b]) {
+            mBucketMin[b] = v;
+        } else if (v > mBucketMax[b]) {
+            mBucketMax[b] = v;
+        }
+        float min = v;
+        float max = v;
+        long oldest = bucketTime - CHANGE_BUCKETS + 1;
+        for (b = start; b < start + CHANGE_BUCKETS; b++) {
+            if (mBucketTime[b] < oldest) {
+                continue;
+            }
+            if (mBucketMin[b] < min) {
+                min = mBucketMin[b];
+            }
+            if (mBucketMax[b] > max) {
+                max = mBucketMax[b];
+            }
+        }
+        return max - min;
+    }
+}
@@ -0,0 +1,96 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+/**
+ * Definition of an alert on an environmental sensor value. Rules are compiled
+ * into an {@link AlertEngine}, which evaluates them on every sample
+ *
+ */
+public class AlertRule {
+    public static final int VALUE_HUMIDITY = 0;
+    public static final int VALUE_PRESSURE = 1;
+    public static final int VALUE_TEMPERATURE_C = 2;
+    static final int VALUE_COUNT = 3;
+
+    static final int KIND_ABOVE = 0;
+    static final int KIND_BELOW = 1;
+    static final int KIND_CHANGE = 2;
+
+    /**
+     * Alert when the value stays above the threshold for the hold time. The
+     * alert clears when the value drops below (threshold - hysteresis)
+     *
+     * @param id
+     *            reported with the alert
+     * @param value
+     *            one of the VALUE_ constants
+     * @param threshold
+     * @param hysteresis
+     * @param holdMs
+     */
+    public static AlertRule above(int id, int value, float threshold, float hysteresis,
+            long holdMs) {
+        return new AlertRule(id, KIND_ABOVE, value, threshold, hysteresis, holdMs, 0);
+    }
+
+    /**
+     * Alert when the value stays below the threshold for the hold time. The
+     * alert clears when the value rises above (threshold + hysteresis)
+     */
+    public static AlertRule below(int id, int value, float threshold, float hysteresis,
+            long holdMs) {
+        return new AlertRule(id, KIND_BELOW, value, threshold, hysteresis, holdMs, 0);
+    }
+
+    /**
+     * Alert when the value changes by more than delta within the window. The
+     * alert clears when the change within the window drops below (delta -
+     * hysteresis)
+     */
+    public static AlertRule change(int id, int value, float delta, float hysteresis,
+            long windowMs) {
+        return new AlertRule(id, KIND_CHANGE, value, delta, hysteresis, 0, windowMs);
+    }
+
+    final int mId;
+    final int mKind;
+    final int mValue;
+    final float mThreshold;
+    final float mHysteresis;
+    final long mHoldMs;
+    final long mWindowMs;
+
+    private AlertRule(int id, int kind, int value, float threshold, float hysteresis,
+            long holdMs, long windowMs) {
+        if (value < 0 || value >= VALUE_COUNT) {
+            throw new IllegalArgumentException("Invalid value " + value);
+        }
+        mId = id;
+        mKind = kind;
+        mValue = value;
+        mThreshold = threshold;
+        mHysteresis = hysteresis;
+        mHoldMs = holdMs;
+        mWindowMs = windowMs;
+    }
+
+    public int getId() {
+        return mId;
+    }
+}
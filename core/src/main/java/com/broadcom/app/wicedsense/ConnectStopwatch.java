@@ -0,0 +1,109 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+/**
+ * Times the phases of a connection, from the connect request to the first
+ * sensor sample. Times are from System.nanoTime(); a phase not reached yet
+ * is reported as -1
+ *
+ */
+public class ConnectStopwatch {
+    public static final int PHASE_CONNECTED = 0;
+    public static final int PHASE_SERVICES_READY = 1;
+    public static final int PHASE_NOTIFICATIONS_ENABLED = 2;
+    public static final int PHASE_FIRST_SAMPLE = 3;
+    public static final int PHASE_COUNT = 4;
+
+    private static final String[] PHASE_NAMES = { "connected", "services", "notify",
+            "first sample" };
+
+    private final long[] mPhaseNs = new long[PHASE_COUNT];
+    private long mStartNs;
+    private boolean mRunning;
+    private boolean mFastPath;
+
+    /**
+     * Start timing a connection. Clears the previous times
+     *
+     * @param nowNs
+     * @param fastPath
+     *            true if the connection uses the cached attribute layout
+     */
+    public synchronized void start(long nowNs, boolean fastPath) {
+        mStartNs = nowNs;
+        mRunning = true;
+        mFastPath = fastPath;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhaseNs[i] = 0;
+        }
+    }
+
+    /**
+     * Record the first time a phase is reached. Reaching the first sample
+     * stops the stopwatch
+     *
+     * @return true if this is the first time the phase is reached
+     */
+    public synchronized boolean mark(int phase, long nowNs) {
+        if (!mRunning || mPhaseNs[phase] != 0) {
+            return false;
+        }
+        mPhaseNs[phase] = nowNs;
+        if (phase == PHASE_FIRST_SAMPLE) {
+            mRunning = false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop timing, e.g. on disconnect. The times reached are kept
+     */
+    public synchronized void stop() {
+        mRunning = false;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public synchronized boolean isFastPath() {
+        return mFastPath;
+    }
+
+    /**
+     * @return the time from the connect request to the phase (in msec), or
+     *         -1 if not reached
+     */
+    public synchronized long getPhaseMs(int phase) {
+        return mPhaseNs[phase] == 0 ? -1 : (mPhaseNs[phase] - mStartNs) / 1000000;
+    }
+
+    public long getTimeToFirstSampleMs() {
+        return getPhaseMs(PHASE_FIRST_SAMPLE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder b = new StringBuilder(mFastPath ? "fast" : "full");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            b.append(", ").append(PHASE_NAMES[i]).append(' ').append(getPhaseMs(i)).append("ms");
+        }
+        return b.toString();
+    }
+}
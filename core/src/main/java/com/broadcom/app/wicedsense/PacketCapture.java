@@ -0,0 +1,155 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * File format of recorded sensor notifications:
+ *
+ * <pre>
+ * int   magic
+ * short version
+ * short reserved
+ * then for each packet:
+ * long  arrival time (nsec since the start of the capture)
+ * byte  payload length
+ * byte[] payload
+ * </pre>
+ *
+ * All values are big-endian
+ *
+ */
+public class PacketCapture {
+    public static final int MAGIC = 0x57535043; // "WSPC"
+    public static final int VERSION = 1;
+
+    /**
+     * Longest payload of a notification
+     */
+    public static final int MAX_PACKET_LENGTH = 255;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Records packets to a capture file
+     */
+    public static class Writer {
+        private final DataOutputStream mOut;
+        private final long mStartNs;
+
+        public Writer(File file, long startNs) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    BUFFER_SIZE));
+            mStartNs = startNs;
+            mOut.writeInt(MAGIC);
+            mOut.writeShort(VERSION);
+            mOut.writeShort(0);
+        }
+
+        /**
+         * Record a packet
+         *
+         * @param packet
+         * @param nowNs
+         *            arrival time, from System.nanoTime()
+         */
+        public synchronized void write(byte[] packet, long nowNs) throws IOException {
+            int length = Math.min(packet.length, MAX_PACKET_LENGTH);
+            mOut.writeLong(nowNs - mStartNs);
+            mOut.writeByte(length);
+            mOut.write(packet, 0, length);
+        }
+
+        public synchronized void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Reads the packets of a capture file in order. The packet arrays are
+     * reused: there is one array per packet length
+     */
+    public static class Reader {
+        private final DataInputStream mIn;
+        private final byte[][] mPackets = new byte[MAX_PACKET_LENGTH + 1][];
+        private long mTimeNs;
+        private byte[] mPacket;
+
+        public Reader(File file) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    BUFFER_SIZE));
+            if (mIn.readInt() != MAGIC || mIn.readShort() != VERSION) {
+                mIn.close();
+                throw new IOException("Not a packet capture: " + file);
+            }
+            mIn.readShort();
+        }
+
+        /**
+         * Read the next packet
+         *
+         * @return false at the end of the capture
+         */
+        public boolean next() throws IOException {
+            long timeNs;
+            try {
+                timeNs = mIn.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            int length = mIn.readUnsignedByte();
+            byte[] packet = mPackets[length];
+            if (packet == null) {
+                packet = mPackets[length] = new byte[length];
+            }
+            mIn.readFully(packet);
+            mTimeNs = timeNs;
+            mPacket = packet;
+            return true;
+        }
+
+        /**
+         * Arrival time of the current packet (nsec since the start of the
+         * capture)
+         */
+        public long getTimeNs() {
+            return mTimeNs;
+        }
+
+        /**
+         * Payload of the current packet. Valid until the next call to
+         * {@link #next()}
+         */
+        public byte[] getPacket() {
+            return mPacket;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
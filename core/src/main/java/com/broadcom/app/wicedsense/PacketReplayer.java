@@ -0,0 +1,118 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link PacketCapture} file into a {@link PacketSink}, keeping the
+ * recorded timing scaled by a speed factor, or as fast as possible. Runs on
+ * the calling thread. Does not use Android APIs, so it can also drive the
+ * decode pipeline on a desktop JVM
+ *
+ */
+public class PacketReplayer {
+
+    /**
+     * Speed to replay the packets as fast as possible
+     */
+    public static final float SPEED_MAX = 0;
+
+    /**
+     * Result of a replay
+     */
+    public static class Stats {
+        public long mPackets;
+        public long mElapsedNs;
+        public long mLateNs;
+
+        public double getPacketsPerSecond() {
+            return mElapsedNs > 0 ? mPackets * 1e9 / mElapsedNs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mPackets + " packets in " + (mElapsedNs / 1000000) + "ms ("
+                    + Math.round(getPacketsPerSecond()) + "/s), max late "
+                    + (mLateNs / 1000) + "us";
+        }
+    }
+
+    private final File mFile;
+    private final PacketSink mSink;
+    private final float mSpeed;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param file
+     *            capture file
+     * @param sink
+     *            receives the packets
+     * @param speed
+     *            1 for the recorded speed, N for N times faster, or
+     *            {@link #SPEED_MAX}
+     */
+    public PacketReplayer(File file, PacketSink sink, float speed) {
+        mFile = file;
+        mSink = sink;
+        mSpeed = speed;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Replay the capture
+     *
+     * @return the replay statistics
+     * @throws IOException
+     */
+    public Stats run() throws IOException {
+        Stats stats = new Stats();
+        PacketCapture.Reader reader = new PacketCapture.Reader(mFile);
+        try {
+            long startNs = System.nanoTime();
+            long firstPacketNs = -1;
+            while (!mCancelled && reader.next()) {
+                if (mSpeed > 0) {
+                    if (firstPacketNs < 0) {
+                        firstPacketNs = reader.getTimeNs();
+                    }
+                    long dueNs = startNs + (long) ((reader.getTimeNs() - firstPacketNs) / mSpeed);
+                    long waitNs = dueNs - System.nanoTime();
+                    while (waitNs > 0 && !mCancelled) {
+                        LockSupport.parkNanos(waitNs);
+                        waitNs = dueNs - System.nanoTime();
+                    }
+                    if (-waitNs > stats.mLateNs) {
+                        stats.mLateNs = -waitNs;
+                    }
+                }
+                mSink.onSensorPacket(reader.getPacket());
+                stats.mPackets++;
+            }
+            stats.mElapsedNs = System.nanoTime() - startNs;
+        } finally {
+            reader.close();
+        }
+        return stats;
+    }
+}
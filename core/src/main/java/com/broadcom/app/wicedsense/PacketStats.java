@@ -0,0 +1,232 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import com.broadcom.util.MathUtils;
+
+/**
+ * Sensor notification statistics of one connection, per packet type: counts,
+ * inter-arrival time histogram and jitter, and gaps. A gap is an interval
+ * longer than {@link #GAP_FACTOR} times the expected interval, which is
+ * learned as a moving average of the normal intervals. Recording does not
+ * allocate
+ *
+ */
+public class PacketStats {
+    public static final int TYPE_ENV = 0;
+    public static final int TYPE_MOTION = 1;
+    public static final int TYPE_OTHER = 2;
+    public static final int TYPE_COUNT = 3;
+
+    /**
+     * Number of histogram buckets. Bucket i counts the intervals from 2^i to
+     * 2^(i+1) usec; the last bucket also counts all longer intervals
+     */
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    /**
+     * An interval longer than this many times the expected interval is a gap
+     */
+    public static final float GAP_FACTOR = 2.5f;
+
+    // Weight of a new interval in the expected interval average
+    private static final float EXPECTED_INTERVAL_WEIGHT = 1f / 16;
+
+    // Number of intervals before gaps are detected
+    private static final int GAP_DETECTION_MIN_INTERVALS = 8;
+
+    /**
+     * Statistics of one packet type
+     */
+    public static class TypeStats {
+        public long mPackets;
+        public long mBytes;
+        public long mIntervals;
+        public long mMinIntervalUs;
+        public long mMaxIntervalUs;
+        public double mMeanIntervalUs;
+        public double mIntervalM2;
+        public float mExpectedIntervalUs;
+        public long mGaps;
+        public long mMissedPackets;
+        public long mLongestGapUs;
+        public long mFirstNs;
+        public long mLastNs;
+        public final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+
+        public void clear() {
+            mPackets = 0;
+            mBytes = 0;
+            mIntervals = 0;
+            mMinIntervalUs = 0;
+            mMaxIntervalUs = 0;
+            mMeanIntervalUs = 0;
+            mIntervalM2 = 0;
+            mExpectedIntervalUs = 0;
+            mGaps = 0;
+            mMissedPackets = 0;
+            mLongestGapUs = 0;
+            mFirstNs = 0;
+            mLastNs = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                mHistogram[i] = 0;
+            }
+        }
+
+        public void copyFrom(TypeStats s) {
+            mPackets = s.mPackets;
+            mBytes = s.mBytes;
+            mIntervals = s.mIntervals;
+            mMinIntervalUs = s.mMinIntervalUs;
+            mMaxIntervalUs = s.mMaxIntervalUs;
+            mMeanIntervalUs = s.mMeanIntervalUs;
+            mIntervalM2 = s.mIntervalM2;
+            mExpectedIntervalUs = s.mExpectedIntervalUs;
+            mGaps = s.mGaps;
+            mMissedPackets = s.mMissedPackets;
+            mLongestGapUs = s.mLongestGapUs;
+            mFirstNs = s.mFirstNs;
+            mLastNs = s.mLastNs;
+            System.arraycopy(s.mHistogram, 0, mHistogram, 0, HISTOGRAM_BUCKETS);
+        }
+
+        /**
+         * Standard deviation of the inter-arrival time (usec)
+         */
+        public double getJitterUs() {
+            return mIntervals > 1 ? Math.sqrt(mIntervalM2 / (mIntervals - 1)) : 0;
+        }
+
+        /**
+         * Average packets per second since the first packet
+         */
+        public double getPacketsPerSecond() {
+            long elapsedNs = mLastNs - mFirstNs;
+            return elapsedNs > 0 ? (mPackets - 1) * 1e9 / elapsedNs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mPackets + " packets, " + mBytes + " bytes, "
+                    + String.format("%.1f/s, interval %.0f+-%.0fus", getPacketsPerSecond(),
+                            mMeanIntervalUs, getJitterUs()) + " (min " + mMinIntervalUs
+                    + ", max " + mMaxIntervalUs + "), " + mGaps + " gaps, ~" + mMissedPackets
+                    + " missed";
+        }
+    }
+
+    private final TypeStats[] mTypes = new TypeStats[TYPE_COUNT];
+    private long mStartNs;
+
+    public PacketStats() {
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            mTypes[i] = new TypeStats();
+        }
+    }
+
+    public static int getType(int packetLength) {
+        switch (packetLength) {
+        case SensorDataParser.SENSOR_ENV_PACKET_LENGTH:
+            return TYPE_ENV;
+        case SensorDataParser.SENSOR_MOTION_PACKET_LENGTH:
+            return TYPE_MOTION;
+        }
+        return TYPE_OTHER;
+    }
+
+    /**
+     * Clear the statistics, at the start of a connection
+     */
+    public synchronized void reset(long nowNs) {
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            mTypes[i].clear();
+        }
+        mStartNs = nowNs;
+    }
+
+    /**
+     * Record a received packet
+     *
+     * @param packetLength
+     * @param nowNs
+     *            arrival time, from System.nanoTime()
+     */
+    public synchronized void record(int packetLength, long nowNs) {
+        TypeStats s = mTypes[getType(packetLength)];
+        s.mPackets++;
+        s.mBytes += packetLength;
+        if (s.mPackets == 1) {
+            s.mFirstNs = s.mLastNs = nowNs;
+            return;
+        }
+        long intervalUs = (nowNs - s.mLastNs) / 1000;
+        s.mLastNs = nowNs;
+
+        s.mHistogram[MathUtils.getLog2Bucket(intervalUs, HISTOGRAM_BUCKETS)]++;
+
+        s.mIntervals++;
+        if (s.mIntervals == 1 || intervalUs < s.mMinIntervalUs) {
+            s.mMinIntervalUs = intervalUs;
+        }
+        if (intervalUs > s.mMaxIntervalUs) {
+            s.mMaxIntervalUs = intervalUs;
+        }
+        // Running mean and variance (Welford)
+        double delta = intervalUs - s.mMeanIntervalUs;
+        s.mMeanIntervalUs += delta / s.mIntervals;
+        s.mIntervalM2 += delta * (intervalUs - s.mMeanIntervalUs);
+
+        if (s.mExpectedIntervalUs == 0) {
+            s.mExpectedIntervalUs = intervalUs;
+        } else if (s.mIntervals > GAP_DETECTION_MIN_INTERVALS
+                && intervalUs > s.mExpectedIntervalUs * GAP_FACTOR) {
+            s.mGaps++;
+            s.mMissedPackets += Math.round(intervalUs / s.mExpectedIntervalUs) - 1;
+            if (intervalUs > s.mLongestGapUs) {
+                s.mLongestGapUs = intervalUs;
+            }
+        } else {
+            s.mExpectedIntervalUs += (intervalUs - s.mExpectedIntervalUs)
+                    * EXPECTED_INTERVAL_WEIGHT;
+        }
+    }
+
+    /**
+     * Copy the statistics of a packet type
+     *
+     * @param type
+     *            one of the TYPE_ constants
+     * @param out
+     */
+    public synchronized void getStats(int type, TypeStats out) {
+        out.copyFrom(mTypes[type]);
+    }
+
+    /**
+     * Time of the last reset, from System.nanoTime()
+     */
+    public synchronized long getStartNs() {
+        return mStartNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "env: " + mTypes[TYPE_ENV] + "; motion: " + mTypes[TYPE_MOTION] + "; other: "
+                + mTypes[TYPE_OTHER].mPackets;
+    }
+}
@@ -0,0 +1,215 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolling min/max/mean/standard deviation of humidity, pressure and
+ * temperature over 1 second, 1 minute and 1 hour windows.
+ * <p>
+ * Each window is a ring of time buckets (10 x 100ms, 60 x 1s, 60 x 1min).
+ * A sample updates one bucket per window, so ingest is O(1) and uses only
+ * the preallocated arrays. Queries merge the buckets of a window and can be
+ * made from any thread without holding up the ingest thread: the ingest
+ * thread makes a volatile sequence number odd, updates the buckets and makes
+ * it even again, and a query retries if the sequence number was odd or
+ * changed while it copied the buckets. The buckets are kept in an
+ * {@link AtomicLongArray}, so that their accesses are ordered with the
+ * sequence number
+ *
+ */
+public class RollingAggregator implements SensorSampleSink {
+    public static final int VALUE_HUMIDITY = 0;
+    public static final int VALUE_PRESSURE = 1;
+    public static final int VALUE_TEMPERATURE_C = 2;
+    private static final int VALUE_COUNT = 3;
+
+    public static final int WINDOW_1S = 0;
+    public static final int WINDOW_1MIN = 1;
+    public static final int WINDOW_1H = 2;
+    private static final int WINDOW_COUNT = 3;
+
+    private static final int[] BUCKET_COUNT = { 10, 60, 60 };
+    private static final long[] BUCKET_WIDTH_MS = { 100, 1000, 60000 };
+    private static final int[] BUCKET_OFFSET = { 0, 10, 70 };
+    private static final int BUCKETS_PER_VALUE = 130;
+
+    private static final int BUCKET_COUNT_TOTAL = VALUE_COUNT * BUCKETS_PER_VALUE;
+
+    // Longs of a bucket: bucket time, sample count, sum and sum of squares
+    // (double bits), min and max (float bits, in the high and low halves)
+    private static final int BUCKET_TIME = 0;
+    private static final int BUCKET_SAMPLES = 1;
+    private static final int BUCKET_SUM = 2;
+    private static final int BUCKET_SUM_SQUARES = 3;
+    private static final int BUCKET_MIN_MAX = 4;
+    private static final int BUCKET_LONGS = 5;
+
+    // Buckets, indexed by (value * BUCKETS_PER_VALUE + BUCKET_OFFSET[window]
+    // + slot) * BUCKET_LONGS
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT_TOTAL
+            * BUCKET_LONGS);
+
+    // Odd while the ingest thread is updating the buckets
+    private volatile int mSequence;
+    private volatile long mLastSampleTimeMs;
+
+    public RollingAggregator() {
+        for (int i = 0; i < BUCKET_COUNT_TOTAL; i++) {
+            mBuckets.set(i * BUCKET_LONGS + BUCKET_TIME, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Add a sample. Must only be called from the ingest thread
+     */
+    @Override
+    public void onSensorSample(SensorSample sample) {
+        if (sample.mPacketLength != SensorDataParser.SENSOR_ENV_PACKET_LENGTH) {
+            return;
+        }
+        int mask = sample.mMask;
+        long timeMs = sample.mTimestampMs;
+        mSequence++;
+        if (SensorDataParser.humidityHasChanged(mask)) {
+            add(VALUE_HUMIDITY, timeMs, sample.mHumidity);
+        }
+        if (SensorDataParser.pressureHasChanged(mask)) {
+            add(VALUE_PRESSURE, timeMs, sample.mPressure);
+        }
+        if (SensorDataParser.temperatureHasChanged(mask)) {
+            add(VALUE_TEMPERATURE_C, timeMs, sample.mTemperatureC);
+        }
+        mSequence++;
+        mLastSampleTimeMs = timeMs;
+    }
+
+    private void add(int value, long timeMs, float v) {
+        AtomicLongArray b = mBuckets;
+        for (int w = 0; w < WINDOW_COUNT; w++) {
+            long bucketTime = timeMs / BUCKET_WIDTH_MS[w];
+            int i = (value * BUCKETS_PER_VALUE + BUCKET_OFFSET[w]
+                    + (int) (bucketTime % BUCKET_COUNT[w])) * BUCKET_LONGS;
+            if (b.get(i + BUCKET_TIME) != bucketTime) {
+                b.set(i + BUCKET_TIME, bucketTime);
+                b.set(i + BUCKET_SAMPLES, 1);
+                b.set(i + BUCKET_SUM, Double.doubleToRawLongBits(v));
+                b.set(i + BUCKET_SUM_SQUARES, Double.doubleToRawLongBits((double) v * v));
+                b.set(i + BUCKET_MIN_MAX, minMax(v, v));
+            } else {
+                long minMax = b.get(i + BUCKET_MIN_MAX);
+                float min = min(minMax);
+                float max = max(minMax);
+                b.set(i + BUCKET_SAMPLES, b.get(i + BUCKET_SAMPLES) + 1);
+                b.set(i + BUCKET_SUM, Double.doubleToRawLongBits(Double.longBitsToDouble(b
+                        .get(i + BUCKET_SUM)) + v));
+                b.set(i + BUCKET_SUM_SQUARES, Double.doubleToRawLongBits(Double
+                        .longBitsToDouble(b.get(i + BUCKET_SUM_SQUARES)) + (double) v * v));
+                if (v < min || v > max) {
+                    b.set(i + BUCKET_MIN_MAX, minMax(Math.min(min, v), Math.max(max, v)));
+                }
+            }
+        }
+    }
+
+    private static long minMax(float min, float max) {
+        return ((long) Float.floatToRawIntBits(min) << 32)
+                | (Float.floatToRawIntBits(max) & 0xFFFFFFFFL);
+    }
+
+    private static float min(long minMax) {
+        return Float.intBitsToFloat((int) (minMax >>> 32));
+    }
+
+    private static float max(long minMax) {
+        return Float.intBitsToFloat((int) minMax);
+    }
+
+    /**
+     * Time of the last sample added
+     */
+    public long getLastSampleTimeMs() {
+        return mLastSampleTimeMs;
+    }
+
+    /**
+     * Get the statistics of a value over the window ending at the given time
+     *
+     * @param value
+     *            one of the VALUE_ constants
+     * @param window
+     *            one of the WINDOW_ constants
+     * @param nowMs
+     *            end of the window
+     * @param out
+     *            receives the statistics. mCount is 0 if there are no samples
+     *            in the window
+     */
+    public void getStats(int value, int window, long nowMs, RollingStats out) {
+        final AtomicLongArray b = mBuckets;
+        final int bucketCount = BUCKET_COUNT[window];
+        final int start = (value * BUCKETS_PER_VALUE + BUCKET_OFFSET[window]) * BUCKET_LONGS;
+        final int end = start + bucketCount * BUCKET_LONGS;
+        final long newest = nowMs / BUCKET_WIDTH_MS[window];
+        final long oldest = newest - bucketCount + 1;
+        while (true) {
+            int sequence = mSequence;
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long count = 0;
+            double sum = 0;
+            double sumSquares = 0;
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = start; i < end; i += BUCKET_LONGS) {
+                long t = b.get(i + BUCKET_TIME);
+                if (t < oldest || t > newest) {
+                    continue;
+                }
+                count += b.get(i + BUCKET_SAMPLES);
+                sum += Double.longBitsToDouble(b.get(i + BUCKET_SUM));
+                sumSquares += Double.longBitsToDouble(b.get(i + BUCKET_SUM_SQUARES));
+                long minMax = b.get(i + BUCKET_MIN_MAX);
+                if (min(minMax) < min) {
+                    min = min(minMax);
+                }
+                if (max(minMax) > max) {
+                    max = max(minMax);
+                }
+            }
+            if (mSequence != sequence) {
+                continue;
+            }
+            if (count == 0) {
+                out.clear();
+                return;
+            }
+            double mean = sum / count;
+            double variance = sumSquares / count - mean * mean;
+            out.mCount = (int) count;
+            out.mMin = min;
+            out.mMax = max;
+            out.mMean = (float) mean;
+            out.mStdDev = variance > 0 ? (float) Math.sqrt(variance) : 0;
+            return;
+        }
+    }
+}
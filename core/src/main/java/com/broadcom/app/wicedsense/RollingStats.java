@@ -0,0 +1,39 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+/**
+ * Statistics of one sensor value over a rolling window, filled by
+ * {@link RollingAggregator#getStats(int, int, long, RollingStats)}
+ *
+ */
+public class RollingStats {
+    public int mCount;
+    public float mMin;
+    public float mMax;
+    public float mMean;
+    public float mStdDev;
+
+    public void clear() {
+        mCount = 0;
+        mMin = 0;
+        mMax = 0;
+        mMean = 0;
+        mStdDev = 0;
+    }
+}
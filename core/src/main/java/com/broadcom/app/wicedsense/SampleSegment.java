@@ -0,0 +1,301 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed-size, memory-mapped file of sensor samples. The file starts with a
+ * header page followed by fixed-size records:
+ *
+ * <pre>
+ * Header
+ *  0  int    magic
+ *  4  short  version
+ *  6  short  record size
+ *  8  int    number of records
+ * 16  long   base time (ms). Record times are stored relative to it
+ * 24  long   time of the last record (ms)
+ * 32  int[]  time index: time of every INDEX_STRIDE'th record
+ *
+ * Record
+ *  0  int    time relative to the base time (ms)
+ *  4  byte   packet length
+ *  5  byte   mask
+ *  6  short[9] values: humidity, pressure, temperature (in 1/10 units) for
+ *              a 7 byte packet, or accelerometer, gyro, magnetometer x,y,z
+ *              for a 19 byte packet
+ * </pre>
+ *
+ * Appending a record writes straight into the mapped file, so it does not
+ * allocate or make a system call
+ *
+ */
+public class SampleSegment {
+    public static final int MAGIC = 0x57535453; // "WSTS"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 4096;
+    public static final int RECORD_SIZE = 24;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 6;
+    private static final int HEADER_COUNT = 8;
+    private static final int HEADER_BASE_TIME = 16;
+    private static final int HEADER_LAST_TIME = 24;
+    private static final int HEADER_INDEX = 32;
+    private static final int INDEX_SLOTS = (HEADER_SIZE - HEADER_INDEX) / 4;
+
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_LENGTH = 4;
+    private static final int RECORD_MASK = 5;
+    private static final int RECORD_VALUES = 6;
+
+    private final File mFile;
+    private final boolean mWritable;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final int mIndexStride;
+    private final long mBaseTimeMs;
+    private int mCount;
+    private long mLastTimeMs;
+
+    /**
+     * Create a new segment file
+     */
+    public static SampleSegment create(File file, int sizeBytes, long baseTimeMs)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(sizeBytes);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    sizeBytes);
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            buffer.putShort(HEADER_VERSION, (short) VERSION);
+            buffer.putShort(HEADER_RECORD_SIZE, (short) RECORD_SIZE);
+            buffer.putInt(HEADER_COUNT, 0);
+            buffer.putLong(HEADER_BASE_TIME, baseTimeMs);
+            buffer.putLong(HEADER_LAST_TIME, baseTimeMs);
+            return new SampleSegment(file, buffer, true);
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Open an existing segment file
+     *
+     * @param writable
+     *            true to append to the segment
+     */
+    public static SampleSegment open(File file, boolean writable) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    0, raf.length());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(HEADER_MAGIC) != MAGIC
+                    || buffer.getShort(HEADER_VERSION) != VERSION
+                    || buffer.getShort(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+                throw new IOException("Not a sample segment: " + file);
+            }
+            return new SampleSegment(file, buffer, writable);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private SampleSegment(File file, MappedByteBuffer buffer, boolean writable) {
+        mFile = file;
+        mBuffer = buffer;
+        mWritable = writable;
+        mCapacity = (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+        mIndexStride = (mCapacity + INDEX_SLOTS - 1) / INDEX_SLOTS;
+        mBaseTimeMs = buffer.getLong(HEADER_BASE_TIME);
+        mLastTimeMs = buffer.getLong(HEADER_LAST_TIME);
+        mCount = Math.min(buffer.getInt(HEADER_COUNT), mCapacity);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean isFull() {
+        return mCount >= mCapacity;
+    }
+
+    /**
+     * Number of records in the segment. For a read-only segment of a file
+     * that is still being written, call {@link #refresh()} first
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getBaseTimeMs() {
+        return mBaseTimeMs;
+    }
+
+    public long getLastTimeMs() {
+        return mLastTimeMs;
+    }
+
+    /**
+     * Re-read the record count and last time written by the writer of this
+     * segment
+     */
+    public void refresh() {
+        mCount = Math.min(mBuffer.getInt(HEADER_COUNT), mCapacity);
+        mLastTimeMs = mBuffer.getLong(HEADER_LAST_TIME);
+    }
+
+    /**
+     * Append a sample
+     *
+     * @return false if the segment is full, or the sample is too far past the
+     *         base time for its relative time to be stored
+     */
+    public boolean append(SensorSample s) {
+        if (!mWritable || mCount >= mCapacity) {
+            return false;
+        }
+        // Keep times monotonic so that the time index can be searched
+        long timeMs = s.mTimestampMs < mLastTimeMs ? mLastTimeMs : s.mTimestampMs;
+        if (timeMs - mBaseTimeMs > Integer.MAX_VALUE) {
+            return false;
+        }
+        int relativeTime = (int) (timeMs - mBaseTimeMs);
+        int pos = HEADER_SIZE + mCount * RECORD_SIZE;
+        MappedByteBuffer b = mBuffer;
+        b.putInt(pos + RECORD_TIME, relativeTime);
+        b.put(pos + RECORD_LENGTH, (byte) s.mPacketLength);
+        b.put(pos + RECORD_MASK, (byte) s.mMask);
+        int v = pos + RECORD_VALUES;
+        if (s.mPacketLength == SensorDataParser.SENSOR_MOTION_PACKET_LENGTH) {
+            b.putShort(v, (short) s.mAccelX);
+            b.putShort(v + 2, (short) s.mAccelY);
+            b.putShort(v + 4, (short) s.mAccelZ);
+            b.putShort(v + 6, (short) s.mGyroX);
+            b.putShort(v + 8, (short) s.mGyroY);
+            b.putShort(v + 10, (short) s.mGyroZ);
+            b.putShort(v + 12, (short) s.mMagnoX);
+            b.putShort(v + 14, (short) s.mMagnoY);
+            b.putShort(v + 16, (short) s.mMagnoZ);
+        } else {
+            b.putShort(v, (short) Math.round(s.mHumidity * 10));
+            b.putShort(v + 2, (short) Math.round(s.mPressure * 10));
+            b.putShort(v + 4, (short) Math.round(s.mTemperatureC * 10));
+            for (int i = 6; i < 18; i += 2) {
+                b.putShort(v + i, (short) 0);
+            }
+        }
+        if (mCount % mIndexStride == 0) {
+            b.putInt(HEADER_INDEX + (mCount / mIndexStride) * 4, relativeTime);
+        }
+        mCount++;
+        mLastTimeMs = timeMs;
+        // Commit the record by updating the header last
+        b.putLong(HEADER_LAST_TIME, timeMs);
+        b.putInt(HEADER_COUNT, mCount);
+        return true;
+    }
+
+    /**
+     * Read the record at the given index
+     */
+    public void read(int index, SensorSample s) {
+        int pos = HEADER_SIZE + index * RECORD_SIZE;
+        MappedByteBuffer b = mBuffer;
+        s.clear();
+        s.mTimestampMs = mBaseTimeMs + b.getInt(pos + RECORD_TIME);
+        s.mPacketLength = b.get(pos + RECORD_LENGTH) & 0xFF;
+        s.mMask = b.get(pos + RECORD_MASK);
+        int v = pos + RECORD_VALUES;
+        if (s.mPacketLength == SensorDataParser.SENSOR_MOTION_PACKET_LENGTH) {
+            s.mAccelX = b.getShort(v);
+            s.mAccelY = b.getShort(v + 2);
+            s.mAccelZ = b.getShort(v + 4);
+            s.mGyroX = b.getShort(v + 6);
+            s.mGyroY = b.getShort(v + 8);
+            s.mGyroZ = b.getShort(v + 10);
+            s.mMagnoX = b.getShort(v + 12);
+            s.mMagnoY = b.getShort(v + 14);
+            s.mMagnoZ = b.getShort(v + 16);
+        } else {
+            s.mHumidity = b.getShort(v) / 10f;
+            s.mPressure = b.getShort(v + 2) / 10f;
+            s.mTemperatureC = b.getShort(v + 4) / 10f;
+        }
+    }
+
+    /**
+     * Get the time of the record at the given index
+     */
+    public long getTimeMs(int index) {
+        return mBaseTimeMs + mBuffer.getInt(HEADER_SIZE + index * RECORD_SIZE + RECORD_TIME);
+    }
+
+    /**
+     * Find the index of the first record at or after the given time, using the
+     * time index to narrow the search
+     *
+     * @return the index, or {@link #getCount()} if all records are older
+     */
+    public int findFirst(long timeMs) {
+        int count = mCount;
+        if (count == 0 || timeMs <= mBaseTimeMs) {
+            return 0;
+        }
+        long relativeTime = timeMs - mBaseTimeMs;
+
+        // Binary search the index for the last slot before the time
+        int lo = 0;
+        int hi = (count - 1) / mIndexStride;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mBuffer.getInt(HEADER_INDEX + mid * 4) < relativeTime) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        // Scan the records covered by that slot
+        int end = Math.min(count, (lo + 1) * mIndexStride + 1);
+        for (int i = lo * mIndexStride; i < end; i++) {
+            if (getTimeMs(i) >= timeMs) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Write changes to storage
+     */
+    public void force() {
+        if (mWritable) {
+            mBuffer.force();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+/**
+ * Flat primitive arrays holding many decoded sensor data packets, filled by
+ * {@link SensorDataParser#decodeBatch(byte[][], int, int, SensorBatch)}.
+ * Values of packet i are at index i of the per-packet arrays, and its motion
+ * vectors at mMotion[i * MOTION_STRIDE + ACCEL/GYRO/MAGNO + axis]
+ *
+ */
+public class SensorBatch {
+    public static final int ACCEL = 0;
+    public static final int GYRO = 3;
+    public static final int MAGNO = 6;
+    public static final int MOTION_STRIDE = 9;
+
+    public final int mCapacity;
+    public int mCount;
+    public final int[] mMask;
+    public final float[] mHumidity;
+    public final float[] mPressure;
+    public final float[] mTemperatureC;
+    public final short[] mMotion;
+
+    public SensorBatch(int capacity) {
+        mCapacity = capacity;
+        mMask = new int[capacity];
+        mHumidity = new float[capacity];
+        mPressure = new float[capacity];
+        mTemperatureC = new float[capacity];
+        mMotion = new short[capacity * MOTION_STRIDE];
+    }
+}
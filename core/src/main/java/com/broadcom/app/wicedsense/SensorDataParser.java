@@ -0,0 +1,276 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+/**
+ * Helper class to parse the sensor data packets
+ *
+ * @author fredc
+ *
+ */
+public class SensorDataParser {
+    public static final int SENSOR_FLAG_ACCEL = (0x1 << 0);
+    public static final int SENSOR_FLAG_GYRO = (0x1 << 1);
+    public static final int SENSOR_FLAG_HUMIDITY = (0x1 << 2);
+    public static final int SENSOR_FLAG_MAGNO = (0x1 << 3);
+    public static final int SENSOR_FLAG_PRESSURE = (0x1 << 4);
+    public static final int SENSOR_FLAG_TEMP = (0x1 << 5);
+
+    public static final int SENSOR_HUMIDITY_MIN = 0;
+    public static final int SENSOR_HUMIDITY_MAX = 100;
+
+    public static final int SENSOR_PRESSURE_MIN = 800;
+    public static final int SENSOR_PRESSURE_MAX = 1200;
+
+    public static final float SENSOR_TEMP_MIN_F = -40;
+    public static final float SENSOR_TEMP_MAX_F = 120;
+
+    public static final float SENSOR_TEMP_MIN_C = -40;
+    public static final float SENSOR_TEMP_MAX_C = 60;
+
+    public static final int SENSOR_TEMP_DATA_SIZE = 2;
+    public static final int SENSOR_PRES_DATA_SIZE = 2;
+    public static final int SENSOR_HUMD_DATA_SIZE = 2;
+    public static final int SENSOR_ACCEL_DATA_SIZE = 6;
+    public static final int SENSOR_GYRO_DATA_SIZE = 6;
+    public static final int SENSOR_MAGNO_DATA_SIZE = 6;
+
+    /**
+     * Gyroscope rate of one LSB (degrees/sec), for the default +/-250 dps
+     * range of the gyroscope
+     */
+    public static final float SENSOR_GYRO_DPS_PER_LSB = 0.00875f;
+
+    public static final int SENSOR_ENV_PACKET_LENGTH = 7;
+    public static final int SENSOR_MOTION_PACKET_LENGTH = 19;
+
+    private static int getTwoByteValue(byte[] bytes, int offset) {
+        return (bytes[offset + 1] << 8) + (bytes[offset] & 0xFF);
+    }
+
+    public static boolean accelerometerHasChanged(int mask) {
+        return (SENSOR_FLAG_ACCEL & mask) > 0;
+    }
+
+    public static boolean gyroHasChanged(int mask) {
+        return (SENSOR_FLAG_GYRO & mask) > 0;
+    }
+
+    public static boolean magnetometerHasChanged(int mask) {
+        return (SENSOR_FLAG_MAGNO & mask) > 0;
+    }
+
+    public static boolean humidityHasChanged(int mask) {
+        return (SENSOR_FLAG_HUMIDITY & mask) > 0;
+    }
+
+    public static boolean temperatureHasChanged(int mask) {
+        return (SENSOR_FLAG_TEMP & mask) > 0;
+    }
+
+    public static boolean pressureHasChanged(int mask) {
+        return (SENSOR_FLAG_PRESSURE & mask) > 0;
+    }
+
+    /**
+     * Read a three axis int16 vector (x, y, z)
+     *
+     * @param sensorData
+     * @param offset
+     * @param values
+     *            array of at least 3 elements that receives x, y, z
+     */
+    public static void getVectorData(byte[] sensorData, int offset, int[] values) {
+        values[0] = getTwoByteValue(sensorData, offset);
+        values[1] = getTwoByteValue(sensorData, offset + 2);
+        values[2] = getTwoByteValue(sensorData, offset + 4);
+    }
+
+    public static void getAccelerometerData(byte[] sensorData, int offset, int[] values) {
+        getVectorData(sensorData, offset, values);
+    }
+
+    public static void getGyroData(byte[] sensorData, int offset, int[] values) {
+        getVectorData(sensorData, offset, values);
+    }
+
+    public static void getMagnetometerData(byte[] sensorData, int offset, int[] values) {
+        getVectorData(sensorData, offset, values);
+    }
+
+    public static float getHumidityPercent(byte[] sensorData, int offset) {
+        return ((float) getTwoByteValue(sensorData, offset)) / 10;
+    }
+
+    public static float getPressureMBar(byte[] sensorData, int offset) {
+        return ((float) getTwoByteValue(sensorData, offset)) / 10;
+    }
+
+    public static float getTemperatureC(byte[] sensorData, int offset) {
+        return ((float) getTwoByteValue(sensorData, offset)) / 10;
+    }
+
+    public static float getTemperatureF(byte[] sensorData, int offset) {
+        return getTemperatureC(sensorData, offset) * 9 / 5 + 32;
+    }
+
+    public static float tempCtoF(float c) {
+        return c * 9 / 5 + 32;
+    }
+
+    public static float tempFtoC(float f) {
+        return (f - 32) * 5 / 9;
+    }
+
+    /**
+     * Decode a sensor data packet into a reusable sample without allocating
+     *
+     * @param sensorData
+     *            the raw notification payload
+     * @param sample
+     *            the sample to fill. Fields for sensors not present in the
+     *            packet are left at 0
+     * @return true if the packet was decoded
+     */
+    public static boolean decode(byte[] sensorData, SensorSample sample) {
+        sample.clear();
+        if (sensorData == null || sensorData.length == 0) {
+            return false;
+        }
+        int maskField = sensorData[0];
+        int offset = 1;
+        sample.mPacketLength = sensorData.length;
+        sample.mMask = maskField;
+        switch (sensorData.length) {
+        case SENSOR_MOTION_PACKET_LENGTH:
+            // packet type specifying accelerometer, gyro, magnetometer
+            if (accelerometerHasChanged(maskField)) {
+                sample.mAccelX = getTwoByteValue(sensorData, offset);
+                sample.mAccelY = getTwoByteValue(sensorData, offset + 2);
+                sample.mAccelZ = getTwoByteValue(sensorData, offset + 4);
+                offset += SENSOR_ACCEL_DATA_SIZE;
+            }
+            if (gyroHasChanged(maskField)) {
+                sample.mGyroX = getTwoByteValue(sensorData, offset);
+                sample.mGyroY = getTwoByteValue(sensorData, offset + 2);
+                sample.mGyroZ = getTwoByteValue(sensorData, offset + 4);
+                offset += SENSOR_GYRO_DATA_SIZE;
+            }
+            if (magnetometerHasChanged(maskField)) {
+                sample.mMagnoX = getTwoByteValue(sensorData, offset);
+                sample.mMagnoY = getTwoByteValue(sensorData, offset + 2);
+                sample.mMagnoZ = getTwoByteValue(sensorData, offset + 4);
+                offset += SENSOR_MAGNO_DATA_SIZE;
+            }
+            return true;
+        case SENSOR_ENV_PACKET_LENGTH:
+            // packet type specifying temp, humid, press
+            if (humidityHasChanged(maskField)) {
+                sample.mHumidity = getHumidityPercent(sensorData, offset);
+                offset += SENSOR_HUMD_DATA_SIZE;
+            }
+            if (pressureHasChanged(maskField)) {
+                sample.mPressure = getPressureMBar(sensorData, offset);
+                offset += SENSOR_PRES_DATA_SIZE;
+            }
+            if (temperatureHasChanged(maskField)) {
+                sample.mTemperatureC = getTemperatureC(sensorData, offset);
+                offset += SENSOR_TEMP_DATA_SIZE;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decode many sensor data packets into the flat arrays of a batch in one
+     * pass. Packets of an unknown length are stored with a mask of 0
+     *
+     * @param packets
+     *            raw notification payloads
+     * @param start
+     *            index of the first packet to decode
+     * @param count
+     *            number of packets to decode
+     * @param batch
+     *            receives the decoded values, starting at index 0
+     * @return the number of packets stored in the batch, limited by its
+     *         capacity
+     */
+    public static int decodeBatch(byte[][] packets, int start, int count, SensorBatch batch) {
+        if (count > batch.mCapacity) {
+            count = batch.mCapacity;
+        }
+        final int[] masks = batch.mMask;
+        final float[] humidity = batch.mHumidity;
+        final float[] pressure = batch.mPressure;
+        final float[] temperature = batch.mTemperatureC;
+        final short[] motion = batch.mMotion;
+
+        for (int i = 0; i < count; i++) {
+            byte[] p = packets[start + i];
+            int length = p == null ? 0 : p.length;
+            int mask = length > 0 ? p[0] : 0;
+            int offset = 1;
+            int m = i * SensorBatch.MOTION_STRIDE;
+            humidity[i] = 0;
+            pressure[i] = 0;
+            temperature[i] = 0;
+            for (int j = 0; j < SensorBatch.MOTION_STRIDE; j++) {
+                motion[m + j] = 0;
+            }
+            if (length == SENSOR_MOTION_PACKET_LENGTH) {
+                if ((mask & SENSOR_FLAG_ACCEL) != 0) {
+                    motion[m + SensorBatch.ACCEL] = (short) ((p[offset + 1] << 8) | (p[offset] & 0xFF));
+                    motion[m + SensorBatch.ACCEL + 1] = (short) ((p[offset + 3] << 8) | (p[offset + 2] & 0xFF));
+                    motion[m + SensorBatch.ACCEL + 2] = (short) ((p[offset + 5] << 8) | (p[offset + 4] & 0xFF));
+                    offset += SENSOR_ACCEL_DATA_SIZE;
+                }
+                if ((mask & SENSOR_FLAG_GYRO) != 0) {
+                    motion[m + SensorBatch.GYRO] = (short) ((p[offset + 1] << 8) | (p[offset] & 0xFF));
+                    motion[m + SensorBatch.GYRO + 1] = (short) ((p[offset + 3] << 8) | (p[offset + 2] & 0xFF));
+                    motion[m + SensorBatch.GYRO + 2] = (short) ((p[offset + 5] << 8) | (p[offset + 4] & 0xFF));
+                    offset += SENSOR_GYRO_DATA_SIZE;
+                }
+                if ((mask & SENSOR_FLAG_MAGNO) != 0) {
+                    motion[m + SensorBatch.MAGNO] = (short) ((p[offset + 1] << 8) | (p[offset] & 0xFF));
+                    motion[m + SensorBatch.MAGNO + 1] = (short) ((p[offset + 3] << 8) | (p[offset + 2] & 0xFF));
+                    motion[m + SensorBatch.MAGNO + 2] = (short) ((p[offset + 5] << 8) | (p[offset + 4] & 0xFF));
+                }
+            } else if (length == SENSOR_ENV_PACKET_LENGTH) {
+                if ((mask & SENSOR_FLAG_HUMIDITY) != 0) {
+                    humidity[i] = ((p[offset + 1] << 8) + (p[offset] & 0xFF)) / 10f;
+                    offset += SENSOR_HUMD_DATA_SIZE;
+                }
+                if ((mask & SENSOR_FLAG_PRESSURE) != 0) {
+                    pressure[i] = ((p[offset + 1] << 8) + (p[offset] & 0xFF)) / 10f;
+                    offset += SENSOR_PRES_DATA_SIZE;
+                }
+                if ((mask & SENSOR_FLAG_TEMP) != 0) {
+                    temperature[i] = ((p[offset + 1] << 8) + (p[offset] & 0xFF)) / 10f;
+                }
+            } else {
+                mask = 0;
+            }
+            masks[i] = mask;
+        }
+        batch.mCount = count;
+        return count;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,90 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+/**
+ * A decoded sensor data packet. Samples are reusable: they are filled by
+ * {@link SensorDataParser#decode(byte[], SensorSample)} in place and copied
+ * between threads through a {@link SensorSampleRing}
+ *
+ */
+public class SensorSample {
+    public long mTimestampMs;
+    public int mPacketLength;
+    public int mMask;
+    public float mHumidity;
+    public float mPressure;
+    public float mTemperatureC;
+    public int mAccelX;
+    public int mAccelY;
+    public int mAccelZ;
+    public int mGyroX;
+    public int mGyroY;
+    public int mGyroZ;
+    public int mMagnoX;
+    public int mMagnoY;
+    public int mMagnoZ;
+
+    // Orientation of the tag after this motion sample (see SenseManager)
+    public float mHeading;
+    public float mPitch;
+    public float mRoll;
+    public float mQuatW;
+    public float mQuatX;
+    public float mQuatY;
+    public float mQuatZ;
+
+    public void clear() {
+        mTimestampMs = 0;
+        mPacketLength = 0;
+        mMask = 0;
+        mHumidity = 0;
+        mPressure = 0;
+        mTemperatureC = 0;
+        mAccelX = mAccelY = mAccelZ = 0;
+        mGyroX = mGyroY = mGyroZ = 0;
+        mMagnoX = mMagnoY = mMagnoZ = 0;
+        mHeading = mPitch = mRoll = 0;
+        mQuatW = mQuatX = mQuatY = mQuatZ = 0;
+    }
+
+    public void copyFrom(SensorSample s) {
+        mTimestampMs = s.mTimestampMs;
+        mPacketLength = s.mPacketLength;
+        mMask = s.mMask;
+        mHumidity = s.mHumidity;
+        mPressure = s.mPressure;
+        mTemperatureC = s.mTemperatureC;
+        mAccelX = s.mAccelX;
+        mAccelY = s.mAccelY;
+        mAccelZ = s.mAccelZ;
+        mGyroX = s.mGyroX;
+        mGyroY = s.mGyroY;
+        mGyroZ = s.mGyroZ;
+        mMagnoX = s.mMagnoX;
+        mMagnoY = s.mMagnoY;
+        mMagnoZ = s.mMagnoZ;
+        mHeading = s.mHeading;
+        mPitch = s.mPitch;
+        mRoll = s.mRoll;
+        mQuatW = s.mQuatW;
+        mQuatX = s.mQuatX;
+        mQuatY = s.mQuatY;
+        mQuatZ = s.mQuatZ;
+    }
+}
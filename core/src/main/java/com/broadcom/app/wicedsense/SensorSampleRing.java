@@ -0,0 +1,253 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free ring buffer of decoded sensor samples with a single producer and
+ * any number of readers. The producer fills a sample with {@link #claim()} and
+ * makes it visible with {@link #publish()}; it never blocks and never waits
+ * for readers. Each {@link Reader} keeps its own cursor. A reader that falls
+ * more than a ring length behind skips ahead to the oldest sample still in the
+ * ring, so a slow reader loses old samples without stalling the producer or
+ * other readers.
+ * <p>
+ * Slots are stored in an {@link AtomicLongArray}: a slot sequence word
+ * followed by the packed sample fields. The producer clears the sequence word,
+ * writes the fields and then sets the word to the sequence of the sample. A
+ * reader accepts a copy only if the word holds the expected sequence both
+ * before and after copying. All accesses are volatile, so a copy torn by the
+ * producer wrapping onto the slot is always detected
+ *
+ */
+public class SensorSampleRing {
+    // Longs per slot: the sequence word, 12 longs of packed fields, padding
+    private static final int SLOT_SHIFT = 4;
+    private static final int SLOT_LONGS = 1 << SLOT_SHIFT;
+
+    /**
+     * A reader of the ring. A reader must only be used from one thread
+     */
+    public class Reader {
+        private long mCursor;
+        private long mDropped;
+        private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+        private Reader(long cursor) {
+            mCursor = cursor;
+        }
+
+        /**
+         * Copy the next unread sample into the given sample
+         *
+         * @param out
+         * @return false if there are no unread samples
+         */
+        public boolean read(SensorSample out) {
+            while (true) {
+                long available = mWriteSequence.get();
+                if (mCursor >= available) {
+                    return false;
+                }
+                // The slot of sequence (available) may be being written by the
+                // producer, so only (capacity - 1) samples can be read safely
+                long oldest = available - mCapacity + 1;
+                if (mCursor < oldest) {
+                    mDropped += oldest - mCursor;
+                    mCursor = oldest;
+                }
+                int base = (int) (mCursor & mMask) << SLOT_SHIFT;
+                long sequence = mCursor + 1;
+                if (mData.get(base) == sequence) {
+                    unpack(base, out);
+                    // Check that the producer did not wrap around onto this
+                    // slot while it was being copied
+                    if (mData.get(base) == sequence) {
+                        mCursor++;
+                        return true;
+                    }
+                }
+                // Overwritten: the next pass skips to the oldest sample
+            }
+        }
+
+        /**
+         * Skip all unread samples
+         */
+        public void skipToEnd() {
+            mCursor = mWriteSequence.get();
+        }
+
+        /**
+         * Number of samples lost because this reader fell behind
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        /**
+         * Called by the producer after publishing a sample.
+         *
+         * @return true if the reader needs to be woken up, false if a wakeup
+         *         is already pending
+         */
+        public boolean requestWakeup() {
+            return mWakeupPending.compareAndSet(false, true);
+        }
+
+        /**
+         * Called by the reader before draining the ring, so that samples
+         * published while draining trigger a new wakeup
+         */
+        public void clearWakeup() {
+            mWakeupPending.set(false);
+        }
+    }
+
+    // Slot sequence words hold (sequence + 1) of the sample in the slot, or 0
+    // while it is written
+    private final AtomicLongArray mData;
+    private final SensorSample mClaimed = new SensorSample();
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicLong mWriteSequence = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            number of slots. Rounded up to a power of two
+     */
+    public SensorSampleRing(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = size - 1;
+        mData = new AtomicLongArray(size << SLOT_SHIFT);
+    }
+
+    /**
+     * Get the sample to fill for the next publish. Must only be called by the
+     * producer, and must be followed by {@link #publish()} to make the sample
+     * visible to readers. The same instance is returned on every call
+     */
+    public SensorSample claim() {
+        return mClaimed;
+    }
+
+    /**
+     * Publish the sample returned by {@link #claim()}
+     */
+    public void publish() {
+        long sequence = mWriteSequence.get();
+        int base = (int) (sequence & mMask) << SLOT_SHIFT;
+        mData.set(base, 0);
+        pack(mClaimed, base);
+        mData.set(base, sequence + 1);
+        mWriteSequence.lazySet(sequence + 1);
+    }
+
+    private void pack(SensorSample s, int base) {
+        AtomicLongArray d = mData;
+        d.set(base + 1, s.mTimestampMs);
+        d.set(base + 2, ints(s.mPacketLength, s.mMask));
+        d.set(base + 3, floats(s.mHumidity, s.mPressure));
+        d.set(base + 4, ints(Float.floatToRawIntBits(s.mTemperatureC), s.mAccelX));
+        d.set(base + 5, ints(s.mAccelY, s.mAccelZ));
+        d.set(base + 6, ints(s.mGyroX, s.mGyroY));
+        d.set(base + 7, ints(s.mGyroZ, s.mMagnoX));
+        d.set(base + 8, ints(s.mMagnoY, s.mMagnoZ));
+        d.set(base + 9, floats(s.mHeading, s.mPitch));
+        d.set(base + 10, floats(s.mRoll, s.mQuatW));
+        d.set(base + 11, floats(s.mQuatX, s.mQuatY));
+        d.set(base + 12, ints(Float.floatToRawIntBits(s.mQuatZ), 0));
+    }
+
+    private void unpack(int base, SensorSample s) {
+        AtomicLongArray d = mData;
+        s.mTimestampMs = d.get(base + 1);
+        long v = d.get(base + 2);
+        s.mPacketLength = high(v);
+        s.mMask = low(v);
+        v = d.get(base + 3);
+        s.mHumidity = Float.intBitsToFloat(high(v));
+        s.mPressure = Float.intBitsToFloat(low(v));
+        v = d.get(base + 4);
+        s.mTemperatureC = Float.intBitsToFloat(high(v));
+        s.mAccelX = low(v);
+        v = d.get(base + 5);
+        s.mAccelY = high(v);
+        s.mAccelZ = low(v);
+        v = d.get(base + 6);
+        s.mGyroX = high(v);
+        s.mGyroY = low(v);
+        v = d.get(base + 7);
+        s.mGyroZ = high(v);
+        s.mMagnoX = low(v);
+        v = d.get(base + 8);
+        s.mMagnoY = high(v);
+        s.mMagnoZ = low(v);
+        v = d.get(base + 9);
+        s.mHeading = Float.intBitsToFloat(high(v));
+        s.mPitch = Float.intBitsToFloat(low(v));
+        v = d.get(base + 10);
+        s.mRoll = Float.intBitsToFloat(high(v));
+        s.mQuatW = Float.intBitsToFloat(low(v));
+        v = d.get(base + 11);
+        s.mQuatX = Float.intBitsToFloat(high(v));
+        s.mQuatY = Float.intBitsToFloat(low(v));
+        s.mQuatZ = Float.intBitsToFloat(high(d.get(base + 12)));
+    }
+
+    private static long ints(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    private static long floats(float high, float low) {
+        return ints(Float.floatToRawIntBits(high), Float.floatToRawIntBits(low));
+    }
+
+    private static int high(long v) {
+        return (int) (v >>> 32);
+    }
+
+    private static int low(long v) {
+        return (int) v;
+    }
+
+    /**
+     * Create a reader that starts with the next published sample
+     */
+    public Reader newReader() {
+        return new Reader(mWriteSequence.get());
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Total number of samples published
+     */
+    public long getWriteSequence() {
+        return mWriteSequence.get();
+    }
+}
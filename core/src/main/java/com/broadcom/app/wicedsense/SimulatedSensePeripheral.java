@@ -0,0 +1,491 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a WICED Sense tag, used to load-test the host stack without
+ * hardware. Implements the sensor service (periodic environment and motion
+ * notifications), the battery service and the secure-upgrade service (app
+ * info, control point and data characteristics). Notification rates,
+ * response latency, packet loss and random disconnects are configurable.
+ * <p>
+ * Requests may be made from any thread. Everything runs on a single
+ * simulator thread, and all {@link Link} callbacks are made from it, like the
+ * binder thread of the Bluetooth stack. Does not use Android APIs
+ *
+ */
+public class SimulatedSensePeripheral {
+
+    public static final UUID SENSOR_SERVICE_UUID = UUID
+            .fromString("739298B6-87B6-4984-A5DC-BDC18B068985");
+    public static final UUID SENSOR_NOTIFICATION_UUID = UUID
+            .fromString("33EF9113-3B55-413E-B553-FEA1EAADA459");
+    public static final UUID BATTERY_SERVICE_UUID = UUID
+            .fromString("0000180F-0000-1000-8000-00805f9b34fb");
+    public static final UUID BATTERY_LEVEL_UUID = UUID
+            .fromString("00002a19-0000-1000-8000-00805f9b34fb");
+    public static final UUID UPGRADE_SERVICE_UUID = UUID
+            .fromString("A86ABC2D-D44C-442E-99F7-80059A873E36");
+    public static final UUID UPGRADE_CONTROL_POINT_UUID = UUID
+            .fromString("1BD19C14-B78A-4E0F-AEB5-8E0352BAC382");
+    public static final UUID UPGRADE_DATA_UUID = UUID
+            .fromString("279F9DAB-79BE-4663-AF1D-24407347AF13");
+    public static final UUID UPGRADE_APP_INFO_UUID = UUID
+            .fromString("6AA5711B-0376-44F1-BCA1-8647B48BDB55");
+    public static final UUID CLIENT_CONFIG_UUID = UUID
+            .fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    /** Same values as the BluetoothGatt status codes */
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_LINK_LOSS = 0x08;
+    public static final int STATUS_FAILURE = 0x101;
+
+    // Secure-upgrade control point commands and status values
+    private static final int UPGRADE_COMMAND_PREPARE = 0x01;
+    private static final int UPGRADE_COMMAND_DOWNLOAD = 0x02;
+    private static final int UPGRADE_COMMAND_VERIFY = 0x03;
+    private static final int UPGRADE_COMMAND_ABORT = 0x07;
+    private static final int UPGRADE_STATUS_OK = 0;
+    private static final int UPGRADE_STATUS_UNSUPPORTED_COMMAND = 1;
+    private static final int UPGRADE_STATUS_ILLEGAL_STATE = 2;
+    private static final int UPGRADE_STATUS_VERIFICATION_FAILED = 3;
+    private static final int UPGRADE_WRITE_STATUS_TOO_MUCH_DATA = 0x83;
+    private static final int UPGRADE_WRITE_STATUS_ABORTED = 0x85;
+
+    private static final int ENV_MASK = SensorDataParser.SENSOR_FLAG_HUMIDITY
+            | SensorDataParser.SENSOR_FLAG_PRESSURE | SensorDataParser.SENSOR_FLAG_TEMP;
+    private static final int MOTION_MASK = SensorDataParser.SENSOR_FLAG_ACCEL
+            | SensorDataParser.SENSOR_FLAG_GYRO | SensorDataParser.SENSOR_FLAG_MAGNO;
+
+    /**
+     * Receives the responses and notifications of the peripheral
+     */
+    public interface Link {
+        public void onConnectionStateChanged(boolean connected, int status);
+
+        public void onServicesDiscovered(int status);
+
+        public void onNotification(UUID characteristic, byte[] value);
+
+        public void onReadResponse(UUID characteristic, int status, byte[] value);
+
+        public void onWriteResponse(UUID characteristic, int status);
+
+        public void onDescriptorWriteResponse(UUID characteristic, UUID descriptor, int status);
+    }
+
+    /**
+     * Behaviour of the peripheral. Changes have no effect once the
+     * peripheral is created
+     */
+    public static class Config {
+        /** Interval between environment notifications (0 disables them) */
+        public int mEnvIntervalMs = 1000;
+        /** Interval between motion notifications (0 disables them) */
+        public int mMotionIntervalMs = 20;
+        /** Delay before connection changes and request responses */
+        public int mResponseLatencyMs = 15;
+        /** Fraction (0..1) of notifications that are dropped */
+        public float mNotificationLossRate;
+        /**
+         * Fraction (0..1) of request responses that are dropped, so the
+         * request times out on the host
+         */
+        public float mResponseLossRate;
+        /** Mean time between unrequested disconnects (0 disables them) */
+        public int mDisconnectIntervalMs;
+        public int mBatteryLevel = 90;
+        public int mAppId = 1;
+        public int mMajorVersion = 1;
+        public int mMinorVersion = 2;
+        public long mSeed = 1;
+    }
+
+    private final Config mConfig;
+    private final Link mLink;
+    private final Random mRandom;
+    private final ScheduledExecutorService mExecutor;
+
+    // Only changed on the simulator thread
+    private volatile boolean mConnected;
+    private boolean mSensorNotify;
+    private boolean mControlPointNotify;
+    private ScheduledFuture<?> mEnvTask;
+    private ScheduledFuture<?> mMotionTask;
+    private ScheduledFuture<?> mDisconnectTask;
+    private int mTick;
+    private boolean mUpgradePrepared;
+    private int mUpgradeLength = -1;
+    private int mUpgradeReceived;
+
+    private volatile long mNotificationsSent;
+    private volatile long mNotificationsDropped;
+    private volatile long mResponsesDropped;
+    private volatile long mDisconnects;
+
+    private final Runnable mEnvNotifier = new Runnable() {
+        @Override
+        public void run() {
+            notifySensor(newEnvPacket());
+        }
+    };
+
+    private final Runnable mMotionNotifier = new Runnable() {
+        @Override
+        public void run() {
+            notifySensor(newMotionPacket());
+        }
+    };
+
+    private final Runnable mLinkLoss = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnected) {
+                mDisconnects++;
+                onDisconnected(STATUS_LINK_LOSS);
+            }
+        }
+    };
+
+    public SimulatedSensePeripheral(Config config, Link link) {
+        mConfig = config;
+        mLink = link;
+        mRandom = new Random(config.mSeed);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SimulatedSense");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void connect() {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mConnected) {
+                    return;
+                }
+                mConnected = true;
+                scheduleLinkLoss();
+                mLink.onConnectionStateChanged(true, STATUS_SUCCESS);
+            }
+        });
+    }
+
+    public void disconnect() {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mConnected) {
+                    onDisconnected(STATUS_SUCCESS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Discover the services. The services are always the same, so this only
+     * simulates the time taken
+     */
+    public void discoverServices() {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mConnected) {
+                    mLink.onServicesDiscovered(STATUS_SUCCESS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the simulator thread. The peripheral cannot be used afterwards
+     */
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public void read(final UUID characteristic) {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!mConnected || dropResponse()) {
+                    return;
+                }
+                if (BATTERY_LEVEL_UUID.equals(characteristic)) {
+                    mLink.onReadResponse(characteristic, STATUS_SUCCESS,
+                            new byte[] { (byte) mConfig.mBatteryLevel });
+                } else if (UPGRADE_APP_INFO_UUID.equals(characteristic)) {
+                    mLink.onReadResponse(characteristic, STATUS_SUCCESS, new byte[] {
+                            (byte) mConfig.mAppId, (byte) (mConfig.mAppId >> 8),
+                            (byte) mConfig.mMajorVersion, (byte) mConfig.mMinorVersion });
+                } else {
+                    mLink.onReadResponse(characteristic, STATUS_FAILURE, null);
+                }
+            }
+        });
+    }
+
+    public void write(final UUID characteristic, final byte[] value) {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!mConnected || dropResponse()) {
+                    return;
+                }
+                if (UPGRADE_CONTROL_POINT_UUID.equals(characteristic)) {
+                    mLink.onWriteResponse(characteristic, STATUS_SUCCESS);
+                    onControlPoint(value);
+                } else if (UPGRADE_DATA_UUID.equals(characteristic)) {
+                    mLink.onWriteResponse(characteristic, onUpgradeData(value));
+                } else {
+                    mLink.onWriteResponse(characteristic, STATUS_FAILURE);
+                }
+            }
+        });
+    }
+
+    public void writeDescriptor(final UUID characteristic, final UUID descriptor,
+            final byte[] value) {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!mConnected || dropResponse()) {
+                    return;
+                }
+                if (!CLIENT_CONFIG_UUID.equals(descriptor)) {
+                    mLink.onDescriptorWriteResponse(characteristic, descriptor, STATUS_FAILURE);
+                    return;
+                }
+                boolean enable = isEnabled(value);
+                if (SENSOR_NOTIFICATION_UUID.equals(characteristic)) {
+                    setSensorNotify(enable);
+                } else if (UPGRADE_CONTROL_POINT_UUID.equals(characteristic)) {
+                    mControlPointNotify = enable;
+                } else {
+                    mLink.onDescriptorWriteResponse(characteristic, descriptor, STATUS_FAILURE);
+                    return;
+                }
+                mLink.onDescriptorWriteResponse(characteristic, descriptor, STATUS_SUCCESS);
+            }
+        });
+    }
+
+    public long getNotificationsSent() {
+        return mNotificationsSent;
+    }
+
+    public long getNotificationsDropped() {
+        return mNotificationsDropped;
+    }
+
+    public long getResponsesDropped() {
+        return mResponsesDropped;
+    }
+
+    public long getDisconnects() {
+        return mDisconnects;
+    }
+
+    private void schedule(Runnable r) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        mExecutor.schedule(r, mConfig.mResponseLatencyMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isEnabled(byte[] value) {
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (value[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean dropResponse() {
+        if (mConfig.mResponseLossRate > 0 && mRandom.nextFloat() < mConfig.mResponseLossRate) {
+            mResponsesDropped++;
+            return true;
+        }
+        return false;
+    }
+
+    private void scheduleLinkLoss() {
+        if (mConfig.mDisconnectIntervalMs <= 0) {
+            return;
+        }
+        // Exponentially distributed, so disconnects are memoryless
+        long delayMs = (long) (-Math.log(1 - mRandom.nextDouble()) * mConfig.mDisconnectIntervalMs);
+        mDisconnectTask = mExecutor.schedule(mLinkLoss, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void onDisconnected(int status) {
+        mConnected = false;
+        setSensorNotify(false);
+        mControlPointNotify = false;
+        mUpgradePrepared = false;
+        mUpgradeLength = -1;
+        if (mDisconnectTask != null) {
+            mDisconnectTask.cancel(false);
+            mDisconnectTask = null;
+        }
+        mLink.onConnectionStateChanged(false, status);
+    }
+
+    private void setSensorNotify(boolean enable) {
+        if (enable == mSensorNotify) {
+            return;
+        }
+        mSensorNotify = enable;
+        if (enable) {
+            if (mConfig.mEnvIntervalMs > 0) {
+                mEnvTask = mExecutor.scheduleAtFixedRate(mEnvNotifier, mConfig.mEnvIntervalMs,
+                        mConfig.mEnvIntervalMs, TimeUnit.MILLISECONDS);
+            }
+            if (mConfig.mMotionIntervalMs > 0) {
+                mMotionTask = mExecutor.scheduleAtFixedRate(mMotionNotifier,
+                        mConfig.mMotionIntervalMs, mConfig.mMotionIntervalMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        } else {
+            if (mEnvTask != null) {
+                mEnvTask.cancel(false);
+                mEnvTask = null;
+            }
+            if (mMotionTask != null) {
+                mMotionTask.cancel(false);
+                mMotionTask = null;
+            }
+        }
+    }
+
+    private void notifySensor(byte[] packet) {
+        if (mConfig.mNotificationLossRate > 0
+                && mRandom.nextFloat() < mConfig.mNotificationLossRate) {
+            mNotificationsDropped++;
+            return;
+        }
+        mNotificationsSent++;
+        mLink.onNotification(SENSOR_NOTIFICATION_UUID, packet);
+    }
+
+    private void notifyControlPoint(int status) {
+        if (mControlPointNotify) {
+            mLink.onNotification(UPGRADE_CONTROL_POINT_UUID, new byte[] { (byte) status });
+        }
+    }
+
+    private void onControlPoint(byte[] value) {
+        int command = value == null || value.length == 0 ? -1 : value[0] & 0xFF;
+        switch (command) {
+        case UPGRADE_COMMAND_PREPARE:
+            mUpgradePrepared = true;
+            mUpgradeLength = -1;
+            notifyControlPoint(UPGRADE_STATUS_OK);
+            break;
+        case UPGRADE_COMMAND_DOWNLOAD:
+            if (!mUpgradePrepared || value.length < 3) {
+                notifyControlPoint(UPGRADE_STATUS_ILLEGAL_STATE);
+                break;
+            }
+            mUpgradeLength = (value[1] & 0xFF) | ((value[2] & 0xFF) << 8);
+            mUpgradeReceived = 0;
+            notifyControlPoint(UPGRADE_STATUS_OK);
+            break;
+        case UPGRADE_COMMAND_VERIFY:
+            boolean verified = mUpgradeLength >= 0 && mUpgradeReceived == mUpgradeLength;
+            mUpgradePrepared = false;
+            mUpgradeLength = -1;
+            notifyControlPoint(verified ? UPGRADE_STATUS_OK : UPGRADE_STATUS_VERIFICATION_FAILED);
+            break;
+        case UPGRADE_COMMAND_ABORT:
+            mUpgradePrepared = false;
+            mUpgradeLength = -1;
+            notifyControlPoint(UPGRADE_WRITE_STATUS_ABORTED);
+            break;
+        default:
+            notifyControlPoint(UPGRADE_STATUS_UNSUPPORTED_COMMAND);
+            break;
+        }
+    }
+
+    private int onUpgradeData(byte[] value) {
+        if (mUpgradeLength < 0 || value == null) {
+            return STATUS_FAILURE;
+        }
+        if (mUpgradeReceived + value.length > mUpgradeLength) {
+            return UPGRADE_WRITE_STATUS_TOO_MUCH_DATA;
+        }
+        mUpgradeReceived += value.length;
+        return STATUS_SUCCESS;
+    }
+
+    private byte[] newEnvPacket() {
+        double t = mTick++ * 0.01;
+        byte[] p = new byte[SensorDataParser.SENSOR_ENV_PACKET_LENGTH];
+        p[0] = (byte) ENV_MASK;
+        putInt16(p, 1, (int) (450 + 50 * Math.sin(t)));
+        putInt16(p, 3, 10132 + mRandom.nextInt(5) - 2);
+        putInt16(p, 5, (int) (225 + 20 * Math.sin(t * 0.5)));
+        return p;
+    }
+
+    private byte[] newMotionPacket() {
+        byte[] p = new byte[SensorDataParser.SENSOR_MOTION_PACKET_LENGTH];
+        p[0] = (byte) MOTION_MASK;
+        // Resting flat with a little sensor noise
+        putInt16(p, 1, noise(0));
+        putInt16(p, 3, noise(0));
+        putInt16(p, 5, noise(1000));
+        putInt16(p, 7, noise(0));
+        putInt16(p, 9, noise(0));
+        putInt16(p, 11, noise(0));
+        putInt16(p, 13, noise(200));
+        putInt16(p, 15, noise(0));
+        putInt16(p, 17, noise(-400));
+        return p;
+    }
+
+    private int noise(int value) {
+        return value + mRandom.nextInt(21) - 10;
+    }
+
+    private static void putInt16(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+    }
+}
@@ -17,8 +17,6 @@
  ******************************************************************************/
 package com.broadcom.util;
 
-import android.bluetooth.BluetoothDevice;
-
 /**
  * Helper class to convert bytes to ints and ints to bytes
  *
@@ -97,10 +95,6 @@ public class ByteUtils {
         return b;
     }
 
-    public static byte[] getByteAddress(BluetoothDevice device) {
-        return getBytesFromAddress(device.getAddress());
-    }
-
     public static byte[] getBytesFromAddress(String address) {
         int i, j = 0;
         byte[] output = new byte[BD_ADDR_LEN];
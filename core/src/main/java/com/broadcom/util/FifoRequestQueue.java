@@ -0,0 +1,86 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * {@link RequestQueue} that starts requests in the order they were queued
+ *
+ * @param <T>
+ *            the request type
+ */
+public class FifoRequestQueue<T> implements RequestQueue<T> {
+    private final ArrayDeque<T> mQueue = new ArrayDeque<T>();
+    private T mPending;
+
+    @Override
+    public synchronized T add(T request, boolean atFront) {
+        if (atFront) {
+            mQueue.addFirst(request);
+        } else {
+            mQueue.addLast(request);
+        }
+        if (mPending != null) {
+            return null;
+        }
+        mPending = mQueue.pollFirst();
+        return mPending;
+    }
+
+    @Override
+    public synchronized T next() {
+        mPending = mQueue.pollFirst();
+        return mPending;
+    }
+
+    @Override
+    public synchronized T getPending() {
+        return mPending;
+    }
+
+    @Override
+    public synchronized int remove(Filter<? super T> filter) {
+        int removed = 0;
+        Iterator<T> i = mQueue.iterator();
+        while (i.hasNext()) {
+            if (filter.matches(i.next())) {
+                i.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mQueue.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        mQueue.clear();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mQueue.clear();
+        mPending = null;
+    }
+}
@@ -0,0 +1,153 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+/**
+ * Fixed size histogram of latencies with logarithmic buckets: bucket i counts
+ * the latencies from 2^i to 2^(i+1) usec, and the last bucket also counts
+ * all longer ones. Also keeps the count, sum, minimum and maximum. Recording
+ * does not allocate. Not thread safe
+ *
+ */
+public class LatencyHistogram {
+    /**
+     * Number of buckets. The last bucket starts at 2^(BUCKETS-1) usec (about
+     * 8 seconds)
+     */
+    public static final int BUCKETS = 24;
+
+    private final long[] mBuckets = new long[BUCKETS];
+    private long mCount;
+    private long mTotalUs;
+    private long mMinUs;
+    private long mMaxUs;
+
+    public static int getBucket(long us) {
+        return MathUtils.getLog2Bucket(us, BUCKETS);
+    }
+
+    /**
+     * Lower bound of a bucket (in usec)
+     */
+    public static long getBucketStartUs(int bucket) {
+        return bucket == 0 ? 0 : 1L << bucket;
+    }
+
+    public void record(long latencyNs) {
+        long us = latencyNs / 1000;
+        if (us < 0) {
+            us = 0;
+        }
+        mBuckets[getBucket(us)]++;
+        if (mCount == 0 || us < mMinUs) {
+            mMinUs = us;
+        }
+        if (us > mMaxUs) {
+            mMaxUs = us;
+        }
+        mCount++;
+        mTotalUs += us;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotalUs = 0;
+        mMinUs = 0;
+        mMaxUs = 0;
+    }
+
+    public void copyFrom(LatencyHistogram h) {
+        System.arraycopy(h.mBuckets, 0, mBuckets, 0, BUCKETS);
+        mCount = h.mCount;
+        mTotalUs = h.mTotalUs;
+        mMinUs = h.mMinUs;
+        mMaxUs = h.mMaxUs;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getBucketCount(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    public long getMinUs() {
+        return mMinUs;
+    }
+
+    public long getMaxUs() {
+        return mMaxUs;
+    }
+
+    public long getMeanUs() {
+        return mCount > 0 ? mTotalUs / mCount : 0;
+    }
+
+    /**
+     * Estimate a percentile, as the upper bound of the bucket that contains
+     * it, clamped to the maximum
+     *
+     * @param percent
+     *            0 to 100
+     * @return the estimate (in usec), or 0 if empty
+     */
+    public long getPercentileUs(double percent) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percent / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? mMaxUs : Math.min(1L << (i + 1), mMaxUs);
+            }
+        }
+        return mMaxUs;
+    }
+
+    /**
+     * @return the non-empty buckets, as "start_us:count" pairs
+     */
+    public String bucketsToString() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (mBuckets[i] != 0) {
+                if (b.length() > 0) {
+                    b.append(' ');
+                }
+                b.append(getBucketStartUs(i)).append(':').append(mBuckets[i]);
+            }
+        }
+        return b.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + mCount + " mean=" + getMeanUs() + "us min=" + mMinUs + "us p50="
+                + getPercentileUs(50) + "us p90=" + getPercentileUs(90) + "us p99="
+                + getPercentileUs(99) + "us max=" + mMaxUs + "us";
+    }
+}
@@ -43,4 +43,18 @@ public class MathUtils {
         double nX = x / mag;
         return radiansToDegrees(Math.atan2(nY, nX));
     }
+
+    /**
+     * Index of the logarithmic histogram bucket of a value: bucket i holds the
+     * values from 2^i to 2^(i+1), bucket 0 also holds 0 and 1, and the last
+     * bucket also holds all larger values
+     *
+     * @param value
+     * @param bucketCount
+     *            number of buckets
+     */
+    public static int getLog2Bucket(long value, int bucketCount) {
+        int bucket = value <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(value);
+        return bucket < bucketCount ? bucket : bucketCount - 1;
+    }
 }
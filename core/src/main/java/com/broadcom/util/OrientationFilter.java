@@ -0,0 +1,290 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+/**
+ * Streaming 9-axis orientation filter (Madgwick gradient descent). Fuses
+ * gyroscope rates with the accelerometer and magnetometer directions into an
+ * orientation quaternion. The state is a few floats, so an update does not
+ * allocate
+ *
+ */
+public class OrientationFilter {
+    /**
+     * Default filter gain. Higher values trust the accelerometer and
+     * magnetometer more than the gyroscope
+     */
+    public static final float DEFAULT_BETA = 0.1f;
+
+    // Below this squared norm the gradient is taken as zero: the estimate
+    // already matches the measured directions, e.g. a level board right after
+    // a reset, and normalising it would give NaN
+    private static final float MIN_GRADIENT_NORM_SQ = 1e-12f;
+
+    private final float mBeta;
+    private float mQ0 = 1;
+    private float mQ1;
+    private float mQ2;
+    private float mQ3;
+
+    public OrientationFilter() {
+        this(DEFAULT_BETA);
+    }
+
+    public OrientationFilter(float beta) {
+        mBeta = beta;
+    }
+
+    public void reset() {
+        mQ0 = 1;
+        mQ1 = mQ2 = mQ3 = 0;
+    }
+
+    /**
+     * Update the orientation with one set of readings. The accelerometer and
+     * magnetometer may be in any unit, since only their direction is used. A
+     * zero accelerometer vector skips the correction step; a zero
+     * magnetometer vector falls back to a 6-axis update
+     *
+     * @param gx
+     * @param gy
+     * @param gz
+     *            gyroscope rates (radians/sec)
+     * @param ax
+     * @param ay
+     * @param az
+     *            accelerometer
+     * @param mx
+     * @param my
+     * @param mz
+     *            magnetometer
+     * @param dt
+     *            time since the previous update (sec)
+     */
+    public void update(float gx, float gy, float gz, float ax, float ay, float az, float mx,
+            float my, float mz, float dt) {
+        if (mx == 0 && my == 0 && mz == 0) {
+            updateImu(gx, gy, gz, ax, ay, az, dt);
+            return;
+        }
+        float q0 = mQ0, q1 = mQ1, q2 = mQ2, q3 = mQ3;
+
+        // Rate of change of the quaternion from the gyroscope
+        float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        if (!(ax == 0 && ay == 0 && az == 0)) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+            recipNorm = invSqrt(mx * mx + my * my + mz * mz);
+            mx *= recipNorm;
+            my *= recipNorm;
+            mz *= recipNorm;
+
+            float _2q0mx = 2f * q0 * mx;
+            float _2q0my = 2f * q0 * my;
+            float _2q0mz = 2f * q0 * mz;
+            float _2q1mx = 2f * q1 * mx;
+            float _2q0 = 2f * q0;
+            float _2q1 = 2f * q1;
+            float _2q2 = 2f * q2;
+            float _2q3 = 2f * q3;
+            float _2q0q2 = 2f * q0 * q2;
+            float _2q2q3 = 2f * q2 * q3;
+            float q0q0 = q0 * q0;
+            float q0q1 = q0 * q1;
+            float q0q2 = q0 * q2;
+            float q0q3 = q0 * q3;
+            float q1q1 = q1 * q1;
+            float q1q2 = q1 * q2;
+            float q1q3 = q1 * q3;
+            float q2q2 = q2 * q2;
+            float q2q3 = q2 * q3;
+            float q3q3 = q3 * q3;
+
+            // Reference direction of the Earth's magnetic field
+            float hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2
+                    + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+            float hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1 + my
+                    * q2q2 + _2q2 * mz * q3 - my * q3q3;
+            float _2bx = (float) Math.sqrt(hx * hx + hy * hy);
+            float _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1
+                    + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+            float _4bx = 2f * _2bx;
+            float _4bz = 2f * _2bz;
+
+            // Gradient descent corrective step
+            float s0 = -_2q2 * (2f * q1q3 - _2q0q2 - ax) + _2q1 * (2f * q0q1 + _2q2q3 - ay)
+                    - _2bz * q2 * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx)
+                    + (-_2bx * q3 + _2bz * q1) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my)
+                    + _2bx * q2 * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
+            float s1 = _2q3 * (2f * q1q3 - _2q0q2 - ax) + _2q0 * (2f * q0q1 + _2q2q3 - ay) - 4f
+                    * q1 * (1 - 2f * q1q1 - 2f * q2q2 - az) + _2bz * q3
+                    * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx)
+                    + (_2bx * q2 + _2bz * q0) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my)
+                    + (_2bx * q3 - _4bz * q1)
+                    * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
+            float s2 = -_2q0 * (2f * q1q3 - _2q0q2 - ax) + _2q3 * (2f * q0q1 + _2q2q3 - ay) - 4f
+                    * q2 * (1 - 2f * q1q1 - 2f * q2q2 - az) + (-_4bx * q2 - _2bz * q0)
+                    * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx)
+                    + (_2bx * q1 + _2bz * q3) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my)
+                    + (_2bx * q0 - _4bz * q2)
+                    * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
+            float s3 = _2q1 * (2f * q1q3 - _2q0q2 - ax) + _2q2 * (2f * q0q1 + _2q2q3 - ay)
+                    + (-_4bx * q3 + _2bz * q1)
+                    * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx)
+                    + (-_2bx * q0 + _2bz * q2) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my)
+                    + _2bx * q1 * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
+            float gradientNormSq = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if (gradientNormSq > MIN_GRADIENT_NORM_SQ) {
+                recipNorm = invSqrt(gradientNormSq);
+                qDot1 -= mBeta * s0 * recipNorm;
+                qDot2 -= mBeta * s1 * recipNorm;
+                qDot3 -= mBeta * s2 * recipNorm;
+                qDot4 -= mBeta * s3 * recipNorm;
+            }
+        }
+        integrate(q0, q1, q2, q3, qDot1, qDot2, qDot3, qDot4, dt);
+    }
+
+    /**
+     * Update the orientation from the gyroscope and accelerometer only. The
+     * heading then drifts with the gyroscope
+     */
+    public void updateImu(float gx, float gy, float gz, float ax, float ay, float az, float dt) {
+        float q0 = mQ0, q1 = mQ1, q2 = mQ2, q3 = mQ3;
+        float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        if (!(ax == 0 && ay == 0 && az == 0)) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            float _2q0 = 2f * q0;
+            float _2q1 = 2f * q1;
+            float _2q2 = 2f * q2;
+            float _2q3 = 2f * q3;
+            float _4q0 = 4f * q0;
+            float _4q1 = 4f * q1;
+            float _4q2 = 4f * q2;
+            float _8q1 = 8f * q1;
+            float _8q2 = 8f * q2;
+            float q0q0 = q0 * q0;
+            float q1q1 = q1 * q1;
+            float q2q2 = q2 * q2;
+            float q3q3 = q3 * q3;
+
+            float s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+            float s1 = _4q1 * q3q3 - _2q3 * ax + 4f * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1
+                    + _8q1 * q2q2 + _4q1 * az;
+            float s2 = 4f * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1
+                    + _8q2 * q2q2 + _4q2 * az;
+            float s3 = 4f * q1q1 * q3 - _2q1 * ax + 4f * q2q2 * q3 - _2q2 * ay;
+            float gradientNormSq = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if (gradientNormSq > MIN_GRADIENT_NORM_SQ) {
+                recipNorm = invSqrt(gradientNormSq);
+                qDot1 -= mBeta * s0 * recipNorm;
+                qDot2 -= mBeta * s1 * recipNorm;
+                qDot3 -= mBeta * s2 * recipNorm;
+                qDot4 -= mBeta * s3 * recipNorm;
+            }
+        }
+        integrate(q0, q1, q2, q3, qDot1, qDot2, qDot3, qDot4, dt);
+    }
+
+    /**
+     * Update the orientation from the gyroscope only, without a correction
+     * step
+     */
+    public void updateGyro(float gx, float gy, float gz, float dt) {
+        float q0 = mQ0, q1 = mQ1, q2 = mQ2, q3 = mQ3;
+        integrate(q0, q1, q2, q3, 0.5f * (-q1 * gx - q2 * gy - q3 * gz),
+                0.5f * (q0 * gx + q2 * gz - q3 * gy), 0.5f * (q0 * gy - q1 * gz + q3 * gx),
+                0.5f * (q0 * gz + q1 * gy - q2 * gx), dt);
+    }
+
+    private void integrate(float q0, float q1, float q2, float q3, float qDot1, float qDot2,
+            float qDot3, float qDot4, float dt) {
+        q0 += qDot1 * dt;
+        q1 += qDot2 * dt;
+        q2 += qDot3 * dt;
+        q3 += qDot4 * dt;
+        float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        mQ0 = q0 * recipNorm;
+        mQ1 = q1 * recipNorm;
+        mQ2 = q2 * recipNorm;
+        mQ3 = q3 * recipNorm;
+    }
+
+    private static float invSqrt(float x) {
+        return 1f / (float) Math.sqrt(x);
+    }
+
+    public float getQuaternionW() {
+        return mQ0;
+    }
+
+    public float getQuaternionX() {
+        return mQ1;
+    }
+
+    public float getQuaternionY() {
+        return mQ2;
+    }
+
+    public float getQuaternionZ() {
+        return mQ3;
+    }
+
+    /**
+     * Rotation about the z axis (degrees, -180 to 180)
+     */
+    public float getHeading() {
+        return (float) MathUtils.radiansToDegrees(Math.atan2(2f * (mQ1 * mQ2 + mQ0 * mQ3),
+                mQ0 * mQ0 + mQ1 * mQ1 - mQ2 * mQ2 - mQ3 * mQ3));
+    }
+
+    /**
+     * Rotation about the y axis (degrees, -90 to 90)
+     */
+    public float getPitch() {
+        float sinPitch = -2f * (mQ1 * mQ3 - mQ0 * mQ2);
+        if (sinPitch > 1) {
+            sinPitch = 1;
+        } else if (sinPitch < -1) {
+            sinPitch = -1;
+        }
+        return (float) MathUtils.radiansToDegrees(Math.asin(sinPitch));
+    }
+
+    /**
+     * Rotation about the x axis (degrees, -180 to 180)
+     */
+    public float getRoll() {
+        return (float) MathUtils.radiansToDegrees(Math.atan2(2f * (mQ0 * mQ1 + mQ2 * mQ3),
+                mQ0 * mQ0 - mQ1 * mQ1 - mQ2 * mQ2 + mQ3 * mQ3));
+    }
+}
@@ -0,0 +1,241 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * {@link RequestQueue} with four priority classes. The next request started
+ * is the oldest one of the highest class. Requests waiting longer than the
+ * aging period are promoted one class per period, so bulk and background
+ * requests are not starved, but they are never promoted above
+ * {@link #PRIORITY_INTERACTIVE}: a control request is only ever delayed by
+ * the pending request. The time requests wait in the queue is recorded per
+ * class
+ *
+ * @param <T>
+ *            the request type
+ */
+public class PriorityRequestQueue<T> implements RequestQueue<T> {
+
+    /** Connection setup and state machine steps, such as notification enables */
+    public static final int PRIORITY_CONTROL = 0;
+    /** Requests a user is waiting for */
+    public static final int PRIORITY_INTERACTIVE = 1;
+    /** Long transfers, such as firmware data */
+    public static final int PRIORITY_BULK = 2;
+    /** Periodic requests, such as battery polls */
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    private static final int PRIORITY_COUNT = 4;
+
+    /**
+     * Gives the priority class of a request
+     */
+    public interface Classifier<T> {
+        public int getPriority(T request);
+    }
+
+    /**
+     * Time requests of a priority class waited in the queue before being
+     * started
+     */
+    public static class WaitStats {
+        public long mCount;
+        public long mTotalNs;
+        public long mMaxNs;
+
+        public long getMeanNs() {
+            return mCount > 0 ? mTotalNs / mCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mCount + " requests, mean " + (getMeanNs() / 1000) + "us, max "
+                    + (mMaxNs / 1000) + "us";
+        }
+    }
+
+    private static class Entry<T> {
+        final T mRequest;
+        final long mQueuedNs;
+
+        Entry(T request, long queuedNs) {
+            mRequest = request;
+            mQueuedNs = queuedNs;
+        }
+    }
+
+    private final Classifier<? super T> mClassifier;
+    private final long mAgingNs;
+    private final ArrayDeque<Entry<T>>[] mQueues;
+    private final WaitStats[] mWaitStats = new WaitStats[PRIORITY_COUNT];
+    private T mPending;
+    private int mSize;
+
+    /**
+     * @param classifier
+     *            gives the priority class of the requests. Out of range
+     *            values are treated as {@link #PRIORITY_BACKGROUND}
+     * @param agingMs
+     *            time after which a waiting request is promoted one class,
+     *            or 0 to disable aging
+     */
+    public PriorityRequestQueue(Classifier<? super T> classifier, int agingMs) {
+        mClassifier = classifier;
+        mAgingNs = agingMs * 1000000L;
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArrayDeque<Entry<T>>[] queues = new ArrayDeque[PRIORITY_COUNT];
+        mQueues = queues;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i] = new ArrayDeque<Entry<T>>();
+            mWaitStats[i] = new WaitStats();
+        }
+    }
+
+    @Override
+    public synchronized T add(T request, boolean atFront) {
+        int priority = mClassifier.getPriority(request);
+        if (priority < PRIORITY_CONTROL || priority >= PRIORITY_COUNT) {
+            priority = PRIORITY_BACKGROUND;
+        }
+        long nowNs = System.nanoTime();
+        Entry<T> e = new Entry<T>(request, nowNs);
+        if (atFront) {
+            mQueues[priority].addFirst(e);
+        } else {
+            mQueues[priority].addLast(e);
+        }
+        mSize++;
+        if (mPending != null) {
+            return null;
+        }
+        mPending = poll(nowNs);
+        return mPending;
+    }
+
+    @Override
+    public synchronized T next() {
+        mPending = mSize > 0 ? poll(System.nanoTime()) : null;
+        return mPending;
+    }
+
+    private T poll(long nowNs) {
+        int best = -1;
+        long bestRank = 0;
+        long bestQueuedNs = 0;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            Entry<T> head = mQueues[i].peekFirst();
+            if (head == null) {
+                continue;
+            }
+            long rank = i;
+            if (i > PRIORITY_INTERACTIVE && mAgingNs > 0) {
+                rank = Math.max(PRIORITY_INTERACTIVE, i - (nowNs - head.mQueuedNs) / mAgingNs);
+            }
+            // Equal ranks go to the request that has waited longest
+            if (best < 0 || rank < bestRank
+                    || (rank == bestRank && head.mQueuedNs < bestQueuedNs)) {
+                best = i;
+                bestRank = rank;
+                bestQueuedNs = head.mQueuedNs;
+            }
+            if (rank == PRIORITY_CONTROL) {
+                break;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        Entry<T> e = mQueues[best].pollFirst();
+        mSize--;
+        long waitNs = nowNs - e.mQueuedNs;
+        WaitStats stats = mWaitStats[best];
+        stats.mCount++;
+        stats.mTotalNs += waitNs;
+        if (waitNs > stats.mMaxNs) {
+            stats.mMaxNs = waitNs;
+        }
+        return e.mRequest;
+    }
+
+    @Override
+    public synchronized T getPending() {
+        return mPending;
+    }
+
+    @Override
+    public synchronized int remove(Filter<? super T> filter) {
+        int removed = 0;
+        for (int p = 0; p < PRIORITY_COUNT; p++) {
+            Iterator<Entry<T>> i = mQueues[p].iterator();
+            while (i.hasNext()) {
+                if (filter.matches(i.next().mRequest)) {
+                    i.remove();
+                    removed++;
+                }
+            }
+        }
+        mSize -= removed;
+        return removed;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i].clear();
+        }
+        mSize = 0;
+    }
+
+    @Override
+    public synchronized void reset() {
+        clear();
+        mPending = null;
+    }
+
+    /**
+     * Copy the queue wait statistics of a priority class
+     *
+     * @param priority
+     * @param out
+     * @return out
+     */
+    public synchronized WaitStats getWaitStats(int priority, WaitStats out) {
+        WaitStats stats = mWaitStats[priority];
+        out.mCount = stats.mCount;
+        out.mTotalNs = stats.mTotalNs;
+        out.mMaxNs = stats.mMaxNs;
+        return out;
+    }
+
+    public synchronized void resetWaitStats() {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            WaitStats stats = mWaitStats[i];
+            stats.mCount = 0;
+            stats.mTotalNs = 0;
+            stats.mMaxNs = 0;
+        }
+    }
+}
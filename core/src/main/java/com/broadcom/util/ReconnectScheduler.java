@@ -0,0 +1,239 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import java.util.Random;
+
+/**
+ * Decides when to reconnect after a connection is lost. Disconnects are
+ * classified by cause; each cause has a base delay that doubles with every
+ * failed attempt of the same outage, up to a maximum, with random jitter so
+ * that many devices do not retry in step. An outage ends when the connection
+ * is usable again, when the user disconnects, or after the maximum number of
+ * attempts. The time to recover from each outage is recorded. Thread safe
+ *
+ */
+public class ReconnectScheduler {
+    public static final int CAUSE_USER = 0;
+    /** The link supervision timed out, e.g. the device went out of range */
+    public static final int CAUSE_LINK_LOSS = 1;
+    /** The device terminated the connection, e.g. it was reset */
+    public static final int CAUSE_REMOTE = 2;
+    /** The connection failed or was dropped by the local stack */
+    public static final int CAUSE_CONNECT_FAILED = 3;
+    /** A connect request did not complete in time */
+    public static final int CAUSE_TIMEOUT = 4;
+    public static final int CAUSE_COUNT = 5;
+
+    // HCI and GATT disconnect reasons reported as the connection status
+    public static final int STATUS_CONN_TIMEOUT = 0x08;
+    public static final int STATUS_CONN_TERMINATE_PEER_USER = 0x13;
+
+    private static final String[] CAUSE_NAMES = { "user", "link loss", "remote", "failed",
+            "timeout" };
+
+    // A device out of range often comes back quickly; a stack error needs
+    // time to clear
+    private static final int[] DEFAULT_BASE_DELAY_MS = { 0, 250, 1000, 1000, 2000 };
+
+    public static final int DEFAULT_MAX_DELAY_MS = 30000;
+
+    /**
+     * Reconnect statistics
+     */
+    public static class Stats {
+        public final long[] mDisconnects = new long[CAUSE_COUNT];
+        public long mAttempts;
+        public long mRecoveries;
+        public long mGiveUps;
+        public long mTotalRecoveryMs;
+        public long mMaxRecoveryMs;
+        public long mLastRecoveryMs;
+
+        public long getMeanRecoveryMs() {
+            return mRecoveries > 0 ? mTotalRecoveryMs / mRecoveries : 0;
+        }
+
+        public void copyFrom(Stats s) {
+            System.arraycopy(s.mDisconnects, 0, mDisconnects, 0, CAUSE_COUNT);
+            mAttempts = s.mAttempts;
+            mRecoveries = s.mRecoveries;
+            mGiveUps = s.mGiveUps;
+            mTotalRecoveryMs = s.mTotalRecoveryMs;
+            mMaxRecoveryMs = s.mMaxRecoveryMs;
+            mLastRecoveryMs = s.mLastRecoveryMs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder("disconnects");
+            for (int i = 0; i < CAUSE_COUNT; i++) {
+                b.append(i == 0 ? " " : ", ").append(CAUSE_NAMES[i]).append('=')
+                        .append(mDisconnects[i]);
+            }
+            return b.append("; ").append(mAttempts).append(" attempts, ").append(mRecoveries)
+                    .append(" recoveries (mean ").append(getMeanRecoveryMs()).append("ms, max ")
+                    .append(mMaxRecoveryMs).append("ms), ").append(mGiveUps).append(" gave up")
+                    .toString();
+        }
+    }
+
+    /**
+     * Classify a disconnect
+     *
+     * @param status
+     *            status of the disconnect callback
+     * @param userRequested
+     *            true if the application requested the disconnect
+     * @param timedOut
+     *            true if the disconnect follows a connect timeout
+     */
+    public static int classify(int status, boolean userRequested, boolean timedOut) {
+        if (userRequested) {
+            return CAUSE_USER;
+        }
+        if (timedOut) {
+            return CAUSE_TIMEOUT;
+        }
+        switch (status) {
+        case STATUS_CONN_TIMEOUT:
+            return CAUSE_LINK_LOSS;
+        case STATUS_CONN_TERMINATE_PEER_USER:
+            return CAUSE_REMOTE;
+        }
+        return CAUSE_CONNECT_FAILED;
+    }
+
+    public static String getCauseName(int cause) {
+        return cause >= 0 && cause < CAUSE_COUNT ? CAUSE_NAMES[cause] : "unknown";
+    }
+
+    private final Random mRandom;
+    private final int[] mBaseDelayMs = DEFAULT_BASE_DELAY_MS.clone();
+    private final Stats mStats = new Stats();
+    private int mMaxAttempts;
+    private int mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private long mOutageStartMs = -1;
+    private int mAttempt;
+
+    /**
+     * @param maxAttempts
+     *            reconnect attempts per outage, or a negative value for no
+     *            limit
+     */
+    public ReconnectScheduler(int maxAttempts) {
+        this(maxAttempts, new Random());
+    }
+
+    public ReconnectScheduler(int maxAttempts, Random random) {
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    public synchronized void setMaxDelayMs(int maxDelayMs) {
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Set the delay before the first attempt after a disconnect of a cause
+     */
+    public synchronized void setBaseDelayMs(int cause, int delayMs) {
+        mBaseDelayMs[cause] = delayMs;
+    }
+
+    /**
+     * Record a disconnect, or a failed attempt, and get the delay before the
+     * next attempt
+     *
+     * @param cause
+     *            one of the CAUSE_ constants
+     * @param nowMs
+     * @return the delay (in msec), or -1 to stop reconnecting
+     */
+    public synchronized long onDisconnected(int cause, long nowMs) {
+        mStats.mDisconnects[cause]++;
+        if (cause == CAUSE_USER) {
+            mOutageStartMs = -1;
+            return -1;
+        }
+        if (mOutageStartMs < 0) {
+            mOutageStartMs = nowMs;
+            mAttempt = 0;
+        }
+        if (mMaxAttempts >= 0 && mAttempt >= mMaxAttempts) {
+            mStats.mGiveUps++;
+            mOutageStartMs = -1;
+            return -1;
+        }
+        long delayMs = (long) mBaseDelayMs[cause] << Math.min(mAttempt, 16);
+        if (delayMs > mMaxDelayMs) {
+            delayMs = mMaxDelayMs;
+        }
+        // Equal jitter: half fixed, half random
+        delayMs = delayMs / 2 + (long) (mRandom.nextDouble() * (delayMs / 2 + 1));
+        mAttempt++;
+        mStats.mAttempts++;
+        return delayMs;
+    }
+
+    /**
+     * Record that the connection is usable again, ending the outage
+     */
+    public synchronized void onConnected(long nowMs) {
+        if (mOutageStartMs < 0) {
+            return;
+        }
+        long recoveryMs = nowMs - mOutageStartMs;
+        mStats.mRecoveries++;
+        mStats.mTotalRecoveryMs += recoveryMs;
+        mStats.mLastRecoveryMs = recoveryMs;
+        if (recoveryMs > mStats.mMaxRecoveryMs) {
+            mStats.mMaxRecoveryMs = recoveryMs;
+        }
+        mOutageStartMs = -1;
+    }
+
+    /**
+     * End the current outage without recording a recovery, e.g. on a new
+     * connection requested by the application
+     */
+    public synchronized void reset() {
+        mOutageStartMs = -1;
+        mAttempt = 0;
+    }
+
+    public synchronized boolean isReconnecting() {
+        return mOutageStartMs >= 0;
+    }
+
+    /**
+     * Number of attempts made in the current outage
+     */
+    public synchronized int getAttempt() {
+        return mAttempt;
+    }
+
+    public synchronized Stats getStats(Stats out) {
+        out.copyFrom(mStats);
+        return out;
+    }
+}
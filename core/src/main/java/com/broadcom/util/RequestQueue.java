@@ -0,0 +1,79 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+/**
+ * Queue of requests that are executed one at a time, such as GATT operations.
+ * At most one request is pending (started but not completed); the others
+ * wait in the queue
+ *
+ * @param <T>
+ *            the request type
+ */
+public interface RequestQueue<T> {
+
+    public interface Filter<T> {
+        public boolean matches(T request);
+    }
+
+    /**
+     * Queue a request. If no request is pending, the first queued request
+     * becomes pending and is returned, and the caller must start it
+     *
+     * @param request
+     * @param atFront
+     *            true to queue the request before all other queued requests
+     * @return the request to start, or null if a request is already pending
+     */
+    public T add(T request, boolean atFront);
+
+    /**
+     * Complete the pending request and make the next queued request pending
+     *
+     * @return the request to start, or null if the queue is empty
+     */
+    public T next();
+
+    /**
+     * @return the pending request, or null
+     */
+    public T getPending();
+
+    /**
+     * Remove the queued requests that match the filter. The pending request
+     * is not affected
+     *
+     * @return the number of requests removed
+     */
+    public int remove(Filter<? super T> filter);
+
+    /**
+     * @return the number of queued requests, not counting the pending one
+     */
+    public int size();
+
+    /**
+     * Remove all queued requests. The pending request is not affected
+     */
+    public void clear();
+
+    /**
+     * Remove all queued requests and forget the pending request
+     */
+    public void reset();
+}
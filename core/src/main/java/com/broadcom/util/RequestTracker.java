@@ -0,0 +1,118 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+/**
+ * Matches completion callbacks to the started request of a
+ * {@link RequestQueue}. Callbacks only identify a request by its type and
+ * attribute, so after a request times out and the next one is started, the
+ * late callback of the timed out request could be taken for the callback of
+ * the next one. Callbacks arrive in the order the requests were started, so
+ * the first callback that matches the timed out request is dropped as late.
+ * Callbacks that match neither request are dropped as stray
+ *
+ * @param <T>
+ *            the request type
+ */
+public class RequestTracker<T> {
+
+    public interface Matcher<T> {
+        /**
+         * @return true if a callback of the given type and attribute is the
+         *         completion of the request
+         */
+        public boolean matches(T request, int type, Object attribute);
+    }
+
+    private final Matcher<? super T> mMatcher;
+    private T mStarted;
+    private T mTimedOut;
+    private long mLateCallbacks;
+    private long mStrayCallbacks;
+
+    public RequestTracker(Matcher<? super T> matcher) {
+        mMatcher = matcher;
+    }
+
+    /**
+     * Record that a request was started and waits for its callback
+     */
+    public synchronized void onStarted(T request) {
+        mStarted = request;
+    }
+
+    /**
+     * Match a completion callback
+     *
+     * @return the started request, which the caller completes before
+     *         starting the next one, or null if the callback is late or stray
+     */
+    public synchronized T onCallback(int type, Object attribute) {
+        T timedOut = mTimedOut;
+        mTimedOut = null;
+        if (timedOut != null && mMatcher.matches(timedOut, type, attribute)) {
+            mLateCallbacks++;
+            return null;
+        }
+        T r = mStarted;
+        if (r == null || !mMatcher.matches(r, type, attribute)) {
+            mStrayCallbacks++;
+            return null;
+        }
+        mStarted = null;
+        return r;
+    }
+
+    /**
+     * Record that the timer of a request expired
+     *
+     * @return true if the request timed out, and the caller completes it
+     *         before starting the next one. False if its callback already
+     *         arrived
+     */
+    public synchronized boolean onTimeout(T request) {
+        if (request == null || mStarted != request) {
+            return false;
+        }
+        mStarted = null;
+        mTimedOut = request;
+        return true;
+    }
+
+    /**
+     * Forget the started and timed out requests, e.g. on disconnect
+     */
+    public synchronized void reset() {
+        mStarted = null;
+        mTimedOut = null;
+    }
+
+    /**
+     * Number of callbacks dropped because their request had timed out
+     */
+    public synchronized long getLateCallbackCount() {
+        return mLateCallbacks;
+    }
+
+    /**
+     * Number of callbacks dropped because they matched no started request
+     */
+    public synchronized long getStrayCallbackCount() {
+        return mStrayCallbacks;
+    }
+}
@@ -0,0 +1,111 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+/**
+ * Smoothed round-trip time and variance of a request type, and the timeout
+ * derived from them, as TCP computes its retransmission timeout (RFC 6298):
+ * timeout = SRTT + 4 * RTTVAR, kept between a floor and a ceiling. Each
+ * timeout doubles the next one until a new round trip is measured. Until the
+ * first measurement the timeout is the ceiling. Not thread safe
+ *
+ */
+public class RttEstimator {
+    private long mMinTimeoutNs;
+    private long mMaxTimeoutNs;
+    private long mSrttNs;
+    private long mRttVarNs;
+    private int mSamples;
+    private int mBackoff = 1;
+
+    /**
+     * @param minTimeoutMs
+     *            floor of the timeout
+     * @param maxTimeoutMs
+     *            ceiling of the timeout
+     */
+    public RttEstimator(int minTimeoutMs, int maxTimeoutMs) {
+        setBounds(minTimeoutMs, maxTimeoutMs);
+    }
+
+    public void setBounds(int minTimeoutMs, int maxTimeoutMs) {
+        mMinTimeoutNs = minTimeoutMs * 1000000L;
+        mMaxTimeoutNs = Math.max(minTimeoutMs, maxTimeoutMs) * 1000000L;
+    }
+
+    /**
+     * Add a measured round trip
+     */
+    public void addSample(long rttNs) {
+        if (mSamples == 0) {
+            mSrttNs = rttNs;
+            mRttVarNs = rttNs / 2;
+        } else {
+            long err = rttNs - mSrttNs;
+            mSrttNs += err / 8;
+            mRttVarNs += (Math.abs(err) - mRttVarNs) / 4;
+        }
+        mSamples++;
+        mBackoff = 1;
+    }
+
+    /**
+     * Record a request that timed out
+     */
+    public void onTimeout() {
+        if (mBackoff < 64) {
+            mBackoff *= 2;
+        }
+    }
+
+    public long getTimeoutNs() {
+        if (mSamples == 0) {
+            return mMaxTimeoutNs;
+        }
+        long timeoutNs = (mSrttNs + 4 * mRttVarNs) * mBackoff;
+        if (timeoutNs < mMinTimeoutNs) {
+            return mMinTimeoutNs;
+        }
+        return Math.min(timeoutNs, mMaxTimeoutNs);
+    }
+
+    public long getSmoothedRttNs() {
+        return mSrttNs;
+    }
+
+    public long getRttVarianceNs() {
+        return mRttVarNs;
+    }
+
+    public int getSampleCount() {
+        return mSamples;
+    }
+
+    public void reset() {
+        mSrttNs = 0;
+        mRttVarNs = 0;
+        mSamples = 0;
+        mBackoff = 1;
+    }
+
+    @Override
+    public String toString() {
+        return "srtt " + (mSrttNs / 1000) + "us, rttvar " + (mRttVarNs / 1000)
+                + "us, timeout " + (getTimeoutNs() / 1000000) + "ms (" + mSamples + " samples)";
+    }
+}
@@ -0,0 +1,150 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Checks the hold time and hysteresis of threshold alerts, and the window of
+ * change alerts
+ *
+ */
+public class AlertEngineTest {
+    private static final int RULE_HOT = 1;
+    private static final int RULE_DRY = 2;
+    private static final int RULE_PRESSURE_DROP = 3;
+
+    private final ArrayList<Integer> mRuleIds = new ArrayList<Integer>();
+    private final ArrayList<Boolean> mStates = new ArrayList<Boolean>();
+    private final ArrayList<Long> mTimes = new ArrayList<Long>();
+    private final SensorSample mSample = new SensorSample();
+
+    private final AlertEngine mEngine = new AlertEngine(new AlertRule[] {
+            AlertRule.above(RULE_HOT, AlertRule.VALUE_TEMPERATURE_C, 30, 2, 1000),
+            AlertRule.below(RULE_DRY, AlertRule.VALUE_HUMIDITY, 20, 5, 0),
+            AlertRule.change(RULE_PRESSURE_DROP, AlertRule.VALUE_PRESSURE, 5, 1, 1600) },
+            new AlertEngine.Listener() {
+                @Override
+                public void onAlert(int ruleId, boolean active, float value, long timeMs) {
+                    mRuleIds.add(ruleId);
+                    mStates.add(active);
+                    mTimes.add(timeMs);
+                }
+            });
+
+    private void sample(long timeMs, int flag, float value) {
+        mSample.clear();
+        mSample.mTimestampMs = timeMs;
+        mSample.mPacketLength = SensorDataParser.SENSOR_ENV_PACKET_LENGTH;
+        mSample.mMask = flag;
+        mSample.mHumidity = value;
+        mSample.mPressure = value;
+        mSample.mTemperatureC = value;
+        mEngine.onSensorSample(mSample);
+    }
+
+    private void temperature(long timeMs, float value) {
+        sample(timeMs, SensorDataParser.SENSOR_FLAG_TEMP, value);
+    }
+
+    private void assertAlert(int index, int ruleId, boolean active, long timeMs) {
+        assertEquals(ruleId, (int) mRuleIds.get(index));
+        assertEquals(active, mStates.get(index));
+        assertEquals(timeMs, (long) mTimes.get(index));
+    }
+
+    @Test
+    public void aboveAlertWaitsForHoldTime() {
+        temperature(0, 31);
+        temperature(500, 31);
+        assertTrue(mRuleIds.isEmpty());
+        temperature(1000, 31);
+        assertEquals(1, mRuleIds.size());
+        assertAlert(0, RULE_HOT, true, 1000);
+    }
+
+    @Test
+    public void shortExcursionDoesNotAlert() {
+        temperature(0, 31);
+        temperature(600, 29);
+        // The hold time starts over
+        temperature(700, 31);
+        temperature(1600, 31);
+        assertTrue(mRuleIds.isEmpty());
+        temperature(1700, 31);
+        assertAlert(0, RULE_HOT, true, 1700);
+    }
+
+    @Test
+    public void hysteresisKeepsAlertActive() {
+        temperature(0, 31);
+        temperature(1000, 31);
+        // Below the threshold, but within the hysteresis
+        temperature(1100, 28.5f);
+        temperature(1200, 29.9f);
+        assertEquals(1, mRuleIds.size());
+        temperature(1300, 27.9f);
+        assertEquals(2, mRuleIds.size());
+        assertAlert(1, RULE_HOT, false, 1300);
+    }
+
+    @Test
+    public void belowAlertClearsAboveHysteresis() {
+        sample(0, SensorDataParser.SENSOR_FLAG_HUMIDITY, 19);
+        assertAlert(0, RULE_DRY, true, 0);
+        sample(100, SensorDataParser.SENSOR_FLAG_HUMIDITY, 24);
+        assertEquals(1, mRuleIds.size());
+        sample(200, SensorDataParser.SENSOR_FLAG_HUMIDITY, 25.5f);
+        assertAlert(1, RULE_DRY, false, 200);
+    }
+
+    @Test
+    public void changeAlertCoversItsWindow() {
+        sample(0, SensorDataParser.SENSOR_FLAG_PRESSURE, 1000);
+        sample(800, SensorDataParser.SENSOR_FLAG_PRESSURE, 997);
+        assertTrue(mRuleIds.isEmpty());
+        sample(1500, SensorDataParser.SENSOR_FLAG_PRESSURE, 994);
+        assertAlert(0, RULE_PRESSURE_DROP, true, 1500);
+        // The 1000 sample has left the 1600ms window. A change of 5 (997 to
+        // 992) is not above the threshold, but is within the hysteresis
+        sample(2000, SensorDataParser.SENSOR_FLAG_PRESSURE, 992);
+        assertEquals(1, mRuleIds.size());
+        // The 997 sample has left the window: a change of 2
+        sample(2500, SensorDataParser.SENSOR_FLAG_PRESSURE, 992);
+        assertAlert(1, RULE_PRESSURE_DROP, false, 2500);
+    }
+
+    @Test
+    public void onlyEnvValuesInMaskAreEvaluated() {
+        // A motion packet, whose mask bits mean something else
+        mSample.clear();
+        mSample.mPacketLength = SensorDataParser.SENSOR_MOTION_PACKET_LENGTH;
+        mSample.mMask = SensorDataParser.SENSOR_FLAG_HUMIDITY;
+        mEngine.onSensorSample(mSample);
+        // Humidity is 0, but not in the mask
+        sample(0, SensorDataParser.SENSOR_FLAG_TEMP, 0);
+        assertTrue(mRuleIds.isEmpty());
+        sample(100, SensorDataParser.SENSOR_FLAG_HUMIDITY, 0);
+        assertAlert(0, RULE_DRY, true, 100);
+    }
+}
@@ -0,0 +1,107 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Checks the rolling statistics, and that a query made while the ingest
+ * thread is adding samples sees a consistent set of buckets
+ *
+ */
+public class RollingAggregatorTest {
+    private static final int ENV_FLAGS = SensorDataParser.SENSOR_FLAG_HUMIDITY
+            | SensorDataParser.SENSOR_FLAG_PRESSURE | SensorDataParser.SENSOR_FLAG_TEMP;
+    private static final long CONCURRENT_RUN_MS = 500;
+
+    private final RollingAggregator mAggregator = new RollingAggregator();
+    private final SensorSample mSample = new SensorSample();
+    private final RollingStats mStats = new RollingStats();
+
+    private void add(long timeMs, float value) {
+        mSample.mTimestampMs = timeMs;
+        mSample.mPacketLength = SensorDataParser.SENSOR_ENV_PACKET_LENGTH;
+        mSample.mMask = ENV_FLAGS;
+        mSample.mHumidity = value;
+        mSample.mPressure = value;
+        mSample.mTemperatureC = value;
+        mAggregator.onSensorSample(mSample);
+    }
+
+    @Test
+    public void windowsCoverTheirOwnSpan() {
+        add(0, 10);
+        add(500, 20);
+        add(1500, 30);
+
+        mAggregator.getStats(RollingAggregator.VALUE_HUMIDITY, RollingAggregator.WINDOW_1S,
+                1500, mStats);
+        assertEquals(1, mStats.mCount);
+        assertEquals(30, mStats.mMean, 0);
+
+        mAggregator.getStats(RollingAggregator.VALUE_PRESSURE, RollingAggregator.WINDOW_1MIN,
+                1500, mStats);
+        assertEquals(3, mStats.mCount);
+        assertEquals(10, mStats.mMin, 0);
+        assertEquals(30, mStats.mMax, 0);
+        assertEquals(20, mStats.mMean, 1e-5);
+        assertEquals(Math.sqrt(200.0 / 3), mStats.mStdDev, 1e-3);
+
+        mAggregator.getStats(RollingAggregator.VALUE_TEMPERATURE_C, RollingAggregator.WINDOW_1H,
+                3600 * 1000, mStats);
+        assertEquals(0, mStats.mCount);
+    }
+
+    @Test
+    public void concurrentQueriesSeeConsistentBuckets() throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                // A constant value: a query that mixes the count of one update
+                // with the sums of another sees a mean or deviation that is off
+                long endMs = System.currentTimeMillis() + CONCURRENT_RUN_MS;
+                for (long i = 0; System.currentTimeMillis() < endMs; i++) {
+                    add(i * 10, 10);
+                }
+                done.set(true);
+            }
+        };
+        writer.start();
+        int queries = 0;
+        while (!done.get()) {
+            long nowMs = mAggregator.getLastSampleTimeMs();
+            mAggregator.getStats(RollingAggregator.VALUE_HUMIDITY, RollingAggregator.WINDOW_1S,
+                    nowMs, mStats);
+            if (mStats.mCount > 0) {
+                assertEquals(10, mStats.mMean, 0);
+                assertEquals(10, mStats.mMin, 0);
+                assertEquals(10, mStats.mMax, 0);
+                assertEquals(0, mStats.mStdDev, 0);
+                queries++;
+            }
+        }
+        writer.join();
+        assertTrue(queries > 0);
+    }
+}
@@ -0,0 +1,134 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a segment file keeps its samples across reopening, and rolls
+ * over (rejects appends) when it is full or a relative time would overflow
+ *
+ */
+public class SampleSegmentTest {
+    private static final int CAPACITY = 4;
+    private static final int SIZE = SampleSegment.HEADER_SIZE + CAPACITY
+            * SampleSegment.RECORD_SIZE;
+    private static final long BASE_TIME_MS = 1000000;
+
+    private File mFile;
+    private final SensorSample mSample = new SensorSample();
+    private final SensorSample mOut = new SensorSample();
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("segment", ".seg");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private SensorSample env(long timeMs, float value) {
+        mSample.clear();
+        mSample.mTimestampMs = timeMs;
+        mSample.mPacketLength = SensorDataParser.SENSOR_ENV_PACKET_LENGTH;
+        mSample.mMask = SensorDataParser.SENSOR_FLAG_HUMIDITY
+                | SensorDataParser.SENSOR_FLAG_TEMP;
+        mSample.mHumidity = value;
+        mSample.mTemperatureC = -value;
+        return mSample;
+    }
+
+    @Test
+    public void samplesSurviveReopen() throws IOException {
+        SampleSegment segment = SampleSegment.create(mFile, SIZE, BASE_TIME_MS);
+        assertTrue(segment.append(env(BASE_TIME_MS + 10, 45.3f)));
+        mSample.clear();
+        mSample.mTimestampMs = BASE_TIME_MS + 20;
+        mSample.mPacketLength = SensorDataParser.SENSOR_MOTION_PACKET_LENGTH;
+        mSample.mMask = SensorDataParser.SENSOR_FLAG_GYRO;
+        mSample.mGyroX = -300;
+        mSample.mMagnoZ = 32767;
+        assertTrue(segment.append(mSample));
+        segment.force();
+
+        SampleSegment reopened = SampleSegment.open(mFile, false);
+        assertEquals(2, reopened.getCount());
+        assertEquals(BASE_TIME_MS, reopened.getBaseTimeMs());
+        assertEquals(BASE_TIME_MS + 20, reopened.getLastTimeMs());
+
+        reopened.read(0, mOut);
+        assertEquals(BASE_TIME_MS + 10, mOut.mTimestampMs);
+        assertEquals(SensorDataParser.SENSOR_ENV_PACKET_LENGTH, mOut.mPacketLength);
+        assertEquals(45.3f, mOut.mHumidity, 1e-4);
+        assertEquals(-45.3f, mOut.mTemperatureC, 1e-4);
+
+        reopened.read(1, mOut);
+        assertEquals(SensorDataParser.SENSOR_FLAG_GYRO, mOut.mMask);
+        assertEquals(-300, mOut.mGyroX);
+        assertEquals(32767, mOut.mMagnoZ);
+    }
+
+    @Test
+    public void fullSegmentRejectsAppend() throws IOException {
+        SampleSegment segment = SampleSegment.create(mFile, SIZE, BASE_TIME_MS);
+        for (int i = 0; i < CAPACITY; i++) {
+            assertFalse(segment.isFull());
+            assertTrue(segment.append(env(BASE_TIME_MS + i, i)));
+        }
+        assertTrue(segment.isFull());
+        assertFalse(segment.append(env(BASE_TIME_MS + CAPACITY, 0)));
+        assertEquals(CAPACITY, segment.getCount());
+    }
+
+    @Test
+    public void relativeTimeOverflowRejectsAppend() throws IOException {
+        SampleSegment segment = SampleSegment.create(mFile, SIZE, BASE_TIME_MS);
+        long last = BASE_TIME_MS + Integer.MAX_VALUE;
+        assertTrue(segment.append(env(last, 1)));
+        assertFalse(segment.append(env(last + 1, 2)));
+        assertEquals(1, segment.getCount());
+        segment.read(0, mOut);
+        assertEquals(last, mOut.mTimestampMs);
+    }
+
+    @Test
+    public void timesStayMonotonic() throws IOException {
+        SampleSegment segment = SampleSegment.create(mFile, SIZE, BASE_TIME_MS);
+        segment.append(env(BASE_TIME_MS + 100, 1));
+        // A clock step back is stored at the last time
+        segment.append(env(BASE_TIME_MS + 50, 2));
+        segment.append(env(BASE_TIME_MS + 200, 3));
+        assertEquals(BASE_TIME_MS + 100, segment.getTimeMs(1));
+
+        assertEquals(0, segment.findFirst(BASE_TIME_MS));
+        assertEquals(0, segment.findFirst(BASE_TIME_MS + 100));
+        assertEquals(2, segment.findFirst(BASE_TIME_MS + 101));
+        assertEquals(3, segment.findFirst(BASE_TIME_MS + 201));
+    }
+}
@@ -0,0 +1,133 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the decoding of motion (19 byte) and environmental (7 byte) packets,
+ * one at a time and in batches
+ *
+ */
+public class SensorDataParserTest {
+    // Humidity 45.3%, pressure 992.4mBar, temperature 23.0C
+    private static final byte[] ENV_PACKET = { 0x34, (byte) 0xc5, 0x01, (byte) 0xc4, 0x26,
+            (byte) 0xe6, 0x00 };
+
+    private final SensorSample mSample = new SensorSample();
+
+    /**
+     * A packet with the given mask and the int16 values that follow it
+     */
+    private static byte[] packet(int length, int mask, int... values) {
+        byte[] p = new byte[length];
+        p[0] = (byte) mask;
+        for (int i = 0; i < values.length; i++) {
+            p[1 + 2 * i] = (byte) values[i];
+            p[2 + 2 * i] = (byte) (values[i] >> 8);
+        }
+        return p;
+    }
+
+    @Test
+    public void decodesMotionPacket() {
+        int mask = SensorDataParser.SENSOR_FLAG_ACCEL | SensorDataParser.SENSOR_FLAG_GYRO
+                | SensorDataParser.SENSOR_FLAG_MAGNO;
+        byte[] p = packet(SensorDataParser.SENSOR_MOTION_PACKET_LENGTH, mask, 1, -2, 300,
+                -32768, 32767, 0, 1000, -1000, 7);
+        assertTrue(SensorDataParser.decode(p, mSample));
+        assertEquals(SensorDataParser.SENSOR_MOTION_PACKET_LENGTH, mSample.mPacketLength);
+        assertEquals(mask, mSample.mMask);
+        assertEquals(1, mSample.mAccelX);
+        assertEquals(-2, mSample.mAccelY);
+        assertEquals(300, mSample.mAccelZ);
+        assertEquals(-32768, mSample.mGyroX);
+        assertEquals(32767, mSample.mGyroY);
+        assertEquals(0, mSample.mGyroZ);
+        assertEquals(1000, mSample.mMagnoX);
+        assertEquals(-1000, mSample.mMagnoY);
+        assertEquals(7, mSample.mMagnoZ);
+    }
+
+    @Test
+    public void decodesOnlyMaskedMotionValues() {
+        // Only the gyro changed: its values follow the mask byte
+        byte[] p = packet(SensorDataParser.SENSOR_MOTION_PACKET_LENGTH,
+                SensorDataParser.SENSOR_FLAG_GYRO, 10, 20, 30);
+        assertTrue(SensorDataParser.decode(p, mSample));
+        assertEquals(0, mSample.mAccelX);
+        assertEquals(10, mSample.mGyroX);
+        assertEquals(20, mSample.mGyroY);
+        assertEquals(30, mSample.mGyroZ);
+        assertEquals(0, mSample.mMagnoX);
+    }
+
+    @Test
+    public void decodesEnvPacket() {
+        assertTrue(SensorDataParser.decode(ENV_PACKET, mSample));
+        assertEquals(SensorDataParser.SENSOR_ENV_PACKET_LENGTH, mSample.mPacketLength);
+        assertEquals(45.3f, mSample.mHumidity, 1e-4);
+        assertEquals(992.4f, mSample.mPressure, 1e-3);
+        assertEquals(23.0f, mSample.mTemperatureC, 1e-4);
+    }
+
+    @Test
+    public void rejectsUnknownPacket() {
+        assertFalse(SensorDataParser.decode(new byte[5], mSample));
+        assertFalse(SensorDataParser.decode(null, mSample));
+    }
+
+    @Test
+    public void batchDecodeMatchesDecode() {
+        int mask = SensorDataParser.SENSOR_FLAG_ACCEL | SensorDataParser.SENSOR_FLAG_MAGNO;
+        byte[][] packets = { new byte[1], ENV_PACKET,
+                packet(SensorDataParser.SENSOR_MOTION_PACKET_LENGTH, mask, -5, 6, -7, 8, 9, 10),
+                new byte[5], null, ENV_PACKET };
+        SensorBatch batch = new SensorBatch(3);
+        // Stale values of an earlier batch must be cleared
+        batch.mTemperatureC[2] = 99;
+
+        assertEquals(3, SensorDataParser.decodeBatch(packets, 1, 5, batch));
+        assertEquals(3, batch.mCount);
+
+        SensorDataParser.decode(ENV_PACKET, mSample);
+        assertEquals(ENV_PACKET[0], batch.mMask[0]);
+        assertEquals(mSample.mHumidity, batch.mHumidity[0], 0);
+        assertEquals(mSample.mPressure, batch.mPressure[0], 0);
+        assertEquals(mSample.mTemperatureC, batch.mTemperatureC[0], 0);
+
+        SensorDataParser.decode(packets[2], mSample);
+        int m = SensorBatch.MOTION_STRIDE;
+        assertEquals(mask, batch.mMask[1]);
+        assertEquals(mSample.mAccelX, batch.mMotion[m + SensorBatch.ACCEL]);
+        assertEquals(mSample.mAccelY, batch.mMotion[m + SensorBatch.ACCEL + 1]);
+        assertEquals(mSample.mAccelZ, batch.mMotion[m + SensorBatch.ACCEL + 2]);
+        assertEquals(0, batch.mMotion[m + SensorBatch.GYRO]);
+        assertEquals(mSample.mMagnoX, batch.mMotion[m + SensorBatch.MAGNO]);
+        assertEquals(mSample.mMagnoY, batch.mMotion[m + SensorBatch.MAGNO + 1]);
+        assertEquals(mSample.mMagnoZ, batch.mMotion[m + SensorBatch.MAGNO + 2]);
+
+        // Unknown length
+        assertEquals(0, batch.mMask[2]);
+        assertEquals(0, batch.mTemperatureC[2], 0);
+    }
+}
@@ -0,0 +1,85 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+/**
+ * Checks that the steady-state sensor path (decode into the ring, publish and
+ * read back) does not allocate
+ *
+ */
+public class SensorPathAllocationTest {
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int ITERATIONS = 100000;
+
+    private final byte[] mEnvPacket = { 0x34, (byte) 0xc5, 0x01, (byte) 0xc4, 0x26, (byte) 0xe6,
+            0x00 };
+    private final byte[] mMotionPacket = new byte[SensorDataParser.SENSOR_MOTION_PACKET_LENGTH];
+    private final SensorSampleRing mRing = new SensorSampleRing(64);
+    private final SensorSampleRing.Reader mReader = mRing.newReader();
+    private final SensorSample mOut = new SensorSample();
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        if (!threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        mMotionPacket[0] = 0x0b;
+        for (int i = 1; i < mMotionPacket.length; i++) {
+            mMotionPacket[i] = (byte) (i * 37);
+        }
+        long id = Thread.currentThread().getId();
+        run(WARMUP_ITERATIONS);
+
+        // The measurement itself may allocate, so subtract its cost
+        long before = threads.getThreadAllocatedBytes(id);
+        long overhead = threads.getThreadAllocatedBytes(id) - before;
+
+        before = threads.getThreadAllocatedBytes(id);
+        int read = run(ITERATIONS);
+        long allocated = threads.getThreadAllocatedBytes(id) - before - overhead;
+
+        assertEquals(ITERATIONS, read);
+        assertEquals("bytes allocated by " + ITERATIONS + " samples", 0, allocated);
+    }
+
+    private int run(int iterations) {
+        int read = 0;
+        for (int i = 0; i < iterations; i++) {
+            SensorSample sample = mRing.claim();
+            SensorDataParser.decode((i & 3) == 0 ? mEnvPacket : mMotionPacket, sample);
+            sample.mTimestampMs = i;
+            mRing.publish();
+            while (mReader.read(mOut)) {
+                read++;
+            }
+        }
+        return read;
+    }
+}
@@ -0,0 +1,137 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.app.wicedsense;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that readers of the sample ring see every sample in order, skip the
+ * samples overwritten by the producer, and never return a sample that was
+ * overwritten while it was copied
+ *
+ */
+public class SensorSampleRingTest {
+    private static final long CONCURRENT_RUN_MS = 500;
+
+    private final SensorSample mOut = new SensorSample();
+
+    private static void publish(SensorSampleRing ring, long i) {
+        SensorSample s = ring.claim();
+        s.mTimestampMs = i;
+        s.mPacketLength = SensorDataParser.SENSOR_MOTION_PACKET_LENGTH;
+        s.mAccelX = (int) i;
+        s.mMagnoZ = (int) -i;
+        s.mQuatZ = i;
+        ring.publish();
+    }
+
+    @Test
+    public void readsSamplesInOrder() {
+        SensorSampleRing ring = new SensorSampleRing(6);
+        assertEquals(8, ring.getCapacity());
+        SensorSampleRing.Reader reader = ring.newReader();
+        assertFalse(reader.read(mOut));
+
+        for (int i = 0; i < 20; i++) {
+            publish(ring, i);
+            assertTrue(reader.read(mOut));
+            assertEquals(i, mOut.mTimestampMs);
+            assertEquals(i, mOut.mAccelX);
+            assertEquals(-i, mOut.mMagnoZ);
+            assertEquals(i, mOut.mQuatZ, 0);
+            assertFalse(reader.read(mOut));
+        }
+        assertEquals(0, reader.getDroppedCount());
+        assertEquals(20, ring.getWriteSequence());
+    }
+
+    @Test
+    public void lappedReaderSkipsToOldestSample() {
+        SensorSampleRing ring = new SensorSampleRing(8);
+        SensorSampleRing.Reader reader = ring.newReader();
+        for (int i = 0; i < 20; i++) {
+            publish(ring, i);
+        }
+        // The slot of the next sample may be being written, so one less than
+        // the capacity is readable
+        for (int i = 13; i < 20; i++) {
+            assertTrue(reader.read(mOut));
+            assertEquals(i, mOut.mTimestampMs);
+        }
+        assertFalse(reader.read(mOut));
+        assertEquals(13, reader.getDroppedCount());
+
+        publish(ring, 20);
+        assertTrue(reader.read(mOut));
+        assertEquals(20, mOut.mTimestampMs);
+        assertEquals(13, reader.getDroppedCount());
+    }
+
+    @Test
+    public void newReaderStartsAtNextSample() {
+        SensorSampleRing ring = new SensorSampleRing(8);
+        publish(ring, 0);
+        SensorSampleRing.Reader reader = ring.newReader();
+        assertFalse(reader.read(mOut));
+        publish(ring, 1);
+        publish(ring, 2);
+        reader.skipToEnd();
+        assertFalse(reader.read(mOut));
+        assertEquals(0, reader.getDroppedCount());
+    }
+
+    @Test
+    public void concurrentReaderNeverSeesTornSample() throws InterruptedException {
+        // A small ring, so that the producer often laps the reader while it
+        // copies a slot
+        final SensorSampleRing ring = new SensorSampleRing(2);
+        SensorSampleRing.Reader reader = ring.newReader();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                long endMs = System.currentTimeMillis() + CONCURRENT_RUN_MS;
+                for (long i = 0; System.currentTimeMillis() < endMs; i++) {
+                    publish(ring, i);
+                }
+            }
+        };
+        producer.start();
+        long last = -1;
+        long read = 0;
+        while (producer.isAlive()) {
+            while (reader.read(mOut)) {
+                long i = mOut.mTimestampMs;
+                assertTrue(i > last);
+                assertEquals((int) i, mOut.mAccelX);
+                assertEquals((int) -i, mOut.mMagnoZ);
+                assertEquals(i, mOut.mQuatZ, 0);
+                last = i;
+                read++;
+            }
+        }
+        producer.join();
+        while (reader.read(mOut)) {
+            read++;
+        }
+        assertEquals(ring.getWriteSequence(), read + reader.getDroppedCount());
+    }
+}
@@ -0,0 +1,79 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class OrientationFilterTest {
+    private static final float DT = 0.02f;
+
+    private static void assertIdentity(OrientationFilter f) {
+        assertFalse(Float.isNaN(f.getQuaternionW()));
+        assertEquals(1, f.getQuaternionW(), 1e-4);
+        assertEquals(0, f.getQuaternionX(), 1e-4);
+        assertEquals(0, f.getQuaternionY(), 1e-4);
+        assertEquals(0, f.getQuaternionZ(), 1e-4);
+    }
+
+    @Test
+    public void levelStationaryImuStaysLevel() {
+        OrientationFilter f = new OrientationFilter();
+        for (int i = 0; i < 100; i++) {
+            f.updateImu(0, 0, 0, 0, 0, 1000, DT);
+        }
+        assertIdentity(f);
+        assertEquals(0, f.getPitch(), 1e-3);
+        assertEquals(0, f.getRoll(), 1e-3);
+    }
+
+    @Test
+    public void levelStationaryWithHorizontalFieldStaysLevel() {
+        OrientationFilter f = new OrientationFilter();
+        for (int i = 0; i < 100; i++) {
+            f.update(0, 0, 0, 0, 0, 1000, 300, 0, 0, DT);
+        }
+        assertIdentity(f);
+        assertEquals(0, f.getHeading(), 1e-3);
+    }
+
+    @Test
+    public void tiltedBoardConvergesToPitch() {
+        OrientationFilter f = new OrientationFilter(0.5f);
+        // Gravity along +x and +z: rotated 45 degrees about the y axis
+        for (int i = 0; i < 2000; i++) {
+            f.updateImu(0, 0, 0, 707, 0, 707, DT);
+        }
+        assertFalse(Float.isNaN(f.getPitch()));
+        assertEquals(45, Math.abs(f.getPitch()), 1);
+        assertEquals(0, f.getRoll(), 1);
+    }
+
+    @Test
+    public void gyroOnlyIntegratesRate() {
+        OrientationFilter f = new OrientationFilter();
+        // 90 degrees/s about z for 1 s
+        float rate = (float) Math.toRadians(90);
+        for (int i = 0; i < 50; i++) {
+            f.updateGyro(0, 0, rate, DT);
+        }
+        assertEquals(90, f.getHeading(), 1);
+    }
+}
@@ -0,0 +1,133 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Checks the order in which requests of different priority classes are
+ * started, and that aging keeps bulk and background requests from starving
+ *
+ */
+public class PriorityRequestQueueTest {
+    private static final int AGING_MS = 20;
+
+    private static class Request {
+        final int mPriority;
+
+        Request(int priority) {
+            mPriority = priority;
+        }
+    }
+
+    private static final PriorityRequestQueue.Classifier<Request> CLASSIFIER =
+            new PriorityRequestQueue.Classifier<Request>() {
+        @Override
+        public int getPriority(Request request) {
+            return request.mPriority;
+        }
+    };
+
+    private static void waitForAging(int periods) throws InterruptedException {
+        Thread.sleep(AGING_MS * periods + 5);
+    }
+
+    @Test
+    public void higherPriorityStartsFirst() {
+        PriorityRequestQueue<Request> queue = new PriorityRequestQueue<Request>(CLASSIFIER, 0);
+        Request first = new Request(PriorityRequestQueue.PRIORITY_BULK);
+        Request background = new Request(PriorityRequestQueue.PRIORITY_BACKGROUND);
+        Request bulk = new Request(PriorityRequestQueue.PRIORITY_BULK);
+        Request interactive = new Request(PriorityRequestQueue.PRIORITY_INTERACTIVE);
+        Request control = new Request(PriorityRequestQueue.PRIORITY_CONTROL);
+        Request unknown = new Request(42);
+
+        assertSame(first, queue.add(first, false));
+        assertNull(queue.add(unknown, false));
+        assertNull(queue.add(background, false));
+        assertNull(queue.add(bulk, false));
+        assertNull(queue.add(interactive, false));
+        assertNull(queue.add(control, false));
+        assertEquals(5, queue.size());
+
+        assertSame(control, queue.next());
+        assertSame(interactive, queue.next());
+        assertSame(bulk, queue.next());
+        // Out of range priorities are background, in queue order
+        assertSame(unknown, queue.next());
+        assertSame(background, queue.next());
+        assertNull(queue.next());
+        assertNull(queue.getPending());
+    }
+
+    @Test
+    public void agedBulkRequestOvertakesNewInteractive() throws InterruptedException {
+        PriorityRequestQueue<Request> queue = new PriorityRequestQueue<Request>(CLASSIFIER,
+                AGING_MS);
+        Request control = new Request(PriorityRequestQueue.PRIORITY_CONTROL);
+        Request bulk = new Request(PriorityRequestQueue.PRIORITY_BULK);
+        queue.add(control, false);
+        queue.add(bulk, false);
+        waitForAging(1);
+        Request interactive = new Request(PriorityRequestQueue.PRIORITY_INTERACTIVE);
+        queue.add(interactive, false);
+
+        // Promoted to the interactive class, where it has waited longest
+        assertSame(bulk, queue.next());
+        assertSame(interactive, queue.next());
+    }
+
+    @Test
+    public void agingStopsBelowControl() throws InterruptedException {
+        PriorityRequestQueue<Request> queue = new PriorityRequestQueue<Request>(CLASSIFIER,
+                AGING_MS);
+        Request first = new Request(PriorityRequestQueue.PRIORITY_CONTROL);
+        Request background = new Request(PriorityRequestQueue.PRIORITY_BACKGROUND);
+        queue.add(first, false);
+        queue.add(background, false);
+        waitForAging(4);
+        Request control = new Request(PriorityRequestQueue.PRIORITY_CONTROL);
+        queue.add(control, false);
+
+        assertSame(control, queue.next());
+        assertSame(background, queue.next());
+    }
+
+    @Test
+    public void waitStatsCountStartedRequests() throws InterruptedException {
+        PriorityRequestQueue<Request> queue = new PriorityRequestQueue<Request>(CLASSIFIER, 0);
+        Request first = new Request(PriorityRequestQueue.PRIORITY_BULK);
+        Request second = new Request(PriorityRequestQueue.PRIORITY_BULK);
+        queue.add(first, false);
+        queue.add(second, false);
+        waitForAging(1);
+        queue.next();
+
+        PriorityRequestQueue.WaitStats stats = queue.getWaitStats(
+                PriorityRequestQueue.PRIORITY_BULK, new PriorityRequestQueue.WaitStats());
+        assertEquals(2, stats.mCount);
+        assertEquals(true, stats.mMaxNs >= AGING_MS * 1000000L);
+        queue.resetWaitStats();
+        queue.getWaitStats(PriorityRequestQueue.PRIORITY_BULK, stats);
+        assertEquals(0, stats.mCount);
+    }
+}
@@ -0,0 +1,124 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the exponential backoff of reconnect attempts, its cap, and giving
+ * up after the maximum number of attempts
+ *
+ */
+public class ReconnectSchedulerTest {
+
+    /**
+     * Jitter that always picks the given fraction of the random half
+     */
+    private static class FixedRandom extends Random {
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+
+    private final ReconnectScheduler mScheduler = new ReconnectScheduler(5,
+            new FixedRandom(0));
+
+    @Test
+    public void delayDoublesUpToCap() {
+        mScheduler.setMaxDelayMs(2000);
+        // Link loss starts at 250ms; with no jitter the delay is half of it
+        long[] expected = { 125, 250, 500, 1000, 1000 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], mScheduler.onDisconnected(
+                    ReconnectScheduler.CAUSE_LINK_LOSS, i * 1000));
+            assertEquals(i + 1, mScheduler.getAttempt());
+        }
+        assertTrue(mScheduler.isReconnecting());
+    }
+
+    @Test
+    public void jitterStaysWithinUpperHalf() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(-1, new FixedRandom(1 - 1e-9));
+        scheduler.setBaseDelayMs(ReconnectScheduler.CAUSE_REMOTE, 1000);
+        assertEquals(1000, scheduler.onDisconnected(ReconnectScheduler.CAUSE_REMOTE, 0));
+        assertEquals(2000, scheduler.onDisconnected(ReconnectScheduler.CAUSE_REMOTE, 0));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mScheduler.onDisconnected(ReconnectScheduler.CAUSE_TIMEOUT, 0) >= 0);
+        }
+        assertEquals(-1, mScheduler.onDisconnected(ReconnectScheduler.CAUSE_TIMEOUT, 0));
+        assertFalse(mScheduler.isReconnecting());
+
+        ReconnectScheduler.Stats stats = mScheduler.getStats(new ReconnectScheduler.Stats());
+        assertEquals(5, stats.mAttempts);
+        assertEquals(1, stats.mGiveUps);
+        assertEquals(6, stats.mDisconnects[ReconnectScheduler.CAUSE_TIMEOUT]);
+
+        // The next outage starts over
+        assertEquals(1000, mScheduler.onDisconnected(ReconnectScheduler.CAUSE_TIMEOUT, 0));
+    }
+
+    @Test
+    public void userDisconnectDoesNotReconnect() {
+        assertEquals(-1, mScheduler.onDisconnected(ReconnectScheduler.CAUSE_USER, 0));
+        assertFalse(mScheduler.isReconnecting());
+    }
+
+    @Test
+    public void recoveryEndsOutage() {
+        mScheduler.onDisconnected(ReconnectScheduler.CAUSE_LINK_LOSS, 1000);
+        mScheduler.onDisconnected(ReconnectScheduler.CAUSE_CONNECT_FAILED, 1500);
+        mScheduler.onConnected(4000);
+        assertFalse(mScheduler.isReconnecting());
+
+        ReconnectScheduler.Stats stats = mScheduler.getStats(new ReconnectScheduler.Stats());
+        assertEquals(1, stats.mRecoveries);
+        assertEquals(3000, stats.mLastRecoveryMs);
+
+        // Backoff starts over with the next outage
+        assertEquals(125, mScheduler.onDisconnected(ReconnectScheduler.CAUSE_LINK_LOSS, 5000));
+        assertEquals(1, mScheduler.getAttempt());
+    }
+
+    @Test
+    public void classifiesDisconnects() {
+        assertEquals(ReconnectScheduler.CAUSE_USER, ReconnectScheduler.classify(0, true, false));
+        assertEquals(ReconnectScheduler.CAUSE_LINK_LOSS, ReconnectScheduler.classify(
+                ReconnectScheduler.STATUS_CONN_TIMEOUT, false, false));
+        assertEquals(ReconnectScheduler.CAUSE_REMOTE, ReconnectScheduler.classify(
+                ReconnectScheduler.STATUS_CONN_TERMINATE_PEER_USER, false, false));
+        assertEquals(ReconnectScheduler.CAUSE_TIMEOUT, ReconnectScheduler.classify(0, false,
+                true));
+    }
+}
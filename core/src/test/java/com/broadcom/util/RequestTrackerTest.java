@@ -0,0 +1,156 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Drives a request queue the way GattRequestManager does, with timeouts and
+ * late callbacks, and checks that every request completes exactly once and
+ * with its own result
+ *
+ */
+public class RequestTrackerTest {
+    private static final int TYPE_WRITE = 1;
+    private static final int TYPE_READ = 2;
+    private static final int STATUS_SUCCESS = 0;
+    private static final int STATUS_TIMEOUT = -1;
+
+    private static class Request {
+        final int mType;
+        final Object mAttribute;
+        int mCompletions;
+        int mStatus;
+
+        Request(int type, Object attribute) {
+            mType = type;
+            mAttribute = attribute;
+        }
+    }
+
+    private final RequestTracker<Request> mTracker = new RequestTracker<Request>(
+            new RequestTracker.Matcher<Request>() {
+                @Override
+                public boolean matches(Request request, int type, Object attribute) {
+                    return request.mType == type && request.mAttribute == attribute;
+                }
+            });
+    private final FifoRequestQueue<Request> mQueue = new FifoRequestQueue<Request>();
+    private final Object mData = new Object();
+    private final Object mBattery = new Object();
+
+    private void add(Request r) {
+        Request next = mQueue.add(r, false);
+        if (next != null) {
+            mTracker.onStarted(next);
+        }
+    }
+
+    private void complete(Request r, int status) {
+        r.mCompletions++;
+        r.mStatus = status;
+        Request next = mQueue.next();
+        if (next != null) {
+            mTracker.onStarted(next);
+        }
+    }
+
+    private void callback(int type, Object attribute, int status) {
+        Request r = mTracker.onCallback(type, attribute);
+        if (r != null) {
+            complete(r, status);
+        }
+    }
+
+    private void timeout(Request r) {
+        if (mTracker.onTimeout(r)) {
+            complete(r, STATUS_TIMEOUT);
+        }
+    }
+
+    @Test
+    public void lateCallbackOfSameAttributeIsDropped() {
+        Request a = new Request(TYPE_WRITE, mData);
+        Request b = new Request(TYPE_WRITE, mData);
+        Request c = new Request(TYPE_WRITE, mData);
+        add(a);
+        add(b);
+        add(c);
+
+        timeout(a);
+        assertSame(b, mQueue.getPending());
+        // The late callback of A must neither complete B nor start C
+        callback(TYPE_WRITE, mData, 5);
+        assertEquals(0, b.mCompletions);
+        assertSame(b, mQueue.getPending());
+        assertEquals(1, mTracker.getLateCallbackCount());
+
+        callback(TYPE_WRITE, mData, STATUS_SUCCESS);
+        callback(TYPE_WRITE, mData, STATUS_SUCCESS);
+
+        assertEquals(1, a.mCompletions);
+        assertEquals(STATUS_TIMEOUT, a.mStatus);
+        assertEquals(1, b.mCompletions);
+        assertEquals(STATUS_SUCCESS, b.mStatus);
+        assertEquals(1, c.mCompletions);
+        assertNull(mQueue.getPending());
+    }
+
+    @Test
+    public void strayCallbackDoesNotAdvanceQueue() {
+        Request a = new Request(TYPE_WRITE, mData);
+        Request b = new Request(TYPE_READ, mBattery);
+        add(a);
+        add(b);
+
+        timeout(a);
+        // A's callback never arrives; a callback of another attribute ends
+        // the wait for it
+        callback(TYPE_WRITE, mBattery, STATUS_SUCCESS);
+        assertEquals(0, b.mCompletions);
+        assertEquals(1, mTracker.getStrayCallbackCount());
+        callback(TYPE_READ, mBattery, STATUS_SUCCESS);
+
+        assertEquals(1, a.mCompletions);
+        assertEquals(1, b.mCompletions);
+        assertEquals(STATUS_SUCCESS, b.mStatus);
+    }
+
+    @Test
+    public void timeoutAfterCallbackIsIgnored() {
+        Request a = new Request(TYPE_READ, mBattery);
+        Request b = new Request(TYPE_READ, mData);
+        add(a);
+        add(b);
+
+        callback(TYPE_READ, mBattery, STATUS_SUCCESS);
+        // The timer of A fires after its callback won the race
+        timeout(a);
+        assertEquals(1, a.mCompletions);
+        assertEquals(STATUS_SUCCESS, a.mStatus);
+        assertSame(b, mQueue.getPending());
+
+        timeout(b);
+        assertEquals(1, b.mCompletions);
+        assertEquals(STATUS_TIMEOUT, b.mStatus);
+    }
+}
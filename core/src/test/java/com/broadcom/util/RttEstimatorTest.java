@@ -0,0 +1,84 @@
+/******************************************************************************
+ *
+ *  Copyright (C) 2014 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package com.broadcom.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the request timeout computed from measured round trips (RFC 6298),
+ * its bounds, and its backoff on timeouts
+ *
+ */
+public class RttEstimatorTest {
+    private static final long MS = 1000000L;
+
+    private final RttEstimator mEstimator = new RttEstimator(50, 2000);
+
+    @Test
+    public void usesMaxTimeoutWithoutSamples() {
+        assertEquals(2000 * MS, mEstimator.getTimeoutNs());
+        mEstimator.onTimeout();
+        assertEquals(2000 * MS, mEstimator.getTimeoutNs());
+    }
+
+    @Test
+    public void firstSampleSetsMeanAndVariance() {
+        mEstimator.addSample(100 * MS);
+        assertEquals(100 * MS, mEstimator.getSmoothedRttNs());
+        assertEquals(50 * MS, mEstimator.getRttVarianceNs());
+        // srtt + 4 * rttvar
+        assertEquals(300 * MS, mEstimator.getTimeoutNs());
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed() {
+        mEstimator.addSample(100 * MS);
+        mEstimator.addSample(180 * MS);
+        // srtt += (180 - 100) / 8, rttvar += (80 - 50) / 4
+        assertEquals(110 * MS, mEstimator.getSmoothedRttNs());
+        assertEquals(57500000L, mEstimator.getRttVarianceNs());
+        assertEquals(2, mEstimator.getSampleCount());
+    }
+
+    @Test
+    public void timeoutIsBounded() {
+        mEstimator.addSample(1 * MS);
+        assertEquals(50 * MS, mEstimator.getTimeoutNs());
+        mEstimator.reset();
+        mEstimator.addSample(1000 * MS);
+        assertEquals(2000 * MS, mEstimator.getTimeoutNs());
+    }
+
+    @Test
+    public void timeoutsBackOffUntilNextSample() {
+        mEstimator.addSample(100 * MS);
+        mEstimator.onTimeout();
+        assertEquals(600 * MS, mEstimator.getTimeoutNs());
+        mEstimator.onTimeout();
+        assertEquals(1200 * MS, mEstimator.getTimeoutNs());
+        mEstimator.onTimeout();
+        assertEquals(2000 * MS, mEstimator.getTimeoutNs());
+
+        mEstimator.addSample(100 * MS);
+        assertEquals(100 * MS, mEstimator.getSmoothedRttNs());
+        // rttvar decays from 50 towards 0: 50 - 50 / 4
+        assertEquals(100 * MS + 4 * 37500000L, mEstimator.getTimeoutNs());
+    }
+}